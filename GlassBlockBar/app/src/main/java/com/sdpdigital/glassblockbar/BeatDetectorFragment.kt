@@ -7,12 +7,10 @@ import android.util.Log
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
-import android.widget.RelativeLayout
 import android.widget.SeekBar
 import android.widget.SeekBar.OnSeekBarChangeListener
 import androidx.appcompat.widget.AppCompatSeekBar
 import androidx.fragment.app.Fragment
-import com.sdpdigital.glassblockbar.beatdetection.InstrumentPanel
 import org.hermit.android.instruments.SpectrumGauge
 import kotlin.math.max
 import kotlin.math.min
@@ -35,9 +33,6 @@ class BeatDetectorFragment : Fragment() {
     // Main thread handler
     val mainHandler = Handler()
 
-    // View for recording and analyzing audio
-    var instrumentPanel: InstrumentPanel? = null
-
     // Beat indicator views
     var lowBeatView: View? = null
     var midBeatView: View? = null
@@ -76,9 +71,6 @@ class BeatDetectorFragment : Fragment() {
                               savedInstanceState: Bundle?): View? {
         val rootView = inflater.inflate(R.layout.fragment_beat_detector, container, false)
 
-        // Get root layout
-        val relativeRoot = rootView.findViewById<RelativeLayout>(R.id.item_detail_root_layout)
-
         val progressListener = object : OnSeekBarChangeListener {
             override fun onProgressChanged(seekbar: SeekBar?, progress: Int, p2: Boolean) {
                 (seekbar?.tag as? Int)?.let {
@@ -104,16 +96,6 @@ class BeatDetectorFragment : Fragment() {
         // We want the audio controls to control our sound volume.
         activity?.volumeControlStream = AudioManager.STREAM_MUSIC
 
-        activity?.let {
-            // Creating a LinearLayout.LayoutParams object for text view
-            val layout = RelativeLayout.LayoutParams(
-                    RelativeLayout.LayoutParams.MATCH_PARENT,
-                    RelativeLayout.LayoutParams.MATCH_PARENT)
-            instrumentPanel = InstrumentPanel(it)
-            instrumentPanel?.layoutParams = layout
-            relativeRoot.addView(instrumentPanel, 0)
-        }
-
         lowBeatView = rootView.findViewById(R.id.low_beat_view)
         midBeatView = rootView.findViewById(R.id.mid_beat_view)
         highBeatView = rootView.findViewById(R.id.high_beat_view)
@@ -124,31 +106,17 @@ class BeatDetectorFragment : Fragment() {
     override fun onStart() {
         super.onStart()
 
-        // Initialize the microphone
-        instrumentPanel?.setInstruments(InstrumentPanel.Instruments.SPECTRUM) // Initialize the microphone
-        // Start audio processing
-        instrumentPanel?.setOnBeatDetectedListener(onBeatDetectedListener)
-        instrumentPanel?.onStart()
-    }
-
-    override fun onResume() {
-        super.onResume()
-
-        instrumentPanel?.onResume()
-        instrumentPanel?.surfaceStart()
-    }
-
-
-    override fun onPause() {
-        super.onPause()
-
-        instrumentPanel?.onPause()
+        // Start audio processing, or keep it going from the last screen
+        app?.audioSession?.addOnBeatDetectedListener(onBeatDetectedListener)
+        app?.audioSession?.acquire()
     }
 
     override fun onStop() {
         super.onStop()
-        // Stop audio analysis
-        instrumentPanel?.onStop()
+        // Let go of audio analysis; it keeps running for a moment in
+        // case the next screen wants it too
+        app?.audioSession?.removeOnBeatDetectedListener(onBeatDetectedListener)
+        app?.audioSession?.release()
     }
 
     // Assess the new beat intensity,
@@ -179,14 +147,14 @@ class BeatDetectorFragment : Fragment() {
         return byteScaled
     }
 
-    fun processIntensity(intensity: Float, lowMidHighIdx: Int): Boolean {
+    fun processIntensity(intensity: Float, lowMidHighIdx: Int, captureTime: Long): Boolean {
         val byteIntensity = convertIntensityTo255(intensity, lowMidHighIdx)
         lowMidHighValues[lowMidHighIdx] = byteIntensity
 
         if (canSendBeat[lowMidHighIdx]) {
             canSendBeat[lowMidHighIdx] = false
             val newLowMidHigh = ByteArray(3) { idx -> lowMidHighValues[idx].toByte() }
-            app?.writeBleMessage(newLowMidHigh)
+            app?.writeBleMessage(newLowMidHigh, captureTime)
             return true
         }
         return false
@@ -198,7 +166,7 @@ class BeatDetectorFragment : Fragment() {
     private val onBeatDetectedListener: SpectrumGauge.OnBeatDetectedListener = object : SpectrumGauge.OnBeatDetectedListener {
 
         // This is total volume intensity beats
-        override fun onBeatDetectedOn(intensity: Float) {
+        override fun onBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
 //            if (intensity > mThresholdValue) {
 //                mHandler.post(Runnable {
 //                    mAvgDelayCtr++
@@ -219,16 +187,16 @@ class BeatDetectorFragment : Fragment() {
         }
 
         // This is total volume intensity beats
-        override fun onBeatDetectedOff() {
+        override fun onBeatDetectedOff(sequence: Long, captureTime: Long) {
 
         }
 
-        override fun onLowBeatDetectedOn(intensity: Float) {
+        override fun onLowBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
             mainHandler.post {
                 val threshold = seekBarProgress[LOW_IDX] *
                         highestLowMidHighIntensities[LOW_IDX]
                 if (intensity > threshold ) {
-                    if (processIntensity(intensity, LOW_IDX)) {
+                    if (processIntensity(intensity, LOW_IDX, captureTime)) {
                         lowBeatView?.visibility = View.VISIBLE
                         mainHandler.postDelayed({
                             lowBeatView?.visibility = View.INVISIBLE
@@ -246,20 +214,20 @@ class BeatDetectorFragment : Fragment() {
 //            }
         }
 
-        override fun onLowBeatDetectedOff() {
+        override fun onLowBeatDetectedOff(sequence: Long, captureTime: Long) {
             mainHandler.post {
-                processIntensity(0f, LOW_IDX)
+                processIntensity(0f, LOW_IDX, captureTime)
                 lowBeatView?.visibility = View.INVISIBLE
             }
         }
 
-        override fun onMidBeatDetectedOn(intensity: Float) {
+        override fun onMidBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
             mainHandler.post {
                 Log.d(LOG_TAG, "Mid: $intensity")
                 val threshold = seekBarProgress[MID_IDX] *
                         highestLowMidHighIntensities[MID_IDX]
                 if (intensity > threshold ) {
-                    if (processIntensity(intensity, MID_IDX)) {
+                    if (processIntensity(intensity, MID_IDX, captureTime)) {
                         midBeatView?.visibility = View.VISIBLE
                         mainHandler.postDelayed({
                             midBeatView?.visibility = View.INVISIBLE
@@ -273,21 +241,21 @@ class BeatDetectorFragment : Fragment() {
 //            }
         }
 
-        override fun onMidBeatDetectedOff() {
+        override fun onMidBeatDetectedOff(sequence: Long, captureTime: Long) {
             mainHandler.post {
-                processIntensity(0f, MID_IDX)
+                processIntensity(0f, MID_IDX, captureTime)
                 midBeatView?.visibility = View.INVISIBLE
             }
         }
 
-        override fun onHighBeatDetectedOn(intensity: Float) {
+        override fun onHighBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
             mainHandler.post {
                 Log.d(LOG_TAG, "High: $intensity")
                 val threshold = seekBarProgress[HIGH_IDX] *
                         highestLowMidHighIntensities[HIGH_IDX]
                 if (intensity > threshold ) {
                     if (canSendBeat[HIGH_IDX]) {
-                        if (processIntensity(intensity, HIGH_IDX)) {
+                        if (processIntensity(intensity, HIGH_IDX, captureTime)) {
                             highBeatView?.visibility = View.VISIBLE
                             mainHandler.postDelayed({
                                 highBeatView?.visibility = View.INVISIBLE
@@ -302,9 +270,9 @@ class BeatDetectorFragment : Fragment() {
 //            }
         }
 
-        override fun onHighBeatDetectedOff() {
+        override fun onHighBeatDetectedOff(sequence: Long, captureTime: Long) {
             mainHandler.post {
-                processIntensity(0f, HIGH_IDX)
+                processIntensity(0f, HIGH_IDX, captureTime)
                 highBeatView?.visibility = View.INVISIBLE
             }
         }
@@ -8,11 +8,11 @@ import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import android.widget.LinearLayout
-import android.widget.RelativeLayout
 import androidx.fragment.app.Fragment
-import com.sdpdigital.glassblockbar.beatdetection.InstrumentPanel
+import com.sdpdigital.glassblockbar.beatdetection.SpectrumFramePublisher
 import org.hermit.android.instruments.SpectrumGauge
 import java.util.*
+import java.util.concurrent.Executor
 import kotlin.math.*
 
 /**
@@ -29,11 +29,12 @@ class EqualizerFragment : Fragment() {
         return activity?.application as? GlassBlockLEDApplication
     }
 
-    // Main thread handler
+    // Main thread handler, and an executor which posts to it
     val mainHandler = Handler()
+    private val mainExecutor = Executor { mainHandler.post(it) }
 
-    // View for recording and analyzing audio
-    var instrumentPanel: InstrumentPanel? = null
+    // Our subscription to the equalizer frame stream, while started
+    private var frameSubscription: SpectrumFramePublisher.Subscription? = null
 
     // Contains the equalizer views to show on android device
     var eqViews = Array<Array<View?>>(9) { Array(5) { null } }
@@ -42,6 +43,9 @@ class EqualizerFragment : Fragment() {
     val EQ_ROWS = 5
     val EQ_COLS = 9
 
+    // Most equalizer frames to hold while waiting for the main thread
+    val EQ_FRAME_BUFFER = 64
+
     // Set of current low, mid, high values
     var intensityFrameSum = Array(EQ_COLS) { 0.0 } // Initialize all to 0
     // Max frame intensities, consider putting this at a 2 second rolling reset
@@ -67,8 +71,6 @@ class EqualizerFragment : Fragment() {
                               savedInstanceState: Bundle?): View? {
         val rootView = inflater.inflate(R.layout.fragment_equalizer, container, false)
 
-        // Get root layout
-        val relativeRoot = rootView.findViewById<RelativeLayout>(R.id.item_detail_root_layout)
         eqRoot = rootView.findViewById<LinearLayout>(R.id.equalizer_root)
 
         // Let the eq draw its full width/height first
@@ -112,16 +114,6 @@ class EqualizerFragment : Fragment() {
         // We want the audio controls to control our sound volume.
         activity?.volumeControlStream = AudioManager.STREAM_MUSIC
 
-        activity?.let {
-            // Creating a LinearLayout.LayoutParams object for text view
-            val layout = RelativeLayout.LayoutParams(
-                    RelativeLayout.LayoutParams.MATCH_PARENT,
-                    RelativeLayout.LayoutParams.MATCH_PARENT)
-            instrumentPanel = InstrumentPanel(it)
-            instrumentPanel?.layoutParams = layout
-            relativeRoot.addView(instrumentPanel, 0)
-        }
-
         return rootView
     }
 
@@ -133,121 +125,113 @@ class EqualizerFragment : Fragment() {
     override fun onStart() {
         super.onStart()
 
-        // Initialize the microphone
-        instrumentPanel?.setInstruments(InstrumentPanel.Instruments.SPECTRUM) // Initialize the microphone
-        // Start audio processing
-        instrumentPanel?.setOnFftResultListener(onFftResultListener)
-        instrumentPanel?.setOnBeatDetectedListener(onBeatDetectedListener)
-        instrumentPanel?.onStart()
-    }
-
-    override fun onResume() {
-        super.onResume()
-
-        instrumentPanel?.onResume()
-        instrumentPanel?.surfaceStart()
-    }
-
-
-    override fun onPause() {
-        super.onPause()
+        // Frames are buffered rather than conflated, since we sum every
+        // block between glass block frames; the buffer bounds the backlog
+        // if the main thread stalls
+        frameSubscription = app?.audioSession?.frames?.subscribe(
+                eqFrameSubscriber, SpectrumFramePublisher.Policy.BUFFER,
+                EQ_FRAME_BUFFER, mainExecutor)
+        app?.audioSession?.addOnBeatDetectedListener(onBeatDetectedListener)
 
-        instrumentPanel?.onPause()
+        // Start audio processing, or keep it going from the last screen
+        app?.audioSession?.acquire()
     }
 
     override fun onStop() {
         super.onStop()
-        // Stop audio analysis
-        instrumentPanel?.onStop()
+        // Let go of audio analysis; it keeps running for a moment in
+        // case the next screen wants it too
+        frameSubscription?.cancel()
+        frameSubscription = null
+        app?.audioSession?.removeOnBeatDetectedListener(onBeatDetectedListener)
+        app?.audioSession?.release()
     }
 
     private val onBeatDetectedListener: SpectrumGauge.OnBeatDetectedListener = object : SpectrumGauge.OnBeatDetectedListener {
-        override fun onHighBeatDetectedOn(intensity: Float) {
+        override fun onHighBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
             forceBeatSend = true
         }
 
-        override fun onBeatDetectedOff() {
+        override fun onBeatDetectedOff(sequence: Long, captureTime: Long) {
             //forceBeatSend = true
         }
 
-        override fun onLowBeatDetectedOn(intensity: Float) {
+        override fun onLowBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
             forceBeatSend = true
         }
 
-        override fun onHighBeatDetectedOff() {
+        override fun onHighBeatDetectedOff(sequence: Long, captureTime: Long) {
             //forceBeatSend = true
         }
 
-        override fun onLowBeatDetectedOff() {
+        override fun onLowBeatDetectedOff(sequence: Long, captureTime: Long) {
             //forceBeatSend = true
         }
 
-        override fun onMidBeatDetectedOn(intensity: Float) {
+        override fun onMidBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
             forceBeatSend = true
         }
 
-        override fun onMidBeatDetectedOff() {
+        override fun onMidBeatDetectedOff(sequence: Long, captureTime: Long) {
             //forceBeatSend = true
         }
 
-        override fun onBeatDetectedOn(intensity: Float) {
+        override fun onBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
             forceBeatSend = true
         }
     }
 
     /*
-     * Listener for when beats occur in the audio analyser
+     * Subscriber for equalizer frames from the audio analyser; called on
+     * the main thread
      */
-    private val onFftResultListener: SpectrumGauge.OnFFTResultListener = SpectrumGauge.OnFFTResultListener { fft ->
-        mainHandler.post {
-            //eqDrawing(fft)
-            fft?.let {
-                for ((idx, intensity) in fft.withIndex()) {
-                    intensityFrameSum[idx] += intensity
-                }
-            }
+    private val eqFrameSubscriber = SpectrumFramePublisher.Subscriber { frame ->
+        //eqDrawing(fft)
+        for (idx in 0 until min(frame.bandCount, EQ_COLS)) {
+            intensityFrameSum[idx] += frame.getBand(idx)
+        }
 
-            //val logVals = fft.map { "$it, " }
-            //Log.d(LOG_TAG, "FFT: $logVals")
+        //val logVals = fft.map { "$it, " }
+        //Log.d(LOG_TAG, "FFT: $logVals")
 
-            val now = System.currentTimeMillis()
-            // Check if the rolling max needs a refresh to stay current
-            if ((now - lastMaxIntensityTime) > maxIntensityRefreshTime) {
-                for (i in nextMaxFrameIntensities.indices) {
-                    maxFrameIntensities[i] = nextMaxFrameIntensities[i]
-                    nextMaxFrameIntensities[i] = 0.0
-                }
-                lastMaxIntensityTime = now
+        val now = System.currentTimeMillis()
+        // Check if the rolling max needs a refresh to stay current
+        if ((now - lastMaxIntensityTime) > maxIntensityRefreshTime) {
+            for (i in nextMaxFrameIntensities.indices) {
+                maxFrameIntensities[i] = nextMaxFrameIntensities[i]
+                nextMaxFrameIntensities[i] = 0.0
             }
+            lastMaxIntensityTime = now
+        }
 
-            // Check if a frame has gone by and we can send to the glass wall
-            if (((now - lastFpsTime) > frameTimeInMillis) || forceBeatSend) {
-                lastFpsTime = now
+        // Check if a frame has gone by and we can send to the glass wall
+        if (((now - lastFpsTime) > frameTimeInMillis) || forceBeatSend) {
+            lastFpsTime = now
 
-                var normalized = Array(intensityFrameSum.size) { 0 }
+            var normalized = Array(intensityFrameSum.size) { 0 }
 
-                // Reset max intensities to base eq height off of
-                for ((col, intensity) in intensityFrameSum.withIndex()) {
+            // Reset max intensities to base eq height off of
+            for ((col, intensity) in intensityFrameSum.withIndex()) {
 
-                    // Update counter for current max intensity
-                    nextMaxFrameIntensities[col] = max(intensity, nextMaxFrameIntensities[col])
+                // Update counter for current max intensity
+                nextMaxFrameIntensities[col] = max(intensity, nextMaxFrameIntensities[col])
 
-                    // Normalize intensities to 0...4 inclusive
-                    normalized[col] = (((intensity.toFloat() / (maxFrameIntensities[col] / 1.2)).toFloat()) * 6).toInt()
+                // Normalize intensities to 0...4 inclusive
+                normalized[col] = (((intensity.toFloat() / (maxFrameIntensities[col] / 1.2)).toFloat()) * 6).toInt()
 
-                    // Draw a frame of the EQ on android device
-                    for (row in 0 until EQ_ROWS) {
-                        val rowAdjusted = (EQ_ROWS - 1) - row
-                        if (normalized[col] > row) {
-                            eqViews[col][rowAdjusted]?.visibility = View.VISIBLE
-                        } else {
-                            eqViews[col][rowAdjusted]?.visibility = View.INVISIBLE
-                        }
+                // Draw a frame of the EQ on android device
+                for (row in 0 until EQ_ROWS) {
+                    val rowAdjusted = (EQ_ROWS - 1) - row
+                    if (normalized[col] > row) {
+                        eqViews[col][rowAdjusted]?.visibility = View.VISIBLE
+                    } else {
+                        eqViews[col][rowAdjusted]?.visibility = View.INVISIBLE
                     }
                 }
+            }
 
-                // Send data to glass block wall
-                // We need to convert the data a minimal format, 3 bits per signal (0 to 4)
+            // Send data to glass block wall
+            // We need to convert the data a minimal format, 3 bits per signal (0 to 4)
 //                Utils.convertEqBytesToMinimalBytes(normalized)?.let {
 //
 ////                    val debug2 = normalized.map { "$it, " }
@@ -260,12 +244,11 @@ class EqualizerFragment : Fragment() {
 //                            ByteArray(4) { i -> it[i].toByte() })
 //                }
 
-                val eqMsg = ByteArray(9) { i -> normalized[i].toByte() }
-                // TOOD: fix this crashing the arduino app
-                //app?.writeBleMessage(eqMsg)
+            val eqMsg = ByteArray(9) { i -> normalized[i].toByte() }
+            // TOOD: fix this crashing the arduino app
+            //app?.writeBleMessage(eqMsg)
 
-                Arrays.fill(intensityFrameSum, 0.0)
-            }
+            Arrays.fill(intensityFrameSum, 0.0)
         }
     }
 
@@ -14,6 +14,8 @@ import androidx.lifecycle.ViewModel
 import androidx.lifecycle.ViewModelProvider
 import androidx.lifecycle.ViewModelStore
 import androidx.lifecycle.ViewModelStoreOwner
+import com.sdpdigital.glassblockbar.beatdetection.AudioAnalysisSession
+import org.hermit.ca.uol.aig.fftpack.WavetableCache
 import java.util.*
 import kotlin.collections.ArrayList
 
@@ -23,6 +25,10 @@ class GlassBlockLEDApplication : Application(), ViewModelStoreOwner {
 
     val bleNamePrefix = "Glass Block Bar"
 
+    // Audio block sizes InstrumentPanel can run the analyser at, including
+    // 10 and 20 ms native buffers at 48 kHz
+    val FFT_WARM_UP_SIZES = intArrayOf(256, 480, 512, 960, 1024)
+
     public val bluetoothAdapter: BluetoothAdapter by lazy {
         val bluetoothManager = getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
         bluetoothManager.adapter
@@ -68,6 +74,18 @@ class GlassBlockLEDApplication : Application(), ViewModelStoreOwner {
     override fun onCreate() {
         super.onCreate()
         registerActivityLifecycleCallbacks(lifeCycleCallback)
+
+        // Build the FFT plans for the analyser's block sizes up front, so the
+        // first audio block after opening an analyser screen doesn't pay for it
+        Thread {
+            WavetableCache.warmUp(*FFT_WARM_UP_SIZES)
+        }.start()
+    }
+
+    // Audio analysis shared by every screen that reacts to sound, so the
+    // mic stays open and the analyser keeps its state across screen changes
+    val audioSession: AudioAnalysisSession by lazy {
+        AudioAnalysisSession(this)
     }
 
     // Allows the app to share instances of the ViewModel
@@ -103,7 +121,25 @@ class GlassBlockLEDApplication : Application(), ViewModelStoreOwner {
 
     private var readyToSend = true
     private var queuedMessages = ArrayList<ByteArray>()
-    public fun writeBleMessage(msg: ByteArray) {
+
+    // Audio capture time (System.nanoTime) of each queued message, or 0 if
+    // the message isn't driven by audio
+    private var queuedCaptureTimes = ArrayList<Long>()
+
+    // Audio-driven messages older than this when they reach the head of the
+    // queue are dropped; the light would land too late to match the sound
+    val MAX_AUDIO_MESSAGE_AGE_MS = 250L
+
+    // Running average of the time from audio capture to BLE write, in ms
+    public var soundToBleLatencyMs = 0f
+        private set
+    /**
+     * Queue a message to the LED device
+     * @param msg bytes to send, padded with 0s to 20 bytes
+     * @param captureTime System.nanoTime at which the audio that caused this
+     *                    message was captured, or 0 if it wasn't caused by audio
+     */
+    public fun writeBleMessage(msg: ByteArray, captureTime: Long = 0L) {
         var bytesTosend = msg
 
         // For commands that don't use all the bytes, write them as 0s
@@ -117,6 +153,7 @@ class GlassBlockLEDApplication : Application(), ViewModelStoreOwner {
         }
 
         queuedMessages.add(bytesTosend)
+        queuedCaptureTimes.add(captureTime)
         writeNextMessage()
     }
 
@@ -129,8 +166,22 @@ class GlassBlockLEDApplication : Application(), ViewModelStoreOwner {
         val device = connectedGatt ?: run { return }
         val char = communicationChar ?: run { return }
 
+        // Skip audio-driven messages which have waited too long
+        val now = System.nanoTime()
+        while (queuedCaptureTimes.isNotEmpty() && queuedCaptureTimes[0] != 0L &&
+                (now - queuedCaptureTimes[0]) / 1000000 > MAX_AUDIO_MESSAGE_AGE_MS) {
+            Log.d(LOG_TAG, "Dropping stale audio message")
+            queuedMessages.removeAt(0)
+            queuedCaptureTimes.removeAt(0)
+        }
+
         queuedMessages.firstOrNull()?.let {
             queuedMessages.removeAt(0)
+            val captureTime = queuedCaptureTimes.removeAt(0)
+            if (captureTime != 0L) {
+                val latencyMs = (now - captureTime) / 1000000f
+                soundToBleLatencyMs += (latencyMs - soundToBleLatencyMs) * 0.1f
+            }
             readyToSend = false
             // Sending too quickly will lock the queue
             char.value = it
@@ -228,6 +279,7 @@ class GlassBlockLEDApplication : Application(), ViewModelStoreOwner {
                     if (communicationChar != null) {
                         readyToSend = true
                         queuedMessages.clear()
+                        queuedCaptureTimes.clear()
                         updateConnectedListener("Connected")
                         updateConnectedAndReadyStatus()
                     } else {
@@ -0,0 +1,487 @@
+package com.sdpdigital.glassblockbar.beatdetection;
+
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import org.hermit.android.instruments.AnalysisGovernor;
+import org.hermit.android.instruments.AudioAnalyser;
+import org.hermit.android.instruments.SpectrumGauge;
+import org.hermit.android.io.AudioReader;
+import org.hermit.android.io.MicAudioSource;
+
+
+/**
+ * A shared audio analysis session which runs without any view.  There
+ * is one of these for the whole app; screens which want beat or FFT
+ * callbacks subscribe to it, and {@link #acquire()} it while they are
+ * showing.
+ *
+ * <p>The session is reference counted: the mic is opened by the first
+ * {@link #acquire()}, and closed a little while after the last
+ * {@link #release()}.  The delay means that moving from one screen to
+ * another doesn't close the mic and open it again, and the analyser
+ * keeps its adaptive state.
+ *
+ * <p>If the mic fails, the session stops, and tells its error listeners;
+ * the next {@link #acquire()} opens the mic again.
+ *
+ * <p>acquire() and release() must be called on the main thread.  The
+ * beat and FFT listeners are called on the analysis thread; the error
+ * listeners on the main thread.
+ */
+public class AudioAnalysisSession
+{
+
+    // ******************************************************************** //
+    // Public Classes.
+    // ******************************************************************** //
+
+    /**
+     * Listener for the analysis stopping because the audio input failed.
+     */
+    public interface OnErrorListener {
+        /**
+         * The audio input failed, and the analysis has stopped.  It starts
+         * again at the next {@link AudioAnalysisSession#acquire()}.
+         *
+         * @param   error   AudioReader.Listener ERR_XXX code describing
+         *                  the error.
+         */
+        public abstract void onAnalysisError(int error);
+    }
+
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create a session.  The mic isn't opened until the session is
+     * first acquired.
+     *
+     * @param   context     The application context we're running in.
+     */
+    public AudioAnalysisSession(Context context) {
+        audioAnalyser = new AudioAnalyser();
+        spectrumGauge = audioAnalyser.getSpectrumGauge(null);
+        spectrumGauge.setOnBeatDetectedListener(beatFanOut);
+        frames.setOnActiveListener(framesActive);
+        audioAnalyser.setOnInputEndedListener(inputEnded);
+
+        // Get a spectrum every hop, so beats are timed more finely; and
+        // use the low-latency input path, where the device has one.
+        audioAnalyser.setHopSize(HOP_SIZE);
+        if (AudioReader.hasLowLatencyInput(context))
+            audioAnalyser.setAudioSource(new MicAudioSource(true));
+
+        audioAnalyser.appStart();
+    }
+
+
+    // ******************************************************************** //
+    // Subscriptions.
+    // ******************************************************************** //
+
+    /**
+     * Subscribe to beat events.
+     *
+     * @param   listener    The listener to add.
+     */
+    public void addOnBeatDetectedListener(SpectrumGauge.OnBeatDetectedListener listener) {
+        synchronized (listenerLock) {
+            beatListeners = with(beatListeners, listener);
+        }
+    }
+
+
+    /**
+     * Unsubscribe from beat events.
+     *
+     * @param   listener    The listener to remove.
+     */
+    public void removeOnBeatDetectedListener(SpectrumGauge.OnBeatDetectedListener listener) {
+        synchronized (listenerLock) {
+            beatListeners = without(beatListeners, listener);
+        }
+    }
+
+
+    /**
+     * Subscribe to FFT results.
+     *
+     * @param   listener    The listener to add.
+     */
+    public void addOnFftResultListener(SpectrumGauge.OnFFTResultListener listener) {
+        synchronized (listenerLock) {
+            fftListeners = with(fftListeners, listener);
+            updateFftFanOut();
+        }
+    }
+
+
+    /**
+     * Unsubscribe from FFT results.
+     *
+     * @param   listener    The listener to remove.
+     */
+    public void removeOnFftResultListener(SpectrumGauge.OnFFTResultListener listener) {
+        synchronized (listenerLock) {
+            fftListeners = without(fftListeners, listener);
+            updateFftFanOut();
+        }
+    }
+
+
+    /**
+     * Subscribe to analysis errors.
+     *
+     * @param   listener    The listener to add.
+     */
+    public void addOnErrorListener(OnErrorListener listener) {
+        errorListeners.addIfAbsent(listener);
+    }
+
+
+    /**
+     * Unsubscribe from analysis errors.
+     *
+     * @param   listener    The listener to remove.
+     */
+    public void removeOnErrorListener(OnErrorListener listener) {
+        errorListeners.remove(listener);
+    }
+
+
+    /**
+     * Have the gauge pass us FFT results only while someone wants them,
+     * so that it doesn't work out the equalizer magnitudes for nobody.
+     * The caller must hold listenerLock.
+     */
+    private void updateFftFanOut() {
+        final boolean wanted = fftListeners.length != 0 || frames.hasSubscribers();
+        spectrumGauge.setOnFFTResultListener(wanted ? fftFanOut : null);
+    }
+
+
+    /**
+     * Make a copy of a listener array with a listener added, unless
+     * it's already there.
+     *
+     * @param   list        The current listeners.
+     * @param   listener    The listener to add.
+     * @return              The new listeners.
+     */
+    private static <T> T[] with(T[] list, T listener) {
+        for (T l : list)
+            if (l == listener)
+                return list;
+        final T[] added = Arrays.copyOf(list, list.length + 1);
+        added[list.length] = listener;
+        return added;
+    }
+
+
+    /**
+     * Make a copy of a listener array with a listener removed.
+     *
+     * @param   list        The current listeners.
+     * @param   listener    The listener to remove.
+     * @return              The new listeners.
+     */
+    private static <T> T[] without(T[] list, T listener) {
+        for (int i = 0; i < list.length; ++i) {
+            if (list[i] == listener) {
+                final T[] removed = Arrays.copyOf(list, list.length - 1);
+                System.arraycopy(list, i + 1, removed, i, list.length - i - 1);
+                return removed;
+            }
+        }
+        return list;
+    }
+
+
+    /**
+     * Get the stream of equalizer frames.  Unlike the FFT result
+     * listeners, which are called on the analysis thread with the
+     * gauge's own buffer, subscribers to this get pooled frames which
+     * are theirs for the duration of the call, delivered on an Executor
+     * of their choice with their own backpressure policy.
+     *
+     * @return              The frame publisher.
+     */
+    public SpectrumFramePublisher getFrames() {
+        return frames;
+    }
+
+
+    // ******************************************************************** //
+    // Run Control.
+    // ******************************************************************** //
+
+    /**
+     * Take a reference to the session, starting the analysis if it
+     * isn't running; either because this is the first reference, or
+     * because the input failed.
+     */
+    public void acquire() {
+        mainHandler.removeCallbacks(stopRunner);
+        ++refCount;
+        if (!running) {
+            Log.i(TAG, "Session: start analysis");
+            ++runNumber;
+            audioAnalyser.measureStart();
+            running = true;
+        }
+    }
+
+
+    /**
+     * Drop a reference to the session.  When the last reference goes,
+     * the analysis is stopped after {@link #STOP_DELAY_MS}, unless the
+     * session is acquired again first.
+     */
+    public void release() {
+        if (refCount <= 0) {
+            Log.w(TAG, "Session: release without acquire");
+            return;
+        }
+        if (--refCount == 0)
+            mainHandler.postDelayed(stopRunner, STOP_DELAY_MS);
+    }
+
+
+    /**
+     * Get the nyquist frequency of the analysis.
+     *
+     * @return              The nyquist frequency, in Hz.
+     */
+    public int getNyquistFreq() {
+        return spectrumGauge.getNyquistFreq();
+    }
+
+
+    /**
+     * Get the quality tier the analysis is currently running at.
+     *
+     * @return              The current analysis tier.
+     */
+    public AnalysisGovernor.Tier getAnalysisTier() {
+        return audioAnalyser.getAnalysisTier();
+    }
+
+
+    /**
+     * Set the layout of the equalizer results passed to the
+     * FFT result listeners.
+     *
+     * @param   columns     The number of columns; 9 by default.
+     * @param   logSpaced   If true, space the columns evenly on a log
+     *                      frequency scale; otherwise evenly in Hz.
+     */
+    public void setEqualizerBands(int columns, boolean logSpaced) {
+        spectrumGauge.setEqualizerBands(columns, logSpaced);
+    }
+
+
+    // ******************************************************************** //
+    // Fan-Out.
+    // ******************************************************************** //
+
+    // Stops the analysis once the session has been released for a while.
+    private final Runnable stopRunner = new Runnable() {
+        @Override
+        public void run() {
+            if (refCount == 0 && running) {
+                Log.i(TAG, "Session: stop analysis");
+                audioAnalyser.measureStop();
+                running = false;
+            }
+        }
+    };
+
+
+    // Notices the input stopping, on the analysis thread, and has the
+    // main thread stop the session.  measureStop() waits for the analysis
+    // thread, so this run can't have been stopped and another started
+    // before we get here.
+    private final AudioAnalyser.OnInputEndedListener inputEnded =
+                                    new AudioAnalyser.OnInputEndedListener() {
+        @Override
+        public void onInputEnded(final int error) {
+            Log.e(TAG, "Session: audio input stopped: error " + error);
+            final int run = runNumber;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    inputFailed(run, error);
+                }
+            });
+        }
+    };
+
+
+    /**
+     * Stop the analysis after the input has failed, and tell our error
+     * listeners.  Called on the main thread.
+     *
+     * @param   run         The number of the run which failed.
+     * @param   error       ERR_XXX code describing the error.
+     */
+    private void inputFailed(int run, int error) {
+        if (run != runNumber || !running)
+            return;
+        Log.i(TAG, "Session: stop analysis after input error");
+        audioAnalyser.measureStop();
+        running = false;
+        for (OnErrorListener l : errorListeners)
+            l.onAnalysisError(error);
+    }
+
+
+    // Passes the gauge's beat events on to all our subscribers.
+    private final SpectrumGauge.OnBeatDetectedListener beatFanOut =
+                                    new SpectrumGauge.OnBeatDetectedListener() {
+        @Override
+        public void onBeatDetectedOn(float intensity, long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onBeatDetectedOn(intensity, sequence, captureTime);
+        }
+
+        @Override
+        public void onBeatDetectedOff(long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onBeatDetectedOff(sequence, captureTime);
+        }
+
+        @Override
+        public void onLowBeatDetectedOn(float intensity, long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onLowBeatDetectedOn(intensity, sequence, captureTime);
+        }
+
+        @Override
+        public void onMidBeatDetectedOn(float intensity, long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onMidBeatDetectedOn(intensity, sequence, captureTime);
+        }
+
+        @Override
+        public void onHighBeatDetectedOn(float intensity, long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onHighBeatDetectedOn(intensity, sequence, captureTime);
+        }
+
+        @Override
+        public void onLowBeatDetectedOff(long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onLowBeatDetectedOff(sequence, captureTime);
+        }
+
+        @Override
+        public void onMidBeatDetectedOff(long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onMidBeatDetectedOff(sequence, captureTime);
+        }
+
+        @Override
+        public void onHighBeatDetectedOff(long sequence, long captureTime) {
+            final SpectrumGauge.OnBeatDetectedListener[] ls = beatListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].onHighBeatDetectedOff(sequence, captureTime);
+        }
+    };
+
+
+    // Passes the gauge's FFT results on to all our subscribers.
+    private final SpectrumGauge.OnFFTResultListener fftFanOut =
+                                    new SpectrumGauge.OnFFTResultListener() {
+        @Override
+        public void fftResult(double[] fft, long sequence, long captureTime) {
+            final SpectrumGauge.OnFFTResultListener[] ls = fftListeners;
+            for (int i = 0; i < ls.length; ++i)
+                ls[i].fftResult(fft, sequence, captureTime);
+            if (frames.hasSubscribers())
+                frames.publish(fft, sequence, captureTime);
+        }
+    };
+
+
+    // Starts and stops the FFT results as the frame stream gains its
+    // first subscriber and loses its last.
+    private final SpectrumFramePublisher.OnActiveListener framesActive =
+                                    new SpectrumFramePublisher.OnActiveListener() {
+        @Override
+        public void onActiveChanged(boolean active) {
+            synchronized (listenerLock) {
+                updateFftFanOut();
+            }
+        }
+    };
+
+
+    // ******************************************************************** //
+    // Class Data.
+    // ******************************************************************** //
+
+    // Debugging tag.
+    private static final String TAG = "AudioAnalysisSession";
+
+    // Hop between analysis windows, in samples; a quarter of the
+    // analyser's 256-sample block, so windows overlap by 3/4.
+    private static final int HOP_SIZE = 64;
+
+    // Time we keep the analysis running after the last release, in ms.
+    // This covers the gap between one screen stopping and the next
+    // starting.
+    private static final long STOP_DELAY_MS = 2000;
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The analyser, and the gauge which does its beat detection.
+    private final AudioAnalyser audioAnalyser;
+    private final SpectrumGauge spectrumGauge;
+
+    // Our beat and FFT subscribers.  The arrays are replaced, never
+    // changed, so the analysis thread can walk them without a lock or
+    // an iterator.  The lock also covers registering our FFT fan-out
+    // with the gauge.
+    private final Object listenerLock = new Object();
+    private volatile SpectrumGauge.OnBeatDetectedListener[] beatListeners =
+                    new SpectrumGauge.OnBeatDetectedListener[0];
+    private volatile SpectrumGauge.OnFFTResultListener[] fftListeners =
+                    new SpectrumGauge.OnFFTResultListener[0];
+
+    // Our error subscribers, who are told on the main thread.
+    private final CopyOnWriteArrayList<OnErrorListener> errorListeners =
+                    new CopyOnWriteArrayList<OnErrorListener>();
+
+    // The stream of equalizer frames.
+    private final SpectrumFramePublisher frames = new SpectrumFramePublisher();
+
+    // Handler for the delayed stop.
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Number of references taken; whether the analysis is running; and
+    // the number of the current run, which the analysis thread reads.
+    // Each run's analysis thread is started after runNumber is set, and
+    // finished before it is set again.
+    private int refCount = 0;
+    private boolean running = false;
+    private int runNumber = 0;
+
+}
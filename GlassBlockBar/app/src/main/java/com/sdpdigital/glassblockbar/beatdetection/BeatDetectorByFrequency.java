@@ -20,6 +20,8 @@ package com.sdpdigital.glassblockbar.beatdetection;
 import android.media.MediaPlayer;
 import android.media.audiofx.Visualizer;
 
+import org.hermit.dsp.RollingStats;
+
 /**
  * {@link android.media.audiofx.Visualizer.OnDataCaptureListener#onWaveFormDataCapture } and
  * {@link android.media.audiofx.Visualizer.OnDataCaptureListener#onFftDataCapture }
@@ -29,10 +31,7 @@ public class BeatDetectorByFrequency {
 
   private Visualizer mVisualizer = null;
 
-  private double mRunningSoundAvg[];             // Adding the total sound energy in one second  (0low, 1mid, 2hi)
-  private double mCurrentAvgEnergyOneSec[];      // Average Sound energy in one second (0low, 1mid, 2hi)
-  private int mNumberOfSamplesInOneSec;          // Number of samples in one second
-  private long mSystemTimeStartSec;              // System time at the start of a one second interval
+  private RollingStats mBandStats[];            // Rolling history of each band's sound energy (0low, 1mid, 2hi)
 
   // Define the max value for a frequency band
   private static final int LOW_FREQUENCY = 300;
@@ -47,11 +46,18 @@ public class BeatDetectorByFrequency {
   }
 
   private void init() {
-    mRunningSoundAvg = new double[3];
-    mCurrentAvgEnergyOneSec = new double[3];
-    mCurrentAvgEnergyOneSec[0] = -1;
-    mCurrentAvgEnergyOneSec[1] = -1;
-    mCurrentAvgEnergyOneSec[2] = -1;
+    mBandStats = new RollingStats[3];
+    makeHistory(0);
+  }
+
+  /**
+   * Create the energy histories
+   * @param periodNanos - time between samples in ns, or 0 if not known yet
+   */
+  private void makeHistory(long periodNanos) {
+    for (int i = 0; i < mBandStats.length; ++i) {
+      mBandStats[i] = RollingStats.forPeriod(periodNanos);
+    }
   }
 
   /**
@@ -90,8 +96,12 @@ public class BeatDetectorByFrequency {
 
     // if you take the max capture rate and divide it by 2 you get the max sampling rate to retain
     // the correct frequencies per Nyquist Theory
+    int captureRate = Visualizer.getMaxCaptureRate() / 2;
     mVisualizer.setDataCaptureListener(captureListener,
-        Visualizer.getMaxCaptureRate() / 2, false, true);
+        captureRate, false, true);
+
+    // Size the energy histories for the capture rate, which is in mHz
+    makeHistory(captureRate > 0 ? 1000000000000L / captureRate : 0);
 
     // Enabled Visualizer and disable when we're done with the stream
     mVisualizer.setEnabled(true);
@@ -103,9 +113,6 @@ public class BeatDetectorByFrequency {
         mVisualizer.setEnabled(false);
       }
     });
-
-    // set start of 1 sec average energy equation
-    mSystemTimeStartSec = System.currentTimeMillis();
   }
 
   /**
@@ -166,13 +173,10 @@ public class BeatDetectorByFrequency {
 
     double sampleAvgAudioEnergy = (double)energySum / (double)((k*1.0)/2.0);
 
-    mRunningSoundAvg[0] += sampleAvgAudioEnergy;
-    
     // Check for a low frequency band beat
-    // A beat occurs when the average sound energy of a sample is greater than
-    // the average sound energy of a one second part of a song
-    // Also make sure the mCurrentAvgEnergy has been set, otherwise its -1 before its first pass
-    if( (sampleAvgAudioEnergy >  mCurrentAvgEnergyOneSec[0]) && (mCurrentAvgEnergyOneSec[0] > 0) ) {
+    // A beat occurs when the average sound energy of a sample stands out from
+    // the sound energy over the last second or so of the song
+    if( mBandStats[0].isPeak(sampleAvgAudioEnergy) ) {
         // signal beat event to the listener
         fireBeatDetectedLowEvent();
     }
@@ -186,10 +190,8 @@ public class BeatDetectorByFrequency {
     }
     
     sampleAvgAudioEnergy = (double)energySum / (double)((k*1.0)/2.0);
-    mRunningSoundAvg[1] += sampleAvgAudioEnergy;
-    
     // Check for a mid frequency band beat
-    if( (sampleAvgAudioEnergy >  mCurrentAvgEnergyOneSec[1]) && (mCurrentAvgEnergyOneSec[1] > 0) ) {
+    if( mBandStats[1].isPeak(sampleAvgAudioEnergy) ) {
         fireBeatDetectedMidEvent();
     }
     
@@ -203,10 +205,8 @@ public class BeatDetectorByFrequency {
     }
     
     sampleAvgAudioEnergy = (double)energySum / (double)((k*1.0)/2.0);
-    mRunningSoundAvg[2] += sampleAvgAudioEnergy;
-    
     // Check for a high frequency band beat
-    if( (sampleAvgAudioEnergy >  mCurrentAvgEnergyOneSec[2]) && (mCurrentAvgEnergyOneSec[2] > 0) ) {
+    if( mBandStats[2].isPeak(sampleAvgAudioEnergy) ) {
         fireBeatDetectedHighEvent();
     }
 
@@ -217,22 +217,6 @@ public class BeatDetectorByFrequency {
 //        // signal beat event to the listener
 //        fireBeatDetectedLowEvent();
 //    }
-
-    mNumberOfSamplesInOneSec++;
-    // Check if one second has gone by
-    if( (System.currentTimeMillis() - mSystemTimeStartSec) > 1000 ) {
-        // Compute the average sound energy of a sample over a 1 second period
-        mCurrentAvgEnergyOneSec[0] = mRunningSoundAvg[0] / mNumberOfSamplesInOneSec;
-        mCurrentAvgEnergyOneSec[1] = mRunningSoundAvg[1] / mNumberOfSamplesInOneSec;
-        mCurrentAvgEnergyOneSec[2] = mRunningSoundAvg[2] / mNumberOfSamplesInOneSec;
-
-        // reset variables for next iteration
-        mNumberOfSamplesInOneSec = 0;
-        mRunningSoundAvg[0] = 0.0;
-        mRunningSoundAvg[1] = 0.0;
-        mRunningSoundAvg[2] = 0.0;
-        mSystemTimeStartSec = System.currentTimeMillis();
-    }
   }
 
   /**
@@ -27,6 +27,9 @@ import android.view.GestureDetector;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import org.hermit.android.instruments.*;
+import org.hermit.android.io.AudioReader;
+import org.hermit.android.io.MicAudioSource;
+import org.hermit.dsp.FFTTransformer;
 import org.hermit.dsp.Window;
 
 
@@ -83,7 +86,7 @@ public class InstrumentPanel
         addInstrument(audioAnalyser);
         
         // On-screen debug stats display.
-        statsCreate(new String[] { "µs FFT", "Skip/s" });
+        statsCreate(new String[] { "µs FFT", "Skip/s", "µs Lag", "Tier" });
 
         //Gesture detection
         gesturedetector = new GestureDetector(this);
@@ -104,7 +107,7 @@ public class InstrumentPanel
         addInstrument(audioAnalyser);
 
         // On-screen debug stats display.
-        statsCreate(new String[] { "µs FFT", "Skip/s" });
+        statsCreate(new String[] { "µs FFT", "Skip/s", "µs Lag", "Tier" });
 
         //Gesture detection
         gesturedetector = new GestureDetector(this);
@@ -150,6 +153,47 @@ public class InstrumentPanel
     }
     
 
+    /**
+     * Capture audio in the device's native format: set the sample rate
+     * to the native rate, and the block size to a given period at that
+     * rate, rounded up to a size the FFT handles efficiently.  At
+     * 48 kHz, a 10 or 20 ms period gives blocks of 480 or 960 samples,
+     * which line up exactly with the device's audio buffers.
+     *
+     * @param   periodMs    The desired block duration, in ms.
+     */
+    public void setNativeAudioFormat(int periodMs) {
+        int rate = AudioReader.getNativeSampleRate(getContext());
+        setSampleRate(rate);
+        setBlockSize(FFTTransformer.fastSize(rate * periodMs / 1000));
+    }
+
+
+    /**
+     * Enable or disable low-latency capture from the mic.  This is only
+     * turned on if the device has a low-latency audio path; it takes
+     * effect when measurement next starts.
+     *
+     * @param   enable      true to capture with the smallest buffers.
+     * @return              true if low-latency capture is now enabled.
+     */
+    public boolean setLowLatencyCapture(boolean enable) {
+        enable = enable && AudioReader.hasLowLatencyInput(getContext());
+        audioAnalyser.setAudioSource(enable ? new MicAudioSource(true) : null);
+        return enable;
+    }
+
+
+    /**
+     * Get the quality tier the analysis is currently running at.
+     *
+     * @return              The current analysis tier.
+     */
+    public AnalysisGovernor.Tier getAnalysisTier() {
+        return audioAnalyser.getAnalysisTier();
+    }
+
+
     /**
      * Set the spectrum analyser windowing function for this instrument.
      * 
@@ -173,6 +217,18 @@ public class InstrumentPanel
     }
     
 
+    /**
+     * Set the hop between analysis windows.  A hop smaller than the
+     * block size overlaps the windows, giving a spectrum every hop.
+     * 
+     * @param   hop         The hop in samples, or 0 to take windows back
+     *                      to back.
+     */
+    public void setHopSize(int hop) {
+        audioAnalyser.setHopSize(hop);
+    }
+    
+
     /**
      * Set the histogram averaging window for this instrument.
      * 
@@ -218,25 +274,27 @@ public class InstrumentPanel
 		//Clear surface events
     	clearGauges();
 
-//    	//Clear analyse events
-//   		audioAnalyser.resetGauge();
-//
-//    	//Destroy last Gauges
-//    	sonagramGauge=null;
+    	//Clear analyse events
+   		audioAnalyser.resetGauge();
+
+    	//Destroy last Gauges
+    	sonagramGauge=null;
     	spectrumGauge=null;
 //    	powerGauge=null;
 //    	waveformGauge=null;
 //
-//    	//Create instruments, update and refresh
-    	//if ((i==InstrumentPanel.Instruments.SPECTRUM)||(i==InstrumentPanel.Instruments.SPECTRUM_SONAGRAM)||(i==InstrumentPanel.Instruments.SPECTRUM_P_W)) {
+    	//Create instruments, update and refresh.  The spectrum gauge does
+    	//the beat detection, so we always have one; it's only laid out
+    	//when it's wanted on screen.
         spectrumGauge = audioAnalyser.getSpectrumGauge(this);
-        addGauge(spectrumGauge);
-    	//}
-//
-//    	if ((i==InstrumentPanel.Instruments.SONAGRAM)||(i==InstrumentPanel.Instruments.SPECTRUM_SONAGRAM)||(i==InstrumentPanel.Instruments.SONAGRAM_P_W)) {
-//    			sonagramGauge = audioAnalyser.getSonagramGauge(this);
-//   	        	addGauge(sonagramGauge);
-//    	}
+        showSpectrum = (i==InstrumentPanel.Instruments.SPECTRUM)||(i==InstrumentPanel.Instruments.SPECTRUM_SONAGRAM)||(i==InstrumentPanel.Instruments.SPECTRUM_P_W);
+        if (showSpectrum)
+            addGauge(spectrumGauge);
+
+    	if ((i==InstrumentPanel.Instruments.SONAGRAM)||(i==InstrumentPanel.Instruments.SPECTRUM_SONAGRAM)||(i==InstrumentPanel.Instruments.SONAGRAM_P_W)) {
+    			sonagramGauge = audioAnalyser.getSonagramGauge(this);
+   	        	addGauge(sonagramGauge);
+    	}
 //
 //    	if ((i==InstrumentPanel.Instruments.SPECTRUM_P_W)||(i==InstrumentPanel.Instruments.SONAGRAM_P_W)) {
 //            waveformGauge = audioAnalyser.getWaveformGauge(this);
@@ -293,10 +351,10 @@ public class InstrumentPanel
         // Set the gauge geometries.
 //        if (waveformGauge!=null)
 //        	waveformGauge.setGeometry(waveRect);
-//        if (spectrumGauge!=null)
-//        	spectrumGauge.setGeometry(specRect);
-//        if (sonagramGauge!=null)
-//        	sonagramGauge.setGeometry(sonaRect);
+        if (spectrumGauge!=null && showSpectrum)
+        	spectrumGauge.setGeometry(specRect);
+        if (sonagramGauge!=null)
+        	sonagramGauge.setGeometry(sonaRect);
 //        if (powerGauge!=null)
 //        	powerGauge.setGeometry(powerRect);
     }
@@ -318,8 +376,8 @@ public class InstrumentPanel
 
     	//Init
 //        waveRect = new Rect(0,0,0,0);
-//    	specRect = new Rect(0,0,0,0);
-//    	sonaRect = new Rect(0,0,0,0);
+    	specRect = new Rect(0,0,0,0);
+    	sonaRect = new Rect(0,0,0,0);
 //    	powerRect = new Rect(0,0,0,0);
 //
 //        if (waveformGauge!=null) {
@@ -338,18 +396,19 @@ public class InstrumentPanel
 //                specRect = new Rect(x, y, x + col, height - gutter);
 //            else
 //                sonaRect = new Rect(x, y, x + col, height - gutter);
-//        } else if ((spectrumGauge!=null)&&(sonagramGauge!=null)) {
-//        	//Spectrum + Sonagram
-//            specRect = new Rect(x, y, x + col, height - gutter);
-//            x += col + gutter;
-//            sonaRect = new Rect(x, y, x + col, height - gutter);
-//        } else {
-//        	//Spectrum or Sonagram fullscreen
-//            if (spectrumGauge!=null)
-//                specRect = new Rect(x, y, width - gutter, height - gutter);
-//            else
-//                sonaRect = new Rect(x, y, width - gutter, height - gutter);
-//        }
+//        } else
+        if (showSpectrum&&(sonagramGauge!=null)) {
+        	//Spectrum + Sonagram
+            specRect = new Rect(x, y, x + col, height - gutter);
+            x += col + gutter;
+            sonaRect = new Rect(x, y, x + col, height - gutter);
+        } else {
+        	//Spectrum or Sonagram fullscreen
+            if (showSpectrum)
+                specRect = new Rect(x, y, width - gutter, height - gutter);
+            else
+                sonaRect = new Rect(x, y, width - gutter, height - gutter);
+        }
      }
 
 
@@ -369,8 +428,8 @@ public class InstrumentPanel
 
     	//Init
 //        waveRect = new Rect(0,0,0,0);
-//    	specRect = new Rect(0,0,0,0);
-//    	sonaRect = new Rect(0,0,0,0);
+    	specRect = new Rect(0,0,0,0);
+    	sonaRect = new Rect(0,0,0,0);
 //    	powerRect = new Rect(0,0,0,0);
 
 //        if (waveformGauge!=null) {
@@ -390,22 +449,23 @@ public class InstrumentPanel
 //            y += unit * 2 + gutter;
 //            powerRect = new Rect(x, y, x + col, y + unit);
 //        }
-//        else if ((spectrumGauge!=null)&&(sonagramGauge!=null)) {
-//            // Divide the display into two vertical elements
-//            int unit = (height - gutter * 3) / 2;
-//
-//            //Spectrum + Sonagram
-//            specRect = new Rect(x, y, x + col, y + unit);
-//            y += unit + gutter;
-//            sonaRect = new Rect(x, y, x + col, y + unit);
-//        }
-//        else {
-//            //Spectrum or Sonagram fullscreen
-//            if (spectrumGauge!=null)
-//                specRect = new Rect(x, y, width - gutter, height - gutter);
-//            else
-//                sonaRect = new Rect(x, y, width - gutter, height - gutter);
-//        }
+//        else
+        if (showSpectrum&&(sonagramGauge!=null)) {
+            // Divide the display into two vertical elements
+            int unit = (height - gutter * 3) / 2;
+
+            //Spectrum + Sonagram
+            specRect = new Rect(x, y, x + col, y + unit);
+            y += unit + gutter;
+            sonaRect = new Rect(x, y, x + col, y + unit);
+        }
+        else {
+            //Spectrum or Sonagram fullscreen
+            if (showSpectrum)
+                specRect = new Rect(x, y, width - gutter, height - gutter);
+            else
+                sonaRect = new Rect(x, y, width - gutter, height - gutter);
+        }
     }
 
 
@@ -600,13 +660,16 @@ public class InstrumentPanel
 //    // The gauges associated with this instrument.
 //    private WaveformGauge waveformGauge = null;
     private SpectrumGauge spectrumGauge = null;
-//    private SonagramGauge sonagramGauge = null;
+    private SonagramGauge sonagramGauge = null;
+
+    // Whether the spectrum gauge is shown, as opposed to just analysing.
+    private boolean showSpectrum = true;
 //    private PowerGauge powerGauge = null;
 
     // Bounding rectangles for the waveform, spectrum, sonagram, and VU meter displays.
 //    private Rect waveRect = null;
-//    private Rect specRect = null;
-//    private Rect sonaRect = null;
+    private Rect specRect = null;
+    private Rect sonaRect = null;
 //    private Rect powerRect = null;
 
 }
@@ -0,0 +1,148 @@
+package com.sdpdigital.glassblockbar.beatdetection;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * One frame of analysis output: the equalizer band levels for one audio
+ * block.  Frames are handed out by a {@link SpectrumFramePublisher}, and
+ * shared between all its subscribers without copying.
+ *
+ * <p>Frames are pooled.  A frame is only valid during the
+ * {@link SpectrumFramePublisher.Subscriber#onFrame(SpectrumFrame)} call
+ * which delivers it; to keep it longer, call {@link #retain()}, and then
+ * {@link #release()} when done.  While anyone holds a frame it is never
+ * changed; once the last holder lets go it goes back to the pool for
+ * re-use.
+ */
+public final class SpectrumFrame
+{
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create a frame.  Frames are only created by their publisher.
+     *
+     * @param   owner       The publisher whose pool this frame belongs to.
+     * @param   bands       The number of bands in the frame.
+     */
+    SpectrumFrame(SpectrumFramePublisher owner, int bands) {
+        publisher = owner;
+        levels = new double[bands];
+    }
+
+
+    // ******************************************************************** //
+    // Accessors.
+    // ******************************************************************** //
+
+    /**
+     * @return              The number of bands in the frame.
+     */
+    public int getBandCount() {
+        return levels.length;
+    }
+
+
+    /**
+     * Get the level of one band.
+     *
+     * @param   band        The band index.
+     * @return              The summed magnitude of the band.
+     */
+    public double getBand(int band) {
+        return levels[band];
+    }
+
+
+    /**
+     * @return              The sequence number of the audio block this
+     *                      frame came from.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+
+    /**
+     * @return              The time the last sample of the block was
+     *                      captured, in the System.nanoTime() time base.
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+
+    // ******************************************************************** //
+    // Reference Counting.
+    // ******************************************************************** //
+
+    /**
+     * Keep hold of this frame beyond the call which delivered it.  Each
+     * call must be matched by a call to {@link #release()}.
+     *
+     * @throws  IllegalStateException   The frame has already gone back
+     *                      to the pool.
+     */
+    public void retain() {
+        for (;;) {
+            final int r = refs.get();
+            if (r <= 0)
+                throw new IllegalStateException("bad retain: frame is free");
+            if (refs.compareAndSet(r, r + 1))
+                return;
+        }
+    }
+
+
+    /**
+     * Let go of this frame.  When the last holder lets go, the frame goes
+     * back to the pool, and must not be used again.
+     *
+     * @throws  IllegalStateException   The frame has already gone back
+     *                      to the pool.
+     */
+    public void release() {
+        final int r = refs.decrementAndGet();
+        if (r == 0)
+            publisher.recycle(this);
+        else if (r < 0)
+            throw new IllegalStateException("bad release: frame is free");
+    }
+
+
+    /**
+     * Fill in a frame taken from the pool, and give it one reference,
+     * held by the publisher.
+     *
+     * @param   bands       The band levels.
+     * @param   seq         Sequence number of the audio block.
+     * @param   time        Capture time of the audio block.
+     */
+    void fill(double[] bands, long seq, long time) {
+        System.arraycopy(bands, 0, levels, 0, levels.length);
+        sequence = seq;
+        captureTime = time;
+        refs.set(1);
+    }
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The publisher whose pool we go back to.
+    private final SpectrumFramePublisher publisher;
+
+    // The band levels, and the block they came from.
+    final double[] levels;
+    private long sequence = 0;
+    private long captureTime = 0;
+
+    // Number of holders of this frame; 0 while it's in the pool.
+    private final AtomicInteger refs = new AtomicInteger(0);
+
+}
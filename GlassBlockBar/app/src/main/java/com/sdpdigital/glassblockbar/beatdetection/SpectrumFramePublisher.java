@@ -0,0 +1,414 @@
+package com.sdpdigital.glassblockbar.beatdetection;
+
+
+import java.util.concurrent.Executor;
+
+
+/**
+ * A stream of {@link SpectrumFrame}s, shared by any number of
+ * subscribers.  Each frame is filled in once from the analysis output,
+ * and the same frame is handed to every subscriber; frames come from a
+ * pool, so in steady state publishing doesn't allocate.
+ *
+ * <p>Each subscriber says how it copes with frames arriving faster than
+ * it takes them, with a {@link Policy}; so a slow subscriber never holds
+ * up the analysis, and never builds up an unbounded backlog.  Each
+ * subscriber also gives the Executor it wants frames delivered on, e.g.
+ * one which posts to the main thread.  At most one delivery task per
+ * subscriber is outstanding on its Executor at any time; each task
+ * delivers every frame waiting for it.
+ *
+ * <p>{@link #publish(double[], long, long)} is called on the analysis
+ * thread.  Subscribing and cancelling are safe on any thread.
+ */
+public final class SpectrumFramePublisher
+{
+
+    // ******************************************************************** //
+    // Public Types.
+    // ******************************************************************** //
+
+    /**
+     * What a subscriber does when frames arrive faster than it takes
+     * them.
+     */
+    public enum Policy {
+        /** Keep only the latest frame; older ones are dropped. */
+        CONFLATE,
+
+        /**
+         * Keep up to a given number of frames; when that many are
+         * waiting, the oldest is dropped.
+         */
+        BUFFER,
+
+        /**
+         * Deliver at most one frame per given period; the latest frame
+         * when the period is up.
+         */
+        SAMPLE;
+    }
+
+
+    /**
+     * A receiver of frames.
+     */
+    public interface Subscriber {
+        /**
+         * A frame has arrived.  The frame is only valid during this call,
+         * unless the subscriber calls {@link SpectrumFrame#retain()}.
+         *
+         * @param   frame       The frame.
+         */
+        public abstract void onFrame(SpectrumFrame frame);
+    }
+
+
+    /**
+     * Listener for the stream gaining its first subscriber, or losing
+     * its last; so that whoever feeds it can stop working out frames
+     * which nobody wants.
+     */
+    public interface OnActiveListener {
+        /**
+         * The number of subscribers has gone to or from zero.  Called
+         * on the thread which subscribed or cancelled.
+         *
+         * @param   active      true if there are now subscribers.
+         */
+        public abstract void onActiveChanged(boolean active);
+    }
+
+
+    /**
+     * A subscriber's link to the publisher.
+     */
+    public final class Subscription
+    {
+
+        private Subscription(Subscriber sub, Policy pol, int param, Executor exec) {
+            subscriber = sub;
+            policy = pol;
+            executor = exec;
+            queue = new SpectrumFrame[pol == Policy.BUFFER ? param : 1];
+            periodNanos = pol == Policy.SAMPLE ? param * 1000000L : 0;
+        }
+
+
+        /**
+         * Stop receiving frames.  Frames waiting for delivery are
+         * dropped; a delivery which is already running finishes.
+         */
+        public void cancel() {
+            remove(this);
+            synchronized (this) {
+                cancelled = true;
+                while (count > 0)
+                    take().release();
+            }
+        }
+
+
+        /**
+         * @return              The number of frames dropped for this
+         *                      subscriber because it didn't keep up.
+         */
+        public synchronized long getDropped() {
+            return dropped;
+        }
+
+
+        /**
+         * Queue a frame for this subscriber, and schedule delivery if
+         * it's due.  Called on the analysis thread.
+         *
+         * @param   frame       The frame; we retain it while it's queued.
+         * @param   now         The current time, in the System.nanoTime()
+         *                      time base.
+         */
+        private void offer(SpectrumFrame frame, long now) {
+            final boolean schedule;
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                if (count == queue.length) {
+                    take().release();
+                    ++dropped;
+                }
+                frame.retain();
+                queue[(head + count) % queue.length] = frame;
+                ++count;
+
+                // Sampled subscribers are only scheduled once per period;
+                // frames in between just replace the waiting one.
+                schedule = !scheduled &&
+                           (policy != Policy.SAMPLE || now - lastScheduled >= periodNanos);
+                if (schedule) {
+                    scheduled = true;
+                    lastScheduled = now;
+                }
+            }
+
+            if (schedule) {
+                if (executor == null)
+                    drain();
+                else
+                    executor.execute(drainer);
+            }
+        }
+
+
+        /**
+         * Take the oldest waiting frame off the queue.  The caller must
+         * hold the lock, and the queue must not be empty.
+         *
+         * @return              The frame, still retained.
+         */
+        private SpectrumFrame take() {
+            final SpectrumFrame frame = queue[head];
+            queue[head] = null;
+            head = (head + 1) % queue.length;
+            --count;
+            return frame;
+        }
+
+
+        /**
+         * Deliver all the frames waiting for this subscriber.  This is
+         * the delivery task, run on the subscriber's Executor.
+         */
+        private void drain() {
+            for (;;) {
+                final SpectrumFrame frame;
+                synchronized (this) {
+                    if (count == 0 || cancelled) {
+                        scheduled = false;
+                        return;
+                    }
+                    frame = take();
+                }
+                try {
+                    subscriber.onFrame(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+
+
+        // The subscriber, its policy, and where it wants frames delivered;
+        // null to deliver on the analysis thread.
+        private final Subscriber subscriber;
+        private final Policy policy;
+        private final Executor executor;
+
+        // The delivery task.
+        private final Runnable drainer = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        // Frames waiting for delivery, oldest at head.
+        private final SpectrumFrame[] queue;
+        private int head = 0;
+        private int count = 0;
+
+        // Minimum time between deliveries for a sampled subscriber, in ns;
+        // and when delivery was last scheduled.
+        private final long periodNanos;
+        private long lastScheduled = Long.MIN_VALUE / 2;
+
+        // True if a delivery task is outstanding; true once cancelled; and
+        // the number of frames dropped.
+        private boolean scheduled = false;
+        private boolean cancelled = false;
+        private long dropped = 0;
+
+    }
+
+
+    // ******************************************************************** //
+    // Subscriptions.
+    // ******************************************************************** //
+
+    /**
+     * Subscribe to the stream.
+     *
+     * @param   subscriber  The subscriber.
+     * @param   policy      What to do if frames arrive faster than the
+     *                      subscriber takes them.
+     * @param   param       For BUFFER, the number of frames to keep; for
+     *                      SAMPLE, the minimum time between deliveries,
+     *                      in ms.  Ignored for CONFLATE.
+     * @param   executor    Executor to deliver frames on; null to
+     *                      deliver them directly on the analysis thread,
+     *                      for subscribers which never block.
+     * @return              The subscription, which is used to cancel it.
+     * @throws  IllegalArgumentException    Invalid parameter.
+     */
+    public Subscription subscribe(Subscriber subscriber, Policy policy,
+                                  int param, Executor executor) {
+        if (policy == Policy.BUFFER && param < 1)
+            throw new IllegalArgumentException("bad buffer size: " + param);
+        if (policy == Policy.SAMPLE && param < 0)
+            throw new IllegalArgumentException("bad sample period: " + param);
+        final Subscription sub = new Subscription(subscriber, policy, param, executor);
+        final boolean first;
+        synchronized (subscriptionLock) {
+            final Subscription[] old = subscriptions;
+            final Subscription[] subs = new Subscription[old.length + 1];
+            System.arraycopy(old, 0, subs, 0, old.length);
+            subs[old.length] = sub;
+            subscriptions = subs;
+            first = old.length == 0;
+        }
+        if (first)
+            activeChanged(true);
+        return sub;
+    }
+
+
+    /**
+     * Remove a subscription from the list.
+     *
+     * @param   sub         The subscription to remove.
+     */
+    private void remove(Subscription sub) {
+        boolean last = false;
+        synchronized (subscriptionLock) {
+            final Subscription[] old = subscriptions;
+            for (int i = 0; i < old.length; ++i) {
+                if (old[i] == sub) {
+                    final Subscription[] subs = new Subscription[old.length - 1];
+                    System.arraycopy(old, 0, subs, 0, i);
+                    System.arraycopy(old, i + 1, subs, i, old.length - i - 1);
+                    subscriptions = subs;
+                    last = subs.length == 0;
+                    break;
+                }
+            }
+        }
+        if (last)
+            activeChanged(false);
+    }
+
+
+    /**
+     * Set the listener to be told when the stream gains its first
+     * subscriber or loses its last.
+     *
+     * @param   listener    The listener; null for none.
+     */
+    public void setOnActiveListener(OnActiveListener listener) {
+        activeListener = listener;
+    }
+
+
+    /**
+     * Tell the active listener, if any, that the number of subscribers
+     * has gone to or from zero.
+     *
+     * @param   active      true if there are now subscribers.
+     */
+    private void activeChanged(boolean active) {
+        final OnActiveListener listener = activeListener;
+        if (listener != null)
+            listener.onActiveChanged(active);
+    }
+
+
+    /**
+     * @return              true if anyone is subscribed.
+     */
+    public boolean hasSubscribers() {
+        return subscriptions.length != 0;
+    }
+
+
+    // ******************************************************************** //
+    // Publishing.
+    // ******************************************************************** //
+
+    /**
+     * Publish a frame to all subscribers.  The levels are copied once
+     * into a pooled frame, which all the subscribers share.  Called on
+     * the analysis thread.
+     *
+     * @param   bands       The band levels; not kept.
+     * @param   sequence    Sequence number of the audio block.
+     * @param   captureTime Time the last sample of the block was
+     *                      captured, in the System.nanoTime() time base.
+     */
+    public void publish(double[] bands, long sequence, long captureTime) {
+        final Subscription[] subs = subscriptions;
+        if (subs.length == 0)
+            return;
+
+        final SpectrumFrame frame = obtain(bands.length);
+        frame.fill(bands, sequence, captureTime);
+        final long now = System.nanoTime();
+        for (int i = 0; i < subs.length; ++i)
+            subs[i].offer(frame, now);
+        frame.release();
+    }
+
+
+    // ******************************************************************** //
+    // Frame Pool.
+    // ******************************************************************** //
+
+    /**
+     * Get a free frame from the pool, or make one if there are none.
+     *
+     * @param   bands       The number of bands the frame needs.
+     * @return              A free frame.
+     */
+    private synchronized SpectrumFrame obtain(int bands) {
+        while (poolCount > 0) {
+            final SpectrumFrame frame = pool[--poolCount];
+            pool[poolCount] = null;
+            if (frame.levels.length == bands)
+                return frame;
+        }
+        return new SpectrumFrame(this, bands);
+    }
+
+
+    /**
+     * Return a frame to the pool.  Called when its last holder lets go.
+     *
+     * @param   frame       The frame, which is now free.
+     */
+    synchronized void recycle(SpectrumFrame frame) {
+        if (poolCount < pool.length)
+            pool[poolCount++] = frame;
+    }
+
+
+    // ******************************************************************** //
+    // Class Data.
+    // ******************************************************************** //
+
+    // Most free frames we keep in the pool.
+    private static final int POOL_SIZE = 32;
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // Our subscribers.  The array is replaced, never changed, so
+    // publish() can walk it without a lock or an iterator.
+    private final Object subscriptionLock = new Object();
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    // Listener for the subscriber count going to or from zero.
+    private volatile OnActiveListener activeListener = null;
+
+    // Free frames.
+    private final SpectrumFrame[] pool = new SpectrumFrame[POOL_SIZE];
+    private int poolCount = 0;
+
+}
@@ -781,6 +781,7 @@ public abstract class SurfaceRunner
         // Make the values and counts arrays.
         perfStats = new int[nstats];
         perfCounts = new int[nstats];
+        perfIsValue = new boolean[nstats];
     }
     
     
@@ -849,6 +850,26 @@ public abstract class SurfaceRunner
         }
     }
     
+
+    /**
+     * Set a performance value.  This method is used for quantities
+     * which are neither counts nor timings, such as a mode or a level;
+     * the latest value set is displayed as it is, and kept until it is
+     * set again.
+     * 
+     * @param   index       Index of the stat to set (its index in the
+     *                      "labels" argument to
+     *                      {@link #statsCreate(String[] labels)}).
+     * @param   val         The current value.
+     */
+    public void statsValue(int index, int val) {
+        int i = index + 3;
+        if (showPerf && i >= 0 && i < perfStats.length) {
+            perfStats[i] = val;
+            perfIsValue[i] = true;
+        }
+    }
+    
    
     /**
      * Draw the stats into perfBitmap.
@@ -858,10 +879,12 @@ public abstract class SurfaceRunner
         for (int i = 0; i < perfStats.length && i < perfBuffers.length; ++i) {
             int v = perfStats[i];
             int c = perfCounts[i];
-            if (c != 0)
-                v /= c;
-            else
-                v = v * 1000 / STATS_UPDATE;
+            if (!perfIsValue[i]) {
+                if (c != 0)
+                    v /= c;
+                else
+                    v = v * 1000 / STATS_UPDATE;
+            }
             CharFormatter.formatInt(perfBuffers[i], 0, v, 6, false);
         }
         
@@ -871,9 +894,11 @@ public abstract class SurfaceRunner
             perfCanvas.drawText(perfBuffers[i], 0, perfBuffers[i].length,
                                 0, i * 12 + 12, perfPaint);
         
-        // Reset all stored stats.
+        // Reset all stored stats, apart from values, which hold until
+        // they're next set.
         for (int i = 0; i < perfStats.length && i < perfBuffers.length; ++i) {
-            perfStats[i] = 0;
+            if (!perfIsValue[i])
+                perfStats[i] = 0;
             perfCounts[i] = 0;
         }
     }
@@ -1165,8 +1190,10 @@ public abstract class SurfaceRunner
     private String[] perfAppLabels = null;
     
     // Stored perf stats values for all stats.  Counters for each stat.
+    // Flags for the stats which are plain values, not counts or times.
     private int[] perfStats = null;
     private int[] perfCounts = null;
+    private boolean[] perfIsValue = null;
 
     // Character buffers for performance / stats annotations.
     private char[][] perfBuffers;
@@ -0,0 +1,289 @@
+
+/**
+ * org.hermit.android.instrument: graphical instruments for Android.
+ *
+ * <p>These classes provide input and display functions for creating on-screen
+ * instruments of various kinds in Android apps.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.instruments;
+
+
+/**
+ * Keeps the audio analysis within the time available, by trading off
+ * quality when the device can't keep up.
+ *
+ * <p>The governor is told how long each audio block took to process,
+ * and compares that with the time the block represents.  If the
+ * analysis is using too much of the available time, or blocks are being
+ * dropped, it steps down a tier; when there is plenty of headroom again
+ * it steps back up.  The tiers are cumulative, and go in this order:
+ * analyse only every other block; use an FFT half the size; stop
+ * rendering the spectrum display.
+ *
+ * <p>Stepping down is quick, so that we lose as little audio as
+ * possible; stepping up waits for a sustained run of headroom, so that
+ * we don't flap between tiers.
+ *
+ * <p>This class is not thread-safe; it's meant to be used by the
+ * analysis thread only, apart from {@link #getTier()}.
+ */
+public final class AnalysisGovernor
+{
+
+    // ******************************************************************** //
+    // Public Constants.
+    // ******************************************************************** //
+
+    /**
+     * The quality tiers, from best to cheapest.
+     */
+    public enum Tier {
+        /** Analyse every block at full size, and render. */
+        FULL,
+
+        /** Analyse only every other block. */
+        DECIMATE,
+
+        /** As DECIMATE, and use an FFT half the size. */
+        SMALL_FFT,
+
+        /** As SMALL_FFT, and don't render the spectrum display. */
+        NO_RENDER;
+    }
+
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create a governor, starting at full quality.
+     *
+     * @param   blockNanos  The time each audio block represents, in ns.
+     */
+    public AnalysisGovernor(long blockNanos) {
+        setBlockPeriod(blockNanos);
+    }
+
+
+    // ******************************************************************** //
+    // Configuration.
+    // ******************************************************************** //
+
+    /**
+     * Set the time each audio block represents.  This resets the
+     * governor to full quality.
+     *
+     * @param   blockNanos  The block period, in ns.
+     * @throws  IllegalArgumentException    Invalid period.
+     */
+    public void setBlockPeriod(long blockNanos) {
+        if (blockNanos <= 0)
+            throw new IllegalArgumentException("bad block period: " + blockNanos);
+        blockPeriod = blockNanos;
+        reset();
+    }
+
+
+    /**
+     * Hold the analysis at a given tier, whatever the load; e.g. to
+     * compare the tiers, or to benchmark one.
+     *
+     * @param   fixed       The tier to hold at; null to let the governor
+     *                      choose, starting again from full quality.
+     */
+    public void setFixedTier(Tier fixed) {
+        fixedTier = fixed;
+        reset();
+    }
+
+
+    /**
+     * Go back to full quality, or the fixed tier if there is one, and
+     * forget all measurements.
+     */
+    public void reset() {
+        tier = fixedTier != null ? fixedTier : Tier.FULL;
+        busyTime = 0;
+        audioTime = 0;
+        dropped = 0;
+        headroomRuns = 0;
+    }
+
+
+    // ******************************************************************** //
+    // Accessors.
+    // ******************************************************************** //
+
+    /**
+     * Get the current quality tier.  This may be called from any thread.
+     *
+     * @return              The current tier.
+     */
+    public Tier getTier() {
+        return tier;
+    }
+
+
+    /**
+     * Get the share of the available time used by the analysis, as
+     * measured over the last complete evaluation period.
+     *
+     * @return              The load; 1 means analysis only just keeps up.
+     */
+    public float getLoad() {
+        return load;
+    }
+
+
+    /**
+     * Say whether a block should be analysed.
+     *
+     * @param   sequence    The block's sequence number.
+     * @return              true to analyse it; false to skip it.
+     */
+    public boolean shouldAnalyse(long sequence) {
+        return tier == Tier.FULL || (sequence & 1) == 0;
+    }
+
+
+    /**
+     * Say whether to use the smaller FFT.
+     *
+     * @return              true to use an FFT half the normal size.
+     */
+    public boolean useSmallFFT() {
+        return tier.compareTo(Tier.SMALL_FFT) >= 0;
+    }
+
+
+    /**
+     * Say whether to render the spectrum display.
+     *
+     * @return              true to render.
+     */
+    public boolean shouldRender() {
+        return tier != Tier.NO_RENDER;
+    }
+
+
+    // ******************************************************************** //
+    // Measurement.
+    // ******************************************************************** //
+
+    /**
+     * Record that blocks were lost before they reached the analysis.
+     *
+     * @param   count       The number of blocks lost.
+     */
+    public void blocksDropped(int count) {
+        if (count > 0) {
+            dropped += count;
+            audioTime += count * blockPeriod;
+        }
+    }
+
+
+    /**
+     * Record that a block has been dealt with, and re-assess the tier
+     * if an evaluation period has passed.
+     *
+     * @param   busyNanos   The time spent processing the block, in ns;
+     *                      0 if it was skipped.
+     */
+    public void blockDone(long busyNanos) {
+        busyTime += busyNanos;
+        audioTime += blockPeriod;
+        if (audioTime >= EVAL_PERIOD)
+            evaluate();
+    }
+
+
+    /**
+     * Re-assess the tier at the end of an evaluation period.
+     */
+    private void evaluate() {
+        load = (float) busyTime / (float) audioTime;
+        if (fixedTier == null)
+            chooseTier();
+
+        busyTime = 0;
+        audioTime = 0;
+        dropped = 0;
+    }
+
+
+    /**
+     * Step the tier up or down, based on the period just measured.
+     */
+    private void chooseTier() {
+        final Tier[] tiers = Tier.values();
+        if (dropped > 0 || load > STEP_DOWN_LOAD) {
+            headroomRuns = 0;
+            if (tier.ordinal() < tiers.length - 1)
+                tier = tiers[tier.ordinal() + 1];
+        } else if (load < STEP_UP_LOAD) {
+            if (++headroomRuns >= STEP_UP_PERIODS && tier.ordinal() > 0) {
+                tier = tiers[tier.ordinal() - 1];
+                headroomRuns = 0;
+            }
+        } else
+            headroomRuns = 0;
+    }
+
+
+    // ******************************************************************** //
+    // Class Data.
+    // ******************************************************************** //
+
+    // Amount of audio over which we measure the load, in ns.
+    private static final long EVAL_PERIOD = 250000000L;
+
+    // Load above which we step down a tier.
+    private static final float STEP_DOWN_LOAD = 0.75f;
+
+    // Load below which we may step up a tier.  Each step down roughly
+    // halves the load, so this is well under half STEP_DOWN_LOAD, so that
+    // stepping up doesn't immediately put us back over it.
+    private static final float STEP_UP_LOAD = 0.3f;
+
+    // Number of consecutive evaluation periods below STEP_UP_LOAD
+    // needed before we step up.
+    private static final int STEP_UP_PERIODS = 8;
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The time each block represents, in ns.
+    private long blockPeriod;
+
+    // The current tier; and the tier we're held at, or null if we choose.
+    private volatile Tier tier = Tier.FULL;
+    private Tier fixedTier = null;
+
+    // Processing time and audio time in the current evaluation period,
+    // in ns, and the number of blocks dropped in it.
+    private long busyTime = 0;
+    private long audioTime = 0;
+    private int dropped = 0;
+
+    // Load measured over the last evaluation period.
+    private float load = 0;
+
+    // Number of consecutive evaluation periods with headroom.
+    private int headroomRuns = 0;
+
+}
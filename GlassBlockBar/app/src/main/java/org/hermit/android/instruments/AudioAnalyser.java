@@ -19,10 +19,16 @@ package org.hermit.android.instruments;
  * GNU General Public License for more details.
  */
 
+import java.util.concurrent.locks.LockSupport;
+
 import android.os.Bundle;
 import org.hermit.android.core.SurfaceRunner;
 import org.hermit.android.io.AudioReader;
+import org.hermit.android.io.AudioRing;
+import org.hermit.android.io.AudioSource;
+import org.hermit.android.io.MicAudioSource;
 import org.hermit.dsp.FFTTransformer;
+import org.hermit.dsp.SpectrogramRing;
 import org.hermit.dsp.Window;
 
 /**
@@ -33,6 +39,29 @@ import org.hermit.dsp.Window;
 public class AudioAnalyser extends Instrument
 {
 
+    // ******************************************************************** //
+    // Public Classes.
+    // ******************************************************************** //
+
+    /**
+     * Listener for the audio input stopping.
+     */
+    public interface OnInputEndedListener {
+        /**
+         * The audio input has stopped, and everything read before it
+         * stopped has been analysed.  This is called on the analysis
+         * thread, which then finishes; the caller should still call
+         * {@link AudioAnalyser#measureStop()}, from another thread,
+         * before starting again.
+         *
+         * @param   error   AudioReader.Listener.ERR_OK if the source came
+         *                  to the end of its data; otherwise the ERR_XXX
+         *                  code of the error which stopped the reader.
+         */
+        public abstract void onInputEnded(int error);
+    }
+
+
     // ******************************************************************** //
     // Constructor.
     // ******************************************************************** //
@@ -50,14 +79,23 @@ public class AudioAnalyser extends Instrument
         audioReader = new AudioReader();
         
         spectrumAnalyser = new FFTTransformer(inputBlockSize, windowFunction);
+        createSmallAnalyser();
+        governor = new AnalysisGovernor(blockNanos(inputBlockSize));
         
         // Allocate the spectrum data.
-        spectrumData = new float[inputBlockSize / 2];
-        spectrumComplexData = new float[inputBlockSize / 2];
-        spectrumHist = new float[inputBlockSize / 2][historyLen];
-        spectrumIndex = 0;
+        spectrumPower = new float[inputBlockSize / 2];
+    }
+
 
-        biasRange = new float[2];
+    /**
+     * Create an AudioAnalyser which runs without any display.  Its
+     * spectrum gauge, got with {@link #getSpectrumGauge(SurfaceRunner)
+     * getSpectrumGauge(null)}, still analyses the audio and tells its
+     * listeners, but never draws; and the caller drives it by calling
+     * {@link #measureStart()} and {@link #measureStop()} directly.
+     */
+    public AudioAnalyser() {
+        this(null, null);
     }
 
 
@@ -76,28 +114,46 @@ public class AudioAnalyser extends Instrument
         // The spectrum gauge needs to know this.
         if (spectrumGauge != null)
             spectrumGauge.setSampleRate(sampleRate);
-//
-//        // The sonagram gauge needs to know this.
-//        if (sonagramGauge != null)
-//            sonagramGauge.setSampleRate(sampleRate);
+
+        // The sonagram gauge needs to know this.
+        if (sonagramGauge != null)
+            sonagramGauge.setSampleRate(sampleRate);
     }
 
     /**
      * Set the input block size for this instrument.
      * 
      * @param   size        The desired block size, in samples.  Typical
-     *                      values would be 256, 512, or 1024.  Larger block
-     *                      sizes will mean more work to analyse the spectrum.
+     *                      values would be 256, 512, or 1024; or 480 or 960
+     *                      to match 10 or 20 ms audio buffers at 48 kHz.
+     *                      Must be even.  Larger block sizes will mean more
+     *                      work to analyse the spectrum.
      */
     public void setBlockSize(int size) {
+        if (size == inputBlockSize)
+            return;
         inputBlockSize = size;
 
         spectrumAnalyser = new FFTTransformer(inputBlockSize, windowFunction);
+        createSmallAnalyser();
 
         // Allocate the spectrum data.
-        spectrumData = new float[inputBlockSize / 2];
-        spectrumComplexData = new float[inputBlockSize / 2];
-        spectrumHist = new float[inputBlockSize / 2][historyLen];
+        spectrumPower = new float[inputBlockSize / 2];
+
+        // The sonagram gauge needs to know this.
+        if (sonagramGauge != null)
+            sonagramGauge.setBlockSize(inputBlockSize);
+    }
+
+
+    /**
+     * Set up the half-size FFT which the governor falls back to when
+     * the device can't keep up.
+     */
+    private void createSmallAnalyser() {
+        smallBlockSize = Math.max(2, inputBlockSize / 4 * 2);
+        smallAnalyser = new FFTTransformer(smallBlockSize, windowFunction);
+        smallSpectrumPower = new float[smallBlockSize / 2];
     }
     
 
@@ -111,6 +167,7 @@ public class AudioAnalyser extends Instrument
     public void setWindowFunc(Window.Function func) {
         windowFunction = func;
         spectrumAnalyser.setWindowFunc(func);
+        smallAnalyser.setWindowFunc(func);
     }
     
 
@@ -123,19 +180,107 @@ public class AudioAnalyser extends Instrument
     public void setDecimation(int rate) {
         sampleDecimate = rate;
     }
+
+
+    /**
+     * Set the hop between analysis windows.  With a hop smaller than the
+     * block size, the windows overlap, and we get a spectrum every hop
+     * instead of every block; e.g. a 256-sample block with a 64-sample
+     * hop gives 4 times the time resolution for the same FFT size.  The
+     * new setting takes effect when measurement next starts.
+     * 
+     * @param   hop         The hop in samples, or 0 to take windows back
+     *                      to back (allowing for decimation).
+     */
+    public void setHopSize(int hop) {
+        hopSize = hop;
+    }
+
+
+    /**
+     * Set where this instrument's audio comes from.  The new setting
+     * takes effect when measurement next starts.
+     * 
+     * @param   source      The audio source, or null to use the mic.
+     */
+    public void setAudioSource(AudioSource source) {
+        audioSource = source;
+    }
+
+
+    /**
+     * Set the listener to be told when the audio input stops, because
+     * of an error or because the source has no more data.  Without a
+     * display, this is the only way to find out about input errors.
+     * 
+     * @param   listener    The listener, or null for none.
+     */
+    public void setOnInputEndedListener(OnInputEndedListener listener) {
+        onInputEndedListener = listener;
+    }
+
+
+    /**
+     * Get the quality tier the analysis is currently running at.  This
+     * drops when the device can't keep up with the audio, and recovers
+     * when it can.  This may be called from any thread.
+     * 
+     * @return              The current analysis tier.
+     */
+    public AnalysisGovernor.Tier getAnalysisTier() {
+        return governor.getTier();
+    }
+
+
+    /**
+     * Hold the analysis at a given quality tier, instead of letting it
+     * follow the load.  The new setting takes effect when measurement
+     * next starts.
+     * 
+     * @param   tier        The tier to hold at; null to follow the load,
+     *                      as by default.
+     */
+    public void setAnalysisTier(AnalysisGovernor.Tier tier) {
+        fixedTier = tier;
+    }
     
     
     /**
-     * Set the histogram averaging window for this instrument.
+     * Set the histogram averaging window for this instrument.  The new
+     * setting takes effect when measurement next starts.
      * 
-     * @param   len         The averaging interval.  1 means no averaging.
+     * @param   len         The averaging interval, in frames.  1 means
+     *                      no averaging.
      */
     public void setAverageLen(int len) {
         historyLen = len;
-        
-        // Set up the history buffer.
-        spectrumHist = new float[inputBlockSize / 2][historyLen];
-        spectrumIndex = 0;
+    }
+
+
+    /**
+     * Set whether to keep a spectrogram.  Keeping it costs a pass over
+     * the spectrum every hop, so it's only kept if asked for.  The new
+     * setting takes effect when measurement next starts.
+     * 
+     * @param   keep        If true, keep a spectrogram; false by default.
+     */
+    public void setKeepSpectrogram(boolean keep) {
+        keepSpectrogram = keep;
+    }
+
+
+    /**
+     * Get the spectrogram: the recent history of the spectrum, one frame
+     * per hop, with a smoothed spectrum averaged over
+     * {@link #setAverageLen(int)} frames.  This is only safe to use on
+     * the analysis thread; e.g. from a gauge's listeners.
+     * 
+     * @return              The spectrogram; null until measurement starts,
+     *                      or if {@link #setKeepSpectrogram(boolean)}
+     *                      hasn't asked for one.
+     */
+    public SpectrogramRing getSpectrogram() {
+        return spectrogram;
     }
     
 
@@ -159,19 +304,65 @@ public class AudioAnalyser extends Instrument
      */
     @Override
     public void measureStart() {
-        audioProcessed = audioSequence = 0;
+        audioProcessed = 0;
         readError = AudioReader.Listener.ERR_OK;
-        
-        audioReader.startReader(sampleRate, inputBlockSize * sampleDecimate, new AudioReader.Listener() {
+        inputEnded = false;
+
+        // Size the ring to hold RING_TIME_MS of audio, so that a slow
+        // frame or two doesn't lose any input.
+        // The reader delivers one hop at a time.  When windows overlap,
+        // the ring keeps enough history behind each hop for a whole
+        // window to be read straight out of it.
+        int block = hopSize > 0 ? hopSize : inputBlockSize * sampleDecimate;
+        int history = (inputBlockSize + block - 1) / block - 1;
+        int capacity = (int) ((long) sampleRate * RING_TIME_MS / 1000 / block) + 1;
+        if (capacity < RING_MIN_BLOCKS)
+            capacity = RING_MIN_BLOCKS;
+        audioRing = new AudioRing(block, capacity, history);
+        governor.setBlockPeriod(blockNanos(block));
+        governor.setFixedTier(fixedTier);
+
+        // The beat detection history is measured in blocks.
+        if (spectrumGauge != null)
+            spectrumGauge.setFramePeriod(blockNanos(block));
+
+        // If wanted, keep SPECTROGRAM_TIME_MS of spectra, one per hop.
+        SpectrogramRing spec = null;
+        if (keepSpectrogram) {
+            int frames = Math.max(historyLen,
+                                  (int) ((long) sampleRate * SPECTROGRAM_TIME_MS / 1000 / block));
+            spec = new SpectrogramRing(inputBlockSize / 2, frames, blockNanos(block));
+            spec.setBoxcar(Math.max(1, historyLen));
+        }
+        spectrogram = spec;
+
+        AudioSource source = audioSource != null ? audioSource : new MicAudioSource();
+        audioReader.startReader(source, sampleRate, audioRing, new AudioReader.Listener() {
             @Override
-            public final void onReadComplete(short[] buffer) {
-                receiveAudio(buffer);
+            public final void onReadComplete(short[] buffer, int offset, int count) {
+                receiveAudio(buffer, offset, count);
             }
             @Override
             public void onReadError(int error) {
                 handleError(error);
             }
+            @Override
+            public void onReadEnd() {
+                inputEnded = true;
+                wakeAnalysis();
+            }
         });
+
+        // Analyse on our own thread, so that beat detection doesn't wait
+        // for the display.
+        synchronized (this) {
+            analysing = true;
+            analysisThread = new Thread(new Runnable() {
+                @Override
+                public void run() { analysisRun(); }
+            }, "Audio Analyser");
+            analysisThread.start();
+        }
     }
 
 
@@ -181,6 +372,21 @@ public class AudioAnalyser extends Instrument
     @Override
     public void measureStop() {
         audioReader.stopReader();
+
+        Thread thread;
+        synchronized (this) {
+            analysing = false;
+            thread = analysisThread;
+            analysisThread = null;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
     }
     
 
@@ -196,25 +402,11 @@ public class AudioAnalyser extends Instrument
     // Gauges.
     // ******************************************************************** //
 
-    /**
-     * Get a waveform gauge for this audio analyser.
-     * 
-     * @param   surface     The surface in which the gauge will be displayed.
-     * @return              A gauge which will display the audio waveform.
-//     */
-//    public WaveformGauge getWaveformGauge(SurfaceRunner surface) {
-//        if (waveformGauge != null)
-//            throw new RuntimeException("Already have a WaveformGauge" +
-//                                       " for this AudioAnalyser");
-//        waveformGauge = new WaveformGauge(surface);
-//        return waveformGauge;
-//    }
-//
-
     /**
      * Get a spectrum analyser gauge for this audio analyser.
      *
-     * @param   surface     The surface in which the gauge will be displayed.
+     * @param   surface     The surface in which the gauge will be displayed;
+     *                      null if it won't be displayed.
      * @return              A gauge which will display the audio waveform.
      */
     public SpectrumGauge getSpectrumGauge(SurfaceRunner surface) {
@@ -230,46 +422,28 @@ public class AudioAnalyser extends Instrument
      * Get a sonagram analyser gauge for this audio analyser.
      * 
      * @param   surface     The surface in which the gauge will be displayed.
-     * @return              A gauge which will display the audio waveform
-//	 *						as a sonogram.
-//     */
-//    public SonagramGauge getSonagramGauge(SurfaceRunner surface) {
-//        if (sonagramGauge != null)
-//            throw new RuntimeException("Already have a SonagramGauge" +
-//                                       " for this AudioAnalyser");
-//        sonagramGauge = new SonagramGauge(surface, sampleRate, inputBlockSize);
-//        return sonagramGauge;
-//    }
+     * @return              A gauge which will display the audio spectrum
+	 *						as a sonogram.
+     */
+    public SonagramGauge getSonagramGauge(SurfaceRunner surface) {
+        if (sonagramGauge != null)
+            throw new RuntimeException("Already have a SonagramGauge" +
+                                       " for this AudioAnalyser");
+        sonagramGauge = new SonagramGauge(surface, sampleRate, inputBlockSize);
+        return sonagramGauge;
+    }
     
     
-    /**
-     * Get a signal power gauge for this audio analyser.
-     * 
-//     * @param   surface     The surface in which the gauge will be displayed.
-//     * @return              A gauge which will display the signal power in
-//     *                      a dB meter.
-//     */
-//    public PowerGauge getPowerGauge(SurfaceRunner surface) {
-//        if (powerGauge != null)
-//            throw new RuntimeException("Already have a PowerGauge" +
-//                                       " for this AudioAnalyser");
-//        powerGauge = new PowerGauge(surface);
-//        return powerGauge;
-//    }
-
-
     /**
      * Reset all Gauges before choosing new ones.
-//     */
+     */
     public void resetGauge() {
         synchronized (this) {
-//        	waveformGauge=null;
         	spectrumGauge=null;
-//        	sonagramGauge=null;
-//        	powerGauge=null;
+        	sonagramGauge=null;
         }
     }
-//
+
     
     // ******************************************************************** //
     // Audio Processing.
@@ -277,28 +451,88 @@ public class AudioAnalyser extends Instrument
 
     /**
      * Handle audio input.  This is called on the thread of the audio
-     * reader.
+     * reader, which must not be held up; we just wake the analysis
+     * thread, which picks the data up from the ring.
      * 
-     * @param   buffer      Audio data that was just read.
+     * @param   buffer      Buffer containing the audio data.
+     * @param   offset      Offset in buffer of the block just read.
+     * @param   count       Number of samples in the block.
      */
-    private final void receiveAudio(short[] buffer) {
-        // Lock to protect updates to these local variables.  See run().
-        synchronized (this) {
-            audioData = buffer;
-            ++audioSequence;
-        }
+    private final void receiveAudio(short[] buffer, int offset, int count) {
+        wakeAnalysis();
     }
     
     
     /**
-     * An error has occurred.  The reader has been terminated.
+     * An error has occurred.  The reader has been terminated.  This is
+     * called on the thread of the audio reader; the analysis thread
+     * finishes what's in the ring, then tells the listener.
      * 
      * @param   error       ERR_XXX code describing the error.
      */
     private void handleError(int error) {
-        synchronized (this) {
-            readError = error;
-        }
+        readError = error;
+        wakeAnalysis();
+    }
+
+
+    /**
+     * Wake the analysis thread, if it's waiting for input.
+     */
+    private void wakeAnalysis() {
+        final Thread thread = analysisThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+
+    /**
+     * Bump one of our parent surface's performance counters, if we have
+     * a parent surface.
+     * 
+     * @param   index       Index of the stat to bump.
+     * @param   val         Amount to add to the counter.
+     */
+    private void statsCount(int index, int val) {
+        if (parentSurface != null)
+            parentSurface.statsCount(index, val);
+    }
+
+
+    /**
+     * Record one of our parent surface's performance timers, if we have
+     * a parent surface.
+     * 
+     * @param   index       Index of the stat to record.
+     * @param   val         The time value for this iteration.
+     */
+    private void statsTime(int index, long val) {
+        if (parentSurface != null)
+            parentSurface.statsTime(index, val);
+    }
+
+
+    /**
+     * Set one of our parent surface's performance values, if we have
+     * a parent surface.
+     * 
+     * @param   index       Index of the stat to set.
+     * @param   val         The current value.
+     */
+    private void statsValue(int index, int val) {
+        if (parentSurface != null)
+            parentSurface.statsValue(index, val);
+    }
+
+
+    /**
+     * Get the time a block of audio represents.
+     * 
+     * @param   block       The block size, in samples.
+     * @return              The block's duration, in ns.
+     */
+    private long blockNanos(int block) {
+        return (long) block * 1000000000L / sampleRate;
     }
 
 
@@ -311,146 +545,188 @@ public class AudioAnalyser extends Instrument
      * This method must be invoked from the doUpdate() method of the
      * application's {@link SurfaceRunner}.
      * 
-     * <p>Since this is called frequently, we first check whether new
-     * audio data has actually arrived.
+     * <p>The analysis is done on its own thread as the audio arrives;
+     * here we just pick up the latest results for display.
      * 
      * @param   now         Nominal time of the current frame in ms.
      */
     @Override
     public final void doUpdate(long now) {
-        short[] buffer = null;
-        synchronized (this) {
-            if (audioData != null && audioSequence > audioProcessed) {
-                parentSurface.statsCount(1, (int) (audioSequence - audioProcessed - 1));
-                audioProcessed = audioSequence;
-                buffer = audioData;
-            }
-        }
+        if (spectrumGauge != null)
+            spectrumGauge.render();
+        if (sonagramGauge != null)
+            sonagramGauge.render();
 
-        // If we got data, process it without the lock.
-        if (buffer != null)
-            processAudio(buffer);
-        
        if (readError != AudioReader.Listener.ERR_OK)
             processError(readError);
     }
 
 
     /**
-     * Handle audio input.  This is called on the thread of the
-     * parent surface.
+     * Main loop of the analysis thread.  We sleep until the reader
+     * tells us it has published a block, then analyse everything in
+     * the ring.  If the reader has stopped, we finish off the ring,
+     * tell the listener, and stop.
+     */
+    private void analysisRun() {
+        while (analysing) {
+            // Look before analysing, so every block the reader published
+            // before it stopped is analysed before we say so.
+            final int error = readError;
+            final boolean ended = inputEnded || error != AudioReader.Listener.ERR_OK;
+            analyseBlocks();
+            if (ended) {
+                final OnInputEndedListener listener = onInputEndedListener;
+                if (listener != null && analysing)
+                    listener.onInputEnded(error);
+                return;
+            }
+            if (analysing && audioRing.available() == 0)
+                LockSupport.park(this);
+        }
+    }
+
+
+    /**
+     * Analyse every block which has arrived since we last looked, oldest
+     * first.  This is called on the analysis thread.
      * 
-     * @param   buffer      Audio data that was just read.
+     * <p>Blocks the reader had to drop because the ring was
+     * full show up as gaps in the block sequence numbers, and are counted
+     * in the "Skip/s" stat; the time each block waited between capture
+     * and analysis goes in the third stat.
+     * 
+     * <p>The {@link AnalysisGovernor} watches how long the analysis takes
+     * against the time the audio represents, and has us skip blocks, use
+     * a smaller FFT, or stop drawing if we can't keep up.  The current
+     * tier goes in the fourth stat.
      */
-    private final void processAudio(short[] buffer) {
+    private void analyseBlocks() {
+        final AudioRing ring = audioRing;
+        final AnalysisGovernor gov = governor;
+        if (ring != null) {
+            final short[] buffer = ring.getBuffer();
+            final int hop = ring.getBlockSize();
+            int off;
+            while ((off = ring.peek()) >= 0) {
+                long seq = ring.peekSequence();
+                long captureTime = ring.peekCaptureTime();
+                int lost = (int) (seq - audioProcessed);
+                statsCount(1, lost);
+                gov.blocksDropped(lost);
+                audioProcessed = seq + 1;
+
+                // Time the block spent between capture and analysis.
+                long begin = System.nanoTime();
+                statsTime(2, (begin - captureTime) / 1000);
+
+                // Analyse the window which ends with this hop.  It may
+                // start in the history blocks, and wrap round the buffer.
+                if (gov.shouldAnalyse(seq)) {
+                    processAudio(buffer, off + hop, seq, captureTime,
+                                 gov.useSmallFFT(), gov.shouldRender());
+                    gov.blockDone(System.nanoTime() - begin);
+                } else {
+                    // Hold the last spectrum and energies, so the
+                    // spectrogram and the beat histories stay in step
+                    // with time.
+                    final SpectrogramRing spec = spectrogram;
+                    if (spec != null)
+                        spec.repeatLast();
+                    final SpectrumGauge gauge = spectrumGauge;
+                    if (gauge != null)
+                        gauge.skipBlock();
+                    gov.blockDone(0);
+                }
+                statsValue(3, gov.getTier().ordinal());
+                ring.release();
+            }
+        }
+    }
+
+
+    /**
+     * Analyse a window of audio.  This is called on the analysis
+     * thread.
+     * 
+     * @param   buffer      Circular buffer containing the audio data.
+     * @param   end         Offset in buffer just past the last sample of
+     *                      the window to analyse; the window is
+     *                      inputBlockSize samples, or smallBlockSize if
+     *                      small is set, and may wrap round.
+     * @param   sequence    Sequence number of the block which ends the
+     *                      window.
+     * @param   captureTime Time at which the last sample of the window
+     *                      was captured, in the System.nanoTime() time
+     *                      base.
+     * @param   small       If true, use the half-size FFT.
+     * @param   render      If false, don't draw the spectrum.
+     */
+    private final void processAudio(short[] buffer, int end,
+                                    long sequence, long captureTime,
+                                    boolean small, boolean render) {
+        // The gauges may be reset from another thread.
+        final SpectrumGauge gauge = spectrumGauge;
+        final SonagramGauge sonagram = sonagramGauge;
+        final boolean analyse = gauge != null || sonagram != null;
+        final FFTTransformer fft = small ? smallAnalyser : spectrumAnalyser;
+        final int len = small ? smallBlockSize : inputBlockSize;
+        int start = end - len;
+        if (start < 0)
+            start += buffer.length;
+
         long instantEnergy = 0;
-        // Process the buffer.  While reading it, it needs to be locked.
-        synchronized (buffer) {
+        // Process the buffer.  The ring keeps it for us until we release it.
+        {
             // Calculate the power now, while we have the input
             // buffer; this is pretty cheap.
-            final int len = buffer.length;
+            final int first = Math.min(len, buffer.length - start);
 
             // THIS IS WHERE WE CHECK FOR BEATS!
-            for(int i = 0; i < buffer.length; i++) instantEnergy += Math.abs(buffer[i]);
-            instantEnergy /= buffer.length;
-
-//            mInstantEnergy = instantEnergy;
-//
-//            mRunningSoundAvg += instantEnergy;
-//            mNumberOfSamplesInOneSec++;
-//
-//            // Draw the waveform now, while we have the raw data.
-////            if (waveformGauge != null) {
-////                SignalPower.biasAndRange(buffer, len - inputBlockSize, inputBlockSize, biasRange);
-////                final float bias = biasRange[0];
-////                float range = biasRange[1];
-////                if (range < 1f)
-////                    range = 1f;
-////
-//////                long wavStart = System.currentTimeMillis();
-////                waveformGauge.update(buffer, len - inputBlockSize, inputBlockSize, bias, range);
-//////                long wavEnd = System.currentTimeMillis();
-//////                parentSurface.statsTime(1, (wavEnd - wavStart) * 1000);
-////            }
-////
-//            // Set up the sprecturm analyzer with the data it needs
-//            spectrumAnalyser.setInput(buffer, len - inputBlockSize, inputBlockSize);
-////            // If we have a power gauge, calculate the signal power.
-////            if (powerGauge != null)
-////                currentPower = SignalPower.calculatePowerDb(buffer, 0, len);
-////
-////            // If we have a spectrum or sonagram analyser, set up the FFT input data.
-////            if (spectrumGauge != null || sonagramGauge != null)
-////                spectrumAnalyser.setInput(buffer, len - inputBlockSize, inputBlockSize);
-//
-//            // Check if one second has gone by
-//            if( (System.currentTimeMillis() - mSystemTimeStartSec) > 1000 ) {
-//                // Compute the average sound energy of a sample over a 1 second period
-//                mCurrentAvgEnergyOneSec = mRunningSoundAvg / mNumberOfSamplesInOneSec;
-//                mCurrentAvgFreqEnergyOneSec[0] = mRunningFreqSoundAvg[0] / mNumberOfSamplesInOneSec;
-//                mCurrentAvgFreqEnergyOneSec[1] = mRunningFreqSoundAvg[1] / mNumberOfSamplesInOneSec;
-//                mCurrentAvgFreqEnergyOneSec[2] = mRunningFreqSoundAvg[2] / mNumberOfSamplesInOneSec;
-//
-//                // reset variables for next iteration
-//                mNumberOfSamplesInOneSec = 0;
-//                mRunningSoundAvg = 0.0;
-//                mRunningFreqSoundAvg[0] = 0.0;
-//                mRunningFreqSoundAvg[1] = 0.0;
-//                mRunningFreqSoundAvg[2] = 0.0;
-//                mSystemTimeStartSec = System.currentTimeMillis();
-//            }
-//
-//            // update the surface to display the current audio energy
-//            instrumentSurface.setInstantEnergy(mInstantEnergy);
-//            // Check for a beat
-//            // A beat occurs when the average sound energy of a sample is greater than
-//            // the average sound energy of a one second part of a song
-//            if( instantEnergy >  mCurrentAvgEnergyOneSec ) {
-//                // signal beat event to the listener
-//                if( onBeatDetectedListener != null ) fireBeatDetectedEvent();
-//            }
-
-            // Do the (expensive) transformation.
-            // The transformer has its own state, no need to lock here.
-//            long specStart = System.currentTimeMillis();
-//            spectrumAnalyser.transform();
-
-            //parentSurface.statsTime(0, (specEnd - specStart) * 1000);
+            for (int i = start; i < start + first; i++) instantEnergy += Math.abs(buffer[i]);
+            for (int i = 0; i < len - first; i++) instantEnergy += Math.abs(buffer[i]);
+            instantEnergy /= len;
 
-            // Get the FFT output.
             // If we have a spectrum or sonagram analyser, set up the FFT input data.
-            if (spectrumGauge != null )
-                spectrumAnalyser.setInput(buffer, len - inputBlockSize, inputBlockSize);
-
-            // Tell the reader we're done with the buffer.
-            buffer.notify();
+            if (analyse)
+                fft.setInputCircular(buffer, start, len);
         }
 
         // If we have a spectrum or sonagram analyser, perform the FFT.
-        if (spectrumGauge != null ) {
+        if (analyse) {
             // Do the (expensive) transformation.
             // The transformer has its own state, no need to lock here.
             long specStart = System.currentTimeMillis();
-            spectrumAnalyser.transform();
+            fft.transform();
             long specEnd = System.currentTimeMillis();
-            parentSurface.statsTime(0, (specEnd - specStart) * 1000);
-
-            spectrumAnalyser.getRealResults(spectrumData);
-            spectrumAnalyser.getComplexResults(spectrumComplexData);
-            // Get the FFT output.
+            statsTime(0, (specEnd - specStart) * 1000);
+
+            // Get the FFT output.  The small FFT's bins are twice as
+            // wide; split each one's power over the full-size bins it
+            // covers, so the gauge sees the same frequency scale and the
+            // same band energies either way.
+            if (small) {
+                smallAnalyser.getPowerResults(smallSpectrumPower);
+                final int bins = spectrumPower.length;
+                final int smallBins = smallSpectrumPower.length;
+                final float share = (float) smallBins / (float) bins;
+                for (int i = 0; i < bins; ++i)
+                    spectrumPower[i] = smallSpectrumPower[i * smallBins / bins] * share;
+            } else
+                spectrumAnalyser.getPowerResults(spectrumPower);
+            final SpectrogramRing spec = spectrogram;
+            if (spec != null)
+                spec.append(spectrumPower);
         }
 
-//        // If we have a spectrum gauge, update data and draw.
-        if (spectrumGauge != null)
-            spectrumGauge.update(spectrumData, spectrumComplexData, instantEnergy);
-//
-//        // If we have a sonagram gauge, update data and draw.
-//        if (sonagramGauge != null)
-//            sonagramGauge.update(spectrumData);
-//
-//        // If we have a power gauge, display the signal power.
-//        if (powerGauge != null)
-//            powerGauge.update(currentPower);
+        // If we have a spectrum gauge, update data and draw.
+        if (gauge != null)
+            gauge.update(spectrumPower, instantEnergy,
+                                 sequence, captureTime, render);
+
+        // If we have a sonagram gauge, add a column.
+        if (sonagram != null && render)
+            sonagram.update(spectrumPower);
     }
     
 
@@ -461,14 +737,10 @@ public class AudioAnalyser extends Instrument
      */
     private final void processError(int error) {
         // Pass the error to all the gauges we have.
-//        if (waveformGauge != null)
-//            waveformGauge.error(error);
         if (spectrumGauge != null)
             spectrumGauge.error(error);
-//        if (sonagramGauge != null)
-//            sonagramGauge.error(error);
-//        if (powerGauge != null)
-//            powerGauge.error(error);
+        if (sonagramGauge != null)
+            sonagramGauge.error(error);
     }
 
 
@@ -509,7 +781,6 @@ public class AudioAnalyser extends Instrument
     }
 
     public long getInstantEnergy() {
-        //return mInstantEnergy;
         return 0;
     }
 
@@ -521,12 +792,20 @@ public class AudioAnalyser extends Instrument
 	@SuppressWarnings("unused")
 	private static final String TAG = "instrument";
 
+    // Amount of audio the input ring can hold, in ms, and the minimum
+    // number of blocks in it.
+    private static final int RING_TIME_MS = 500;
+    private static final int RING_MIN_BLOCKS = 4;
+
+    // Amount of spectrum history to keep, in ms.
+    private static final int SPECTROGRAM_TIME_MS = 2000;
+
 	
 	// ******************************************************************** //
 	// Private Data.
 	// ******************************************************************** //
 
-    // Our parent surface.
+    // Our parent surface.  Null if we are running without a display.
     private SurfaceRunner parentSurface;
 
     // Instrument surface
@@ -544,64 +823,65 @@ public class AudioAnalyser extends Instrument
     // The desired decimation rate for this analyser.  Only 1 in
     // sampleDecimate blocks will actually be processed.
     private int sampleDecimate = 1;
+
+    // The hop between analysis windows, in samples; 0 to take windows
+    // back to back.
+    private int hopSize = 0;
    
     // The desired histogram averaging window.  1 means no averaging.
     private int historyLen = 4;
 
-    // Our audio input device.
+    // Our audio input device, and the source it reads from; null
+    // for the mic.
     private final AudioReader audioReader;
+    private AudioSource audioSource = null;
 
     // Fourier Transform calculator we use for calculating the spectrum
     // and sonagram.
     private FFTTransformer spectrumAnalyser;
+
+    // Half-size transformer which we fall back to under load, its block
+    // size, and its output buffer.
+    private FFTTransformer smallAnalyser;
+    private int smallBlockSize;
+    private float[] smallSpectrumPower;
+
+    // Governor which sheds analysis work when we can't keep up, and the
+    // tier to hold it at; null to let it choose.
+    private final AnalysisGovernor governor;
+    private AnalysisGovernor.Tier fixedTier = null;
     
     // The gauges associated with this instrument.  Any may be null if not
     // in use.
-//    private WaveformGauge waveformGauge = null;
     private SpectrumGauge spectrumGauge = null;
-//    private SonagramGauge sonagramGauge = null;
-//    private PowerGauge powerGauge = null;
+    private SonagramGauge sonagramGauge = null;
+    
+    // Ring through which the reader passes us audio blocks.  Null
+    // until we start.
+    private volatile AudioRing audioRing = null;
     
-    // Buffered audio data, and sequence number of the latest block.
-    private short[] audioData;
-    private long audioSequence = 0;
+    // Flag whether the analysis thread should be running, and the
+    // thread.  Null if not running.
+    private volatile boolean analysing = false;
+    private volatile Thread analysisThread = null;
     
-    // If we got a read error, the error code.
-    private int readError = AudioReader.Listener.ERR_OK;
+    // If we got a read error, the error code; and whether the source has
+    // come to the end of its data.
+    private volatile int readError = AudioReader.Listener.ERR_OK;
+    private volatile boolean inputEnded = false;
+
+    // Listener to tell when the input stops.  Null if none.
+    private volatile OnInputEndedListener onInputEndedListener = null;
     
-    // Sequence number of the last block we processed.
+    // Sequence number of the next block we expect to process.
     private long audioProcessed = 0;
 
-    // Analysed audio spectrum data; history data for each frequency
-    // in the spectrum; index into the history data; and buffer for
-    // peak frequencies.
-    private float[] spectrumData;
-    private float[] spectrumComplexData;
-    private float[][] spectrumHist;
-    private int spectrumIndex;
-   
-    // Current signal power level, in dB relative to max. input power.
-    private double currentPower = 0f;
-
-    // Temp. buffer for calculated bias and range.
-    private float[] biasRange = null;
-
-    // My Added Variables
-   // OnBeatDetectedListener onBeatDetectedListener = null;
-//    long mSystemTimeStartSec = 0;
-//    double mRunningSoundAvg = 0.0;
-//    int mNumberOfSamplesInOneSec = 0;
-//    long mInstantEnergy = 0;
-//    double mCurrentAvgEnergyOneSec = 0.0;
-//
-//    // For frequency analysis
-//    double mRunningFreqSoundAvg[] = {0.0, 0.0, 0.0};
-//    long mFreqInstantEnergy[] = {0, 0, 0};
-//    double mCurrentAvgFreqEnergyOneSec[] = {0.0, 0.0, 0.0};
-//
-//    private static final double BEAT_THRESHOLD = 1.3;
-//    private static final int LOW_FREQUENCY_THRESHOLD = 150;
-//    private static final int MID_FREQUENCY_THRESHOLD = 2000;
-   // private static final int LOW_FREQUENCY_THRESHOLD = 250;
+    // Analysed audio spectrum data, as the power of each bin; whether to
+    // keep a history of the spectrum; and the history.  The spectrogram
+    // is null until we start, and if not wanted.
+    private float[] spectrumPower;
+    private boolean keepSpectrogram = false;
+    private volatile SpectrogramRing spectrogram = null;
+
 }
 
@@ -27,6 +27,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.util.AttributeSet;
+import org.hermit.android.core.CharFormatter;
 import org.hermit.android.core.SurfaceRunner;
 
 import java.util.ArrayList;
@@ -115,6 +116,7 @@ public abstract class InstrumentSurface
     private void init() {
         instruments = new ArrayList<Instrument>();
         gauges = new ArrayList<Gauge>();
+        textPaint.setColor(Color.BLACK);
     }
 
 
@@ -342,10 +344,12 @@ public abstract class InstrumentSurface
 
         canvas.drawColor(screenColor);
 
-        Paint paint = new Paint();
-        paint.setColor(Color.BLACK);
-        canvas.drawText(new Long(instantEnergy).toString(), 30.0f, 30.0f, paint);
-        canvas.drawText(new Long(fftLag).toString(), 30.0f, 90.0f, paint);
+        // Format the readouts into preallocated buffers, so that drawing
+        // a frame doesn't allocate.
+        CharFormatter.formatInt(energyText, 0, clampReadout(instantEnergy), -1, true);
+        CharFormatter.formatInt(lagText, 0, clampReadout(fftLag), -1, true);
+        canvas.drawText(energyText, 0, energyText.length, 30.0f, 30.0f, textPaint);
+        canvas.drawText(lagText, 0, lagText.length, 30.0f, 90.0f, textPaint);
         
         // Draw the gauges over the background.
 //        final int gl = gaugeArray.length;
@@ -366,6 +370,17 @@ public abstract class InstrumentSurface
     }
 
 
+    /**
+     * Limit a readout value to what fits in a readout buffer.
+     *
+     * @param   val         The value.
+     * @return              The value, limited to the range of an int.
+     */
+    private static int clampReadout(long val) {
+        return (int) Math.max(-Integer.MAX_VALUE, Math.min(Integer.MAX_VALUE, val));
+    }
+
+
     // ******************************************************************** //
     // Class Data.
     // ******************************************************************** //
@@ -396,5 +411,10 @@ public abstract class InstrumentSurface
     private int screenColor = 0xff000000;
     private long instantEnergy = 0;
     private long fftLag = 0;
+
+    // Paint and text buffers for the readouts; a sign and 10 digits.
+    private final Paint textPaint = new Paint();
+    private final char[] energyText = new char[11];
+    private final char[] lagText = new char[11];
 }
 
@@ -0,0 +1,351 @@
+/**
+ * org.hermit.android.instrument: graphical instruments for Android.
+ * <br>Copyright 2009 Ian Cameron Smith
+ *
+ * <p>These classes provide input and display functions for creating on-screen
+ * instruments of various kinds in Android apps.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.instruments;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import org.hermit.android.core.SurfaceRunner;
+
+
+/**
+ * A graphical display which shows the audio spectrum over time, as a
+ * scrolling sonagram, from an
+ * {@link org.hermit.android.instruments.AudioAnalyser} instrument.  Time
+ * runs left to right, with the newest spectrum at the right; frequency
+ * runs bottom to top.  This class cannot be instantiated directly; get
+ * an instance by calling
+ * {@link org.hermit.android.instruments.AudioAnalyser#getSonagramGauge(org.hermit.android.core.SurfaceRunner)}.
+ *
+ * <p>The display is a circular bitmap, one column per spectrum.  Each
+ * new spectrum is coloured into a single column, and the bitmap is
+ * drawn to the screen in two pieces, split at the oldest column; so
+ * the history is never redrawn.  Colours come from a table indexed
+ * directly by the bits of each bin's power, so there are no logs to
+ * work out per bin.
+ */
+public class SonagramGauge
+    extends Gauge
+{
+
+	// ******************************************************************** //
+	// Constructor.
+	// ******************************************************************** //
+
+	/**
+	 * Create a SonagramGauge.  This constructor is package-local, as
+	 * public users get these from an {@link org.hermit.android.instruments.AudioAnalyser} instrument.
+	 *
+	 * @param	parent		Parent surface.
+     * @param   rate        The input sample rate, in samples/sec.
+     * @param   inputBlockSize  The FFT block size; the spectra we are
+     *                      given have half this many bins.
+	 */
+	SonagramGauge(SurfaceRunner parent, int rate, int inputBlockSize) {
+	    super(parent);
+	    nyquistFreq = rate / 2;
+	    spectrumBins = inputBlockSize / 2;
+	    binColours = new int[spectrumBins];
+	}
+
+
+    // ******************************************************************** //
+    // Configuration.
+    // ******************************************************************** //
+
+    /**
+     * Set the sample rate for this instrument.
+     *
+     * @param   rate        The desired rate, in samples/sec.
+     */
+    public void setSampleRate(int rate) {
+        nyquistFreq = rate / 2;
+    }
+
+
+    /**
+     * Set the input block size for this instrument.
+     *
+     * @param   size        The FFT block size; the spectra we are
+     *                      given have half this many bins.
+     */
+    public synchronized void setBlockSize(int size) {
+        spectrumBins = size / 2;
+        binColours = new int[spectrumBins];
+        if (sonaBitmap != null)
+            mapRows();
+    }
+
+
+    /**
+     * Get the nyquist frequency of the display.
+     *
+     * @return              The frequency at the top of the display, in Hz.
+     */
+    public int getNyquistFreq() {
+        return nyquistFreq;
+    }
+
+
+	// ******************************************************************** //
+	// Geometry.
+	// ******************************************************************** //
+
+    /**
+     * This is called during layout when the size of this element has
+     * changed.  This is where we first discover our size, so set
+     * our geometry to match.
+     *
+	 * @param	bounds		The bounding rect of this element within
+	 * 						its parent View.
+     */
+	@Override
+    public void setGeometry(Rect bounds) {
+	    super.setGeometry(bounds);
+
+	    synchronized (this) {
+	        dispX = bounds.left;
+	        dispY = bounds.top;
+	        dispWidth = bounds.width();
+	        dispHeight = bounds.height();
+
+	        // Create the circular bitmap, and the colour history behind
+	        // it; one int per pixel, a column at a time.
+	        sonaBitmap = getSurface().getBitmap(dispWidth, dispHeight);
+	        sonaBitmap.eraseColor(0xff000000);
+	        columnPixels = new int[dispWidth * dispHeight];
+	        rowBins = new int[dispHeight];
+	        mapRows();
+
+	        columnsWritten = 0;
+	        columnsDrawn = 0;
+	    }
+	}
+
+
+	/**
+	 * Work out which spectrum bin each row of the display shows.
+	 */
+	private void mapRows() {
+	    final int h = dispHeight;
+	    for (int y = 0; y < h; ++y)
+	        rowBins[y] = Math.min((h - 1 - y) * spectrumBins / h, spectrumBins - 1);
+	}
+
+
+    // ******************************************************************** //
+    // Data Updates.
+    // ******************************************************************** //
+
+	/**
+	 * New data from the instrument has arrived.  This method is called
+	 * on the instrument's analysis thread.  We just colour in a column
+	 * here; {@link #render()} puts it in the bitmap.
+	 *
+     * @param   power       The power of the spectrum at each frequency.
+	 */
+	final synchronized void update(float[] power) {
+	    final int[] pixels = columnPixels;
+	    if (pixels == null || power.length != spectrumBins)
+	        return;
+
+	    // Colour each bin.  The top bits of a positive float increase
+	    // with its log, so they index the colour table directly.
+	    final int[] lut = COLOUR_TABLE;
+	    final int[] colours = binColours;
+	    for (int b = 0; b < spectrumBins; ++b) {
+	        int i = (Float.floatToRawIntBits(power[b]) >> LUT_SHIFT) - LUT_BASE;
+	        if (i < 0)
+	            i = 0;
+	        else if (i >= LUT_SIZE)
+	            i = LUT_SIZE - 1;
+	        colours[b] = lut[i];
+	    }
+
+	    // Fill in the column.
+	    final int h = dispHeight;
+	    final int base = (int) (columnsWritten % dispWidth) * h;
+	    final int[] rows = rowBins;
+	    for (int y = 0; y < h; ++y)
+	        pixels[base + y] = colours[rows[y]];
+	    ++columnsWritten;
+	}
+
+
+	/**
+	 * Copy the columns which have arrived since the last call into the
+	 * bitmap.  This method is called on the thread of the containing
+	 * SurfaceView; we only hold the lock while copying the new columns.
+	 */
+	final synchronized void render() {
+	    final Bitmap bitmap = sonaBitmap;
+	    if (bitmap == null)
+	        return;
+
+	    // If we've fallen behind by more than a screen, skip to the
+	    // last screen's worth.
+	    final int w = dispWidth;
+	    final int h = dispHeight;
+	    if (columnsWritten - columnsDrawn > w)
+	        columnsDrawn = columnsWritten - w;
+	    while (columnsDrawn < columnsWritten) {
+	        final int col = (int) (columnsDrawn % w);
+	        bitmap.setPixels(columnPixels, col * h, 1, col, 0, 1, h);
+	        ++columnsDrawn;
+	    }
+	    headColumn = (int) (columnsDrawn % w);
+	}
+
+
+	// ******************************************************************** //
+	// View Drawing.
+	// ******************************************************************** //
+
+	/**
+	 * Do the subclass-specific parts of drawing for this element.
+	 * This method is called on the thread of the containing SuraceView.
+	 *
+	 * <p>The bitmap is circular, so we draw it in two pieces: the oldest
+	 * columns, from the head to the right edge, go on the left; the
+	 * newest, from the left edge up to the head, on the right.
+	 *
+	 * @param	canvas		Canvas to draw into.
+	 * @param	paint		The Paint which was set up in initializePaint().
+     * @param   now         Nominal system time in ms. of this update.
+	 */
+	@Override
+    protected final void drawBody(Canvas canvas, Paint paint, long now) {
+	    final Bitmap bitmap = sonaBitmap;
+	    if (bitmap == null)
+	        return;
+
+	    // render() runs on this thread, so the head can't move under us.
+	    final int head = headColumn;
+	    final int w = dispWidth;
+	    final int h = dispHeight;
+	    srcRect.set(head, 0, w, h);
+	    dstRect.set(dispX, dispY, dispX + w - head, dispY + h);
+	    canvas.drawBitmap(bitmap, srcRect, dstRect, null);
+	    if (head > 0) {
+	        srcRect.set(0, 0, head, h);
+	        dstRect.set(dispX + w - head, dispY, dispX + w, dispY + h);
+	        canvas.drawBitmap(bitmap, srcRect, dstRect, null);
+	    }
+	}
+
+
+    // ******************************************************************** //
+    // Colour Table.
+    // ******************************************************************** //
+
+    /**
+     * Build the table of colours for each power level.  Entry i is for
+     * powers whose float bits, shifted right by LUT_SHIFT, come to
+     * i + LUT_BASE; so entries step by 1/16 of an octave, from
+     * RANGE_BELS below full scale up to full scale.  The colour goes
+     * from black, through blue, to red at full scale.
+     *
+     * @return              The colour table.
+     */
+    private static int[] makeColourTable() {
+        final int[] table = new int[LUT_SIZE];
+        final float[] hsv = new float[3];
+        hsv[1] = 1f;
+        for (int i = 0; i < LUT_SIZE; ++i) {
+            final float power = Float.intBitsToFloat((i + LUT_BASE) << LUT_SHIFT);
+            float frac = (float) (Math.log10(power) / RANGE_BELS + 1f);
+            if (frac < 0f)
+                frac = 0f;
+            else if (frac > 1f)
+                frac = 1f;
+            hsv[0] = 240f * (1f - frac);
+            hsv[2] = Math.min(1f, frac * 2f);
+            table[i] = Color.HSVToColor(hsv);
+        }
+        return table;
+    }
+
+
+	// ******************************************************************** //
+	// Class Data.
+	// ******************************************************************** //
+
+    // Debugging tag.
+	@SuppressWarnings("unused")
+	private static final String TAG = "instrument";
+
+    // Vertical range of the display in bels.
+    private static final float RANGE_BELS = 6f;
+
+    // The colour table is indexed by the exponent and top 4 mantissa bits
+    // of a float power: LUT_SHIFT drops the rest.  It covers 20 octaves of
+    // power (just over RANGE_BELS) below 1.0; LUT_BASE is the index of
+    // the bottom of that range.
+    private static final int LUT_SHIFT = 23 - 4;
+    private static final int LUT_OCTAVES = 20;
+    private static final int LUT_BASE = (127 - LUT_OCTAVES) << 4;
+    private static final int LUT_SIZE = (LUT_OCTAVES << 4) + 1;
+
+    // The colour for each power level.
+    private static final int[] COLOUR_TABLE = makeColourTable();
+
+
+	// ******************************************************************** //
+	// Private Data.
+	// ******************************************************************** //
+
+    // The Nyquist frequency -- the highest frequency
+    // represented in the spectrum data we will be plotting.
+    private int nyquistFreq = 0;
+
+    // Number of bins in each spectrum we are given.
+    private int spectrumBins;
+
+	// Display position and size within the parent view.
+    private int dispX = 0;
+    private int dispY = 0;
+	private int dispWidth = 0;
+	private int dispHeight = 0;
+
+    // Circular bitmap holding one column per spectrum.  Null until we
+    // have a size.
+    private Bitmap sonaBitmap = null;
+
+    // Colours of every pixel, column by column, as coloured in by
+    // update() and not yet, or already, copied to the bitmap; the
+    // spectrum bin shown in each row; and each bin's colour in the
+    // current spectrum.
+    private int[] columnPixels = null;
+    private int[] rowBins = null;
+    private int[] binColours;
+
+    // Number of columns coloured in, and copied to the bitmap; and the
+    // bitmap column holding the oldest data.
+    private long columnsWritten = 0;
+    private long columnsDrawn = 0;
+    private int headColumn = 0;
+
+    // Rectangles for drawing the bitmap in two pieces.
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+
+}
@@ -22,7 +22,10 @@ package org.hermit.android.instruments;
 
 import android.graphics.*;
 import android.graphics.Paint.Style;
+import org.hermit.android.core.CharFormatter;
 import org.hermit.android.core.SurfaceRunner;
+import org.hermit.dsp.BandMap;
+import org.hermit.dsp.RollingStats;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -55,7 +58,17 @@ public class SpectrumGauge
 	SpectrumGauge(SurfaceRunner parent, int rate) {
 	    super(parent);
 	    nyquistFreq = rate / 2;
-        mSystemTimeStartSec = System.currentTimeMillis();
+	    makeHistory(0);
+
+        // Set up the overlay text lines, with their labels filled in.
+        overlayPaint.setColor(0xFFFFFFFF);
+        for (int i = 0; i < OVERLAY_LABELS.length; ++i) {
+            final char[] buf = new char[OVERLAY_LEN];
+            CharFormatter.formatString(buf, 0, OVERLAY_LABELS[i], OVERLAY_INSTANT);
+            CharFormatter.formatString(buf, OVERLAY_INSTANT + OVERLAY_FIELD,
+                                       " Avg: ", OVERLAY_AVG - OVERLAY_INSTANT - OVERLAY_FIELD);
+            overlayText[i] = buf;
+        }
 	}
 
 
@@ -70,14 +83,94 @@ public class SpectrumGauge
      */
     public void setSampleRate(int rate) {
         nyquistFreq = rate / 2;
+        graphStale = true;
         
         // If we have a size, then we have a background.  Re-draw it
         // to show the new frequency scale.
         if (haveBounds())
             drawBg(bgCanvas, getPaint());
     }
+
+
+    /**
+     * Set the layout of the equalizer results passed to the
+     * OnFFTResultListener.
+     *
+     * @param   columns     The number of columns to split the spectrum
+     *                      into; 9 by default.
+     * @param   logSpaced   If true, space the columns evenly on a log
+     *                      frequency scale, so that each covers the same
+     *                      number of octaves.  Otherwise space them evenly
+     *                      in Hz, as by default.
+     * @throws  IllegalArgumentException    Invalid column count.
+     */
+    public synchronized void setEqualizerBands(int columns, boolean logSpaced) {
+        if (columns < 1)
+            throw new IllegalArgumentException("bad equalizer column count: " +
+                                               columns);
+        eqColumns = columns;
+        eqLogSpaced = logSpaced;
+        mFftResultInstantEnergy = new double[columns];
+
+        // Make the analysis rebuild its band maps.
+        beatBands = null;
+        eqBands = null;
+    }
     
 
+    /**
+     * Get the energy in each beat detection band in the latest block
+     * analysed: the total power of the low, mid and high bands.
+     *
+     * @param   out         Buffer for the energies; at least 3 long.
+     * @return              The out buffer.
+     */
+    public synchronized double[] getBandEnergies(double[] out) {
+        System.arraycopy(mInstantFreqEnergy, 0, out, 0, mInstantFreqEnergy.length);
+        return out;
+    }
+
+
+    /**
+     * Set the time between the blocks we're given, so that the beat
+     * detection history covers the right amount of time.  Changing it
+     * starts the history again.
+     *
+     * @param   nanos       The time between blocks, in ns.
+     */
+    synchronized void setFramePeriod(long nanos) {
+        if (nanos <= 0)
+            return;
+        if (RollingStats.lengthForPeriod(nanos) != energyStats.getLength())
+            makeHistory(nanos);
+    }
+
+
+    /**
+     * A block was skipped to save time.  Hold the last energies in the
+     * beat detection histories, as the spectrogram does, so that they
+     * still cover the right time.  Called on the analysis thread.
+     */
+    final synchronized void skipBlock() {
+        energyStats.repeatLast();
+        for (int b = 0; b < bandStats.length; ++b)
+            bandStats[b].repeatLast();
+    }
+
+
+    /**
+     * Create the beat detection histories.
+     *
+     * @param   nanos       The time between blocks, in ns; 0 if not
+     *                      known yet.
+     */
+    private void makeHistory(long nanos) {
+        energyStats = RollingStats.forPeriod(nanos);
+        for (int b = 0; b < bandStats.length; ++b)
+            bandStats[b] = RollingStats.forPeriod(nanos);
+    }
+
+
     /**
      * Set the size for the label text.
      * 
@@ -143,6 +236,7 @@ public class SpectrumGauge
         bgCanvas = new Canvas(bgBitmap);
         
         drawBg(bgCanvas, getPaint());
+        graphStale = true;
 	}
 
 
@@ -209,91 +303,120 @@ public class SpectrumGauge
     
 	/**
 	 * New data from the instrument has arrived.  This method is called
-	 * on the thread of the instrument.
+	 * on the instrument's analysis thread; the beat listeners are told
+	 * straight away, but drawing waits for {@link #render()}.
 	 * 
-     * @param   data        An array of floats defining the signal power
-     *                      at each frequency in the spectrum.
+     * @param   power       The power of the spectrum at each frequency.
+     * @param   instantEnergy   Average absolute sample value of the block.
+     * @param   sequence    Sequence number of the audio block analysed.
+     * @param   captureTime Time at which the last sample of the block was
+     *                      captured, in the System.nanoTime() time base.
+     * @param   render      If false, analyse the data and tell the
+     *                      listeners, but don't mark it for drawing.
 	 */
-	final void update(float[] data, float[] dataComplex, long instantEnergy) {
-        final Canvas canvas = specCanvas;
-        final Paint paint = getPaint();
-        
-        // Now actually do the drawing.
+	final void update(float[] power, long instantEnergy,
+	                  long sequence, long captureTime, boolean render) {
+        blockSequence = sequence;
+        blockCaptureTime = captureTime;
+
         synchronized (this) {
 
             // do FFT calculations!
-            doFFTAnalysis(data, dataComplex, instantEnergy);
-
-            updateUI(canvas);
-
-           // canvas.drawBitmap(bgBitmap, 0, 0, paint);
-           // if (logFreqScale)
-           //     logGraph(data, canvas, paint);
-           // else
-           //     linearGraph(data, canvas, paint);
+            doFFTAnalysis(power, instantEnergy);
+
+            // Keep the spectrum for drawing, if there's anywhere to draw it.
+            if (render && specCanvas != null) {
+                if (latestSpectrum == null || latestSpectrum.length != power.length)
+                    latestSpectrum = new float[power.length];
+                System.arraycopy(power, 0, latestSpectrum, 0, power.length);
+                resultsChanged = true;
+            }
         }
     }
 
-    public void updateUI(final Canvas canvas) {
-        Paint paint = new Paint();
-        paint.setColor(0xFFFFFFFF);
+    /**
+     * Draw the latest results, if they have changed since we last drew.
+     * This method is called on the thread of the containing SurfaceView,
+     * so that the analysis thread never waits for drawing; we only hold
+     * the lock long enough to copy the results.
+     */
+    final void render() {
+        final Canvas canvas = specCanvas;
+        if (canvas == null)
+            return;
 
-        // Print : Low Instant: 4.4404 Avg: 409.09
-        canvas.drawText("Low Instant: " + new Double(mInstantFreqEnergy[0]).toString() + " Avg: "
-                + new Double(mCurrentAvgFreqEnergyOneSec[0]).toString(), 10, 10, paint);
+        synchronized (this) {
+            if (!resultsChanged)
+                return;
+            resultsChanged = false;
+            System.arraycopy(mInstantFreqEnergy, 0, shownInstantEnergy, 0, 3);
+            System.arraycopy(mCurrentAvgFreqEnergyOneSec, 0, shownAvgEnergy, 0, 3);
+            final int len = latestSpectrum.length;
+            if (shownSpectrum == null || shownSpectrum.length != len)
+                shownSpectrum = new float[len];
+            System.arraycopy(latestSpectrum, 0, shownSpectrum, 0, len);
+        }
+
+        // drawBody() runs on this thread too, so we can draw into the
+        // bitmap without holding the lock.
+        canvas.drawBitmap(bgBitmap, 0, 0, null);
+        drawGraph(shownSpectrum, canvas);
+        updateUI(canvas);
+    }
 
-        canvas.drawText("Mid Instant: " + new Double(mInstantFreqEnergy[1]).toString() + " Avg: "
-                + new Double(mCurrentAvgFreqEnergyOneSec[1]).toString(), 10, 50, paint);
 
-        canvas.drawText("Low Instant: " + new Double(mInstantFreqEnergy[2]).toString() + " Avg: "
-                + new Double(mCurrentAvgFreqEnergyOneSec[2]).toString(), 10, 100, paint);
+    /**
+     * Draw the band energy readouts over the graph.  The text is
+     * formatted into preallocated buffers, so this doesn't allocate.
+     *
+     * @param   canvas      Canvas to draw into.
+     */
+    public void updateUI(final Canvas canvas) {
+        // Print : Low Instant:        4.44 Avg:      409.09
+        for (int i = 0; i < overlayText.length; ++i) {
+            final char[] buf = overlayText[i];
+            CharFormatter.formatFloat(buf, OVERLAY_INSTANT,
+                                      clampReadout(shownInstantEnergy[i]),
+                                      OVERLAY_FIELD, 2, false);
+            CharFormatter.formatFloat(buf, OVERLAY_AVG,
+                                      clampReadout(shownAvgEnergy[i]),
+                                      OVERLAY_FIELD, 2, false);
+            canvas.drawText(buf, 0, buf.length, 10, OVERLAY_Y[i], overlayPaint);
+        }
+    }
 
 
+    /**
+     * Limit a readout value to what fits in a readout field.  A value
+     * which didn't fit would make CharFormatter throw an exception
+     * internally, which allocates.
+     *
+     * @param   val         The value.
+     * @return              The value, limited to the field.
+     */
+    private static double clampReadout(double val) {
+        return val < OVERLAY_MAX ? val : OVERLAY_MAX;
     }
 
     /**
      * This is where you change the code to do different on and off beat analysis
-     * @param spectrumData
-     * @param spectrumDataComplex
+     * @param spectrumPower   power of each frequency bin
      * @param instantEnergy
      */
-    public void doFFTAnalysis(float[] spectrumData, float[] spectrumDataComplex, long instantEnergy) {
-        // The data in spectrumData is organized as so
+    public void doFFTAnalysis(float[] spectrumPower, long instantEnergy) {
+        // The data in spectrumPower is organized as so
         // the length is half the data buffer and the frequencies are 0-(half sample rate)
-        // skip the first frequency bucket since it is not needed for audio processing
-        if( (System.currentTimeMillis() - mSystemTimeStartSec) > 2000 ) {
-
-            // Compute the average sound energy of a sample over a 1 second period
-            mCurrentAvgEnergyOneSec = mRunningSoundAvg / mNumberOfSamplesInOneSec;
-            mCurrentAvgFreqEnergyOneSec[0] = mRunningFreqSoundAvg[0] / mNumberOfSamplesInOneSec;
-            mCurrentAvgFreqEnergyOneSec[1] = mRunningFreqSoundAvg[1] / mNumberOfSamplesInOneSec;
-            mCurrentAvgFreqEnergyOneSec[2] = mRunningFreqSoundAvg[2] / mNumberOfSamplesInOneSec;
-
-            mMaxInstantEnergy = mTempMaxIntensity;
-
-            // reset variables for next iteration
-            mNumberOfSamplesInOneSec = 0;
-            mTempMaxIntensity = 0;
-            mRunningSoundAvg = 0.0;
-            mRunningFreqSoundAvg[0] = 0.0;
-            mRunningFreqSoundAvg[1] = 0.0;
-            mRunningFreqSoundAvg[2] = 0.0;
-            mSystemTimeStartSec = System.currentTimeMillis();
-        }
 
         // Reset fft values to zero
         Arrays.fill(mFftResultInstantEnergy, 0);
 
-        mRunningSoundAvg += instantEnergy;
-        mTempMaxIntensity = max(mTempMaxIntensity, instantEnergy);
-
-        if( instantEnergy > mCurrentAvgEnergyOneSec ) {
+        // Each energy is judged against its recent history.
+        mCurrentAvgEnergyOneSec = energyStats.getMean();
+        if (energyStats.isPeak(instantEnergy)) {
             if( !mIsBeatOn ) {
                 mIsBeatOn = true;
-                if(mMaxInstantEnergy != 0)  {
-                    if( onBeatDetectedListener != null ) {
-                        fireBeatDetectedEventOn((float)(instantEnergy-mCurrentAvgEnergyOneSec));
-                    }
+                if( onBeatDetectedListener != null ) {
+                    fireBeatDetectedEventOn((float)(instantEnergy-mCurrentAvgEnergyOneSec));
                 }
             }
         }
@@ -304,27 +427,19 @@ public class SpectrumGauge
             mIsBeatOn = false;
         }
 
-        int fftResultIdx = 0;
-        float fftResultFreqRange = spectrumData.length / 9f;
-        int counter = 3;
-        double frequency = (nyquistFreq / spectrumData.length)*counter;
-        double freqInstantEnergy = 0.0;
-        double tempEnergy = 0.0;
-
-        while( frequency < LOW_FREQUENCY_THRESHOLD && counter < spectrumData.length ) {
-            tempEnergy = Math.sqrt((spectrumData[counter]*spectrumData[counter])+(spectrumDataComplex[counter]*spectrumDataComplex[counter]));
-            freqInstantEnergy += tempEnergy;
-            counter++;
-            frequency = (nyquistFreq / spectrumData.length)*counter;
-
-            fftResultIdx = max(min((int)((float)counter /fftResultFreqRange), 8), 0);
-            mFftResultInstantEnergy[fftResultIdx] += tempEnergy;
-        }
-        mRunningFreqSoundAvg[0]+=freqInstantEnergy;
+        // Band energies are sums of bin powers, so no square roots are
+        // needed for beat detection.  The bins in each band were worked
+        // out once, when we first saw this spectrum size.
+        final int bins = spectrumPower.length;
+        if (beatBands == null || !beatBands.matches(nyquistFreq * 2, bins))
+            makeBandMaps(bins);
+        beatBands.bandPowers(spectrumPower, beatPower);
+
+        double freqInstantEnergy = beatPower[0];
         mInstantFreqEnergy[0] = freqInstantEnergy;
 
         // Check for a low freq beat
-        if( freqInstantEnergy >  mCurrentAvgFreqEnergyOneSec[0]*BEAT_THRESHOLD ) {
+        if( isBandBeat(0, freqInstantEnergy) ) {
             // signal beat event to the listener
             if( !mIsLowBeatOn ) {
                 mIsLowBeatOn = true;
@@ -339,21 +454,11 @@ public class SpectrumGauge
             mIsLowBeatOn = false;
         }
 
-        freqInstantEnergy = 0;
-        while( frequency < MID_FREQUENCY_THRESHOLD && counter < spectrumData.length ) {
-            tempEnergy = Math.sqrt((spectrumData[counter]*spectrumData[counter])+(spectrumDataComplex[counter]*spectrumDataComplex[counter]));
-            freqInstantEnergy += tempEnergy;
-            frequency = (nyquistFreq / spectrumData.length)*counter;
-            counter++;
-
-            fftResultIdx = max(min((int)((float)counter /fftResultFreqRange), 8), 0);
-            mFftResultInstantEnergy[fftResultIdx] += tempEnergy;
-        }
-        mRunningFreqSoundAvg[1]+=freqInstantEnergy;
+        freqInstantEnergy = beatPower[1];
         mInstantFreqEnergy[1] = freqInstantEnergy;
 
         // Check for a mid freq beat
-        if( freqInstantEnergy >  mCurrentAvgFreqEnergyOneSec[1]*BEAT_THRESHOLD ) {
+        if( isBandBeat(1, freqInstantEnergy) ) {
             // signal beat event to the listener
             if( !mIsMidBeatOn ) {
                 mIsMidBeatOn = true;
@@ -368,21 +473,11 @@ public class SpectrumGauge
             mIsMidBeatOn = false;
         }
 
-        freqInstantEnergy = 0;
-        while( counter < spectrumData.length ) {
-            tempEnergy = Math.sqrt((spectrumData[counter]*spectrumData[counter])+(spectrumDataComplex[counter]*spectrumDataComplex[counter]));
-            freqInstantEnergy += tempEnergy;
-            frequency = (nyquistFreq / spectrumData.length)*counter;
-            counter++;
-
-            fftResultIdx = max(min((int)((float)counter /fftResultFreqRange), 8), 0);
-            mFftResultInstantEnergy[fftResultIdx] += tempEnergy;
-        }
-        mRunningFreqSoundAvg[2]+=freqInstantEnergy;
+        freqInstantEnergy = beatPower[2];
         mInstantFreqEnergy[2] = freqInstantEnergy;
 
         // Check for a high freq beat
-        if( freqInstantEnergy >  mCurrentAvgFreqEnergyOneSec[2]*BEAT_THRESHOLD ) {
+        if( isBandBeat(2, freqInstantEnergy) ) {
             // signal beat event to the listener
             if( !mIsHighBeatOn ) {
                 mIsHighBeatOn = true;
@@ -397,111 +492,198 @@ public class SpectrumGauge
             mIsHighBeatOn = false;
         }
 
-        mNumberOfSamplesInOneSec++;
-        long specEnd = System.currentTimeMillis();
-       // instrumentSurface.setFFTLag(specEnd-specStart);
+        // The equalizer display wants linear amplitudes, so this is the one
+        // place we need magnitudes; only work them out if someone's listening.
+        // The listener may be cleared on another thread, so read it once.
+        final OnFFTResultListener fftListener = onFFTResultListener;
+        if (fftListener != null) {
+            eqBands.bandMagnitudes(spectrumPower, mFftResultInstantEnergy);
+            fireFftResultEvent(fftListener, mFftResultInstantEnergy);
+        }
+    }
+
+
+    /**
+     * Work out which bins go in each beat detection band and each
+     * equalizer column, for spectra of a given size at our current
+     * sample rate.  Called when the first spectrum of a new size
+     * arrives, so the maps are built once per rate, block size and
+     * layout, not per block.
+     *
+     * @param   bins        The number of bins in the spectrum.
+     */
+    private void makeBandMaps(int bins) {
+        final int rate = nyquistFreq * 2;
+        final int blockSize = bins * 2;
+
+        // Skip the first few bins, which are below anything useful.
+        // Bin i is centred on i bin widths, so the first band starts
+        // half a bin below FIRST_BIN.
+        final float binWidth = (float) nyquistFreq / bins;
+        final float low = (FIRST_BIN - 0.5f) * binWidth;
+        final float high = nyquistFreq;
+        final float lowMid = max(LOW_FREQUENCY_THRESHOLD, low);
+        final float midHigh = max(MID_FREQUENCY_THRESHOLD, lowMid);
+        beatBands = new BandMap(rate, blockSize,
+                                new float[] { low, lowMid, midHigh, high });
+
+        if (eqLogSpaced)
+            eqBands = BandMap.logSpaced(rate, blockSize, low, high, eqColumns);
+        else
+            eqBands = BandMap.linear(rate, blockSize, low, high, eqColumns);
+    }
+
 
-        fireFftResultEvent(mFftResultInstantEnergy);
+    /**
+     * Check one band's energy against its recent history, noting the
+     * history's mean for the readouts.
+     *
+     * @param   band        The band index.
+     * @param   energy      The band's energy in this block.
+     * @return              true if the energy stands out as a beat.
+     */
+    private boolean isBandBeat(int band, double energy) {
+        mCurrentAvgFreqEnergyOneSec[band] = bandStats[band].getMean();
+        return bandStats[band].isPeak(energy);
     }
 	   
+    // ******************************************************************** //
+    // Spectrum Graph.
+    // ******************************************************************** //
+
     /**
-     * Draw a linear spectrum graph.
-     * 
-     * @param   data        An array of floats defining the signal power
-     *                      at each frequency in the spectrum.
-     * @param  canvas       Canvas to draw into.
-     * @param  paint        Paint to draw with.
+     * Work out the layout of the spectrum graph for spectra of a given
+     * size: where each bin's bar goes, which colour it is, and how tall
+     * a bar is for each power level.  This is redone whenever the
+     * geometry, sample rate or spectrum size changes, so that drawing a
+     * frame needs no logs or colour conversions.
+     *
+     * <p>The bars are put in one array of line end points; each bar's
+     * x and bottom never change, so drawing only fills in the tops.
+     * Bars are coloured in runs of neighbouring bins, so that each run
+     * is drawn with one drawLines() call.
+     *
+     * @param   len         The number of bins in the spectrum.
      */
-    private void logGraph(float[] data, Canvas canvas, Paint paint) {
-        paint.setStyle(Style.FILL);
-        paintColor[1] = 1f;
-        paintColor[2] = 1f;
-        final int len = data.length;
+    private void makeGraph(int len) {
         final float bw = (float) (spectGraphWidth - 2) / (float) len;
         final float bh = spectGraphHeight - 2;
         final float be = spectGraphY + spectGraphHeight - 1;
-        
-        // Determine the first and last frequencies we have.
-        final float lf = nyquistFreq / len;
-        final float rf = nyquistFreq;
-        
-        // Now, how many octaves is that.  Round down.  Calculate pixels/oct.
-        final int octaves = (int) Math.floor(log2(rf / lf)) - 2;
-        final float octWidth = (float) (spectGraphWidth - 2) / (float) octaves;
-        
-        // Calculate the base frequency for the graph, which isn't lf.
-        final float bf = rf / (float) Math.pow(2, octaves);
-            
-        // Element 0 isn't a frequency bucket; skip it.
-        for (int i = 1; i < len; ++i) {
-            // Cycle the hue angle from 0° to 300°; i.e. red to purple.
-            paintColor[0] = (float) i / (float) len * 300f;
-            paint.setColor(Color.HSVToColor(paintColor));
-
-            // What frequency bucket are we in.
-            final float f = lf * i;
-
-            // For freq f, calculate x.
-            final float x = spectGraphX + (float) (log2(f) - log2(bf)) * octWidth;
-
-            // Draw the bar.
-            float y = be - (float) (Math.log10(data[i]) / RANGE_BELS + 1f) * bh;
+
+        // Where each bin goes.  In log mode, work out the first and last
+        // frequencies we have; how many octaves that is, rounded down;
+        // and the base frequency for the graph, which isn't the first.
+        final float[] xs = new float[len];
+        if (logFreqScale) {
+            final float lf = (float) nyquistFreq / len;
+            final float rf = nyquistFreq;
+            final int octaves = (int) Math.floor(log2(rf / lf)) - 2;
+            final float octWidth = (float) (spectGraphWidth - 2) / (float) octaves;
+            final double lbf = log2(rf / (float) Math.pow(2, octaves));
+            for (int i = 1; i < len; ++i)
+                xs[i] = spectGraphX + (float) (log2(lf * i) - lbf) * octWidth;
+        } else {
+            for (int i = 1; i < len; ++i)
+                xs[i] = spectGraphX + i * bw + 1;
+        }
+
+        // Element 0 isn't a frequency bucket; skip it, and any bins which
+        // fall off the left of a log graph.
+        int first = 1;
+        while (first < len && xs[first] < spectGraphX)
+            ++first;
+
+        // Set up the lines.  Bars wider than a pixel are drawn as lines
+        // that wide, centred on the bar.
+        final float half = bw > 1.0f ? bw / 2f : 0f;
+        final float[] pts = new float[len * 4];
+        for (int i = first; i < len; ++i) {
+            final int p = (i - first) * 4;
+            pts[p] = pts[p + 2] = xs[i] + half;
+            pts[p + 1] = pts[p + 3] = be;
+        }
+
+        // Break the bins into colour runs.  The hue cycles from 0° to
+        // 300°, i.e. red to purple, across the whole spectrum.
+        final int[] ends = new int[GRAPH_COLOURS];
+        final int[] colours = new int[GRAPH_COLOURS];
+        int runs = 0;
+        int run = -1;
+        paintColor[1] = 1f;
+        paintColor[2] = 1f;
+        for (int i = first; i < len; ++i) {
+            final int c = Math.min(i * GRAPH_COLOURS / len, GRAPH_COLOURS - 1);
+            if (c != run) {
+                run = c;
+                paintColor[0] = (c + 0.5f) * 300f / GRAPH_COLOURS;
+                colours[runs++] = Color.HSVToColor(paintColor);
+            }
+            ends[runs - 1] = i + 1;
+        }
+
+        // The bar top for each power level.  Like SonagramGauge, index
+        // by the top bits of the power, which increase with its log.
+        final float[] tops = new float[LUT_SIZE];
+        for (int i = 0; i < LUT_SIZE; ++i) {
+            final float power = Float.intBitsToFloat((i + LUT_BASE) << LUT_SHIFT);
+            float y = be - (float) (Math.log10(power) / RANGE_BELS + 1f) * bh;
             if (y > be)
                 y = be;
             else if (y < spectGraphY)
                 y = spectGraphY;
-            if (bw <= 1.0f)
-                canvas.drawLine(x, y, x, be, paint);
-            else
-                canvas.drawRect(x, y, x + bw, be, paint);
+            tops[i] = y;
         }
 
-
+        graphBins = len;
+        graphFirst = first;
+        graphPoints = pts;
+        graphRunEnds = ends;
+        graphRunColours = colours;
+        graphRuns = runs;
+        graphTops = tops;
+        graphPaint.setStyle(Style.STROKE);
+        graphPaint.setStrokeWidth(half * 2f);
+        graphStale = false;
     }
-    
-    
+
+
     private final double log2(double x) {
         return Math.log(x) / LOG2;
     }
-    
 
-	/**
-	 * Draw a linear spectrum graph.
-	 * 
+
+    /**
+     * Draw the spectrum graph.  This method is called on the thread of
+     * the containing SurfaceView.
+     *
      * @param   data        An array of floats defining the signal power
      *                      at each frequency in the spectrum.
-	 * @param  canvas       Canvas to draw into.
-	 * @param  paint        Paint to draw with.
-	 */
-	private void linearGraph(float[] data, Canvas canvas, Paint paint) {
-        paint.setStyle(Style.FILL);
-        paintColor[1] = 1f;
-        paintColor[2] = 1f;
-        final int len = data.length;
-        final float bw = (float) (spectGraphWidth - 2) / (float) len;
-        final float bh = spectGraphHeight - 2;
-        final float be = spectGraphY + spectGraphHeight - 1;
-        
-        // Element 0 isn't a frequency bucket; skip it.
-        for (int i = 1; i < len; ++i) {
-            // Cycle the hue angle from 0° to 300°; i.e. red to purple.
-            paintColor[0] = (float) i / (float) len * 300f;
-            paint.setColor(Color.HSVToColor(paintColor));
-
-            // Draw the bar.
-            final float x = spectGraphX + i * bw + 1;
-            float y = be - (float) (Math.log10(data[i]) / RANGE_BELS + 1f) * bh;
-            if (y > be)
-                y = be;
-            else if (y < spectGraphY)
-                y = spectGraphY;
-            if (bw <= 1.0f)
-                canvas.drawLine(x, y, x, be, paint);
-            else
-                canvas.drawRect(x, y, x + bw, be, paint);
+     * @param   canvas      Canvas to draw into.
+     */
+    private void drawGraph(float[] data, Canvas canvas) {
+        if (graphStale || data.length != graphBins)
+            makeGraph(data.length);
+
+        final float[] pts = graphPoints;
+        final float[] tops = graphTops;
+        int bin = graphFirst;
+        int p = 0;
+        for (int r = 0; r < graphRuns; ++r) {
+            final int start = p;
+            final int end = graphRunEnds[r];
+            for (; bin < end; ++bin, p += 4) {
+                int i = (Float.floatToRawIntBits(data[bin]) >> LUT_SHIFT) - LUT_BASE;
+                if (i < 0)
+                    i = 0;
+                else if (i >= LUT_SIZE)
+                    i = LUT_SIZE - 1;
+                pts[p + 1] = tops[i];
+            }
+            graphPaint.setColor(graphRunColours[r]);
+            canvas.drawLines(pts, start, p - start, graphPaint);
         }
-	}
-	
+    }
+
 
 	// ******************************************************************** //
 	// View Drawing.
@@ -521,19 +703,17 @@ public class SpectrumGauge
     protected final void drawBody(Canvas canvas, Paint paint, long now) {
 	    // Since drawBody may be called more often than we get audio
 	    // data, it makes sense to just draw the buffered image here.
-	    synchronized (this) {
-	        canvas.drawBitmap(specBitmap, dispX, dispY, null);
-	    }
+	    // Only render() draws into it, on this thread, so there's no
+	    // need to lock out the analysis thread.
+	    canvas.drawBitmap(specBitmap, dispX, dispY, null);
 	}
 
     // ******************************************************************** //
     // FFT Result Listener
     // ******************************************************************** //
 
-    private void fireFftResultEvent(double[] data) {
-        if( onFFTResultListener != null ) {
-            onFFTResultListener.fftResult(data);
-        }
+    private void fireFftResultEvent(OnFFTResultListener listener, double[] data) {
+        listener.fftResult(data, blockSequence, blockCaptureTime);
     }
 
     // ******************************************************************** //
@@ -542,49 +722,49 @@ public class SpectrumGauge
 
     private void fireBeatDetectedEventOn(float intensity) {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onBeatDetectedOn(intensity);
+            onBeatDetectedListener.onBeatDetectedOn(intensity, blockSequence, blockCaptureTime);
         }
     }
 
     private void fireLowBeatDetectedEventOn(float intensity) {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onLowBeatDetectedOn(intensity);
+            onBeatDetectedListener.onLowBeatDetectedOn(intensity, blockSequence, blockCaptureTime);
         }
     }
 
     private void fireMidBeatDetectedEventOn(float intensity) {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onMidBeatDetectedOn(intensity);
+            onBeatDetectedListener.onMidBeatDetectedOn(intensity, blockSequence, blockCaptureTime);
         }
     }
 
     private void fireHighBeatDetectedEventOn(float intensity) {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onHighBeatDetectedOn(intensity);
+            onBeatDetectedListener.onHighBeatDetectedOn(intensity, blockSequence, blockCaptureTime);
         }
     }
 
     private void fireBeatDetectedEventOff() {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onBeatDetectedOff();
+            onBeatDetectedListener.onBeatDetectedOff(blockSequence, blockCaptureTime);
         }
     }
 
     private void fireLowBeatDetectedEventOff() {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onLowBeatDetectedOff();
+            onBeatDetectedListener.onLowBeatDetectedOff(blockSequence, blockCaptureTime);
         }
     }
 
     private void fireMidBeatDetectedEventOff() {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onMidBeatDetectedOff();
+            onBeatDetectedListener.onMidBeatDetectedOff(blockSequence, blockCaptureTime);
         }
     }
 
     private void fireHighBeatDetectedEventOff() {
         if( onBeatDetectedListener != null ) {
-            onBeatDetectedListener.onHighBeatDetectedOff();
+            onBeatDetectedListener.onHighBeatDetectedOff(blockSequence, blockCaptureTime);
         }
     }
 
@@ -593,25 +773,30 @@ public class SpectrumGauge
         onBeatDetectedListener = listener;
     }
 
-    // Allows the user to set an Listener and react to raw fft results in 12 buckets
+    // Allows the user to set an Listener and react to raw fft results in 12 buckets.
+    // This may be called on any thread; with no listener, the equalizer
+    // magnitudes aren't worked out at all.
     public void setOnFFTResultListener(OnFFTResultListener listener) {
         onFFTResultListener = listener;
     }
 
-    // Define our custom Listener interface
+    // Define our custom Listener interface.  Every event carries the
+    // sequence number of the audio block it was detected in, and the time
+    // that block was captured (System.nanoTime() time base), so listeners
+    // can tell how late they are.
     public interface OnBeatDetectedListener {
-        public abstract void onBeatDetectedOn(float intensity);
-        public abstract void onBeatDetectedOff();
-        public abstract void onLowBeatDetectedOn(float intensity);
-        public abstract void onMidBeatDetectedOn(float intensity);
-        public abstract void onHighBeatDetectedOn(float intensity);
-        public abstract void onLowBeatDetectedOff();
-        public abstract void onMidBeatDetectedOff();
-        public abstract void onHighBeatDetectedOff();
+        public abstract void onBeatDetectedOn(float intensity, long sequence, long captureTime);
+        public abstract void onBeatDetectedOff(long sequence, long captureTime);
+        public abstract void onLowBeatDetectedOn(float intensity, long sequence, long captureTime);
+        public abstract void onMidBeatDetectedOn(float intensity, long sequence, long captureTime);
+        public abstract void onHighBeatDetectedOn(float intensity, long sequence, long captureTime);
+        public abstract void onLowBeatDetectedOff(long sequence, long captureTime);
+        public abstract void onMidBeatDetectedOff(long sequence, long captureTime);
+        public abstract void onHighBeatDetectedOff(long sequence, long captureTime);
     }
 
     public interface OnFFTResultListener {
-        public abstract void fftResult(double[] fft);
+        public abstract void fftResult(double[] fft, long sequence, long captureTime);
     }
 
 	// ******************************************************************** //
@@ -628,6 +813,32 @@ public class SpectrumGauge
     // Vertical range of the graph in bels.
     private static final float RANGE_BELS = 6f;
 
+    // Number of colours the bars of the graph are drawn in.
+    private static final int GRAPH_COLOURS = 30;
+
+    // The table of bar heights is indexed by the exponent and top 4
+    // mantissa bits of a float power: LUT_SHIFT drops the rest.  It
+    // covers 20 octaves of power (just over RANGE_BELS) below 1.0;
+    // LUT_BASE is the index of the bottom of that range.
+    private static final int LUT_SHIFT = 23 - 4;
+    private static final int LUT_OCTAVES = 20;
+    private static final int LUT_BASE = (127 - LUT_OCTAVES) << 4;
+    private static final int LUT_SIZE = (LUT_OCTAVES << 4) + 1;
+
+    // Layout of the overlay text lines: the label for each band; where
+    // the instant and average values go in each line, and their width;
+    // the line length; the largest value which fits; and where to
+    // draw each line.
+    private static final String[] OVERLAY_LABELS = {
+        "Low Instant: ", "Mid Instant: ", "High Instant: "
+    };
+    private static final int OVERLAY_INSTANT = 14;
+    private static final int OVERLAY_FIELD = 10;
+    private static final int OVERLAY_AVG = OVERLAY_INSTANT + OVERLAY_FIELD + 6;
+    private static final int OVERLAY_LEN = OVERLAY_AVG + OVERLAY_FIELD;
+    private static final double OVERLAY_MAX = 9999999.0;
+    private static final float[] OVERLAY_Y = { 10, 50, 100 };
+
 
 	// ******************************************************************** //
 	// Private Data.
@@ -677,26 +888,73 @@ public class SpectrumGauge
 
     // My Added Variables
     OnBeatDetectedListener onBeatDetectedListener = null;
-    OnFFTResultListener onFFTResultListener = null;
+    volatile OnFFTResultListener onFFTResultListener = null;
 
-    long mSystemTimeStartSec = 0;
-    double mRunningSoundAvg = 0.0;
-    int mNumberOfSamplesInOneSec = 0;
     long mInstantEnergy = 0;
     double mCurrentAvgEnergyOneSec = 0.0;
-    long mTempMaxIntensity = 0;
-    long mMaxInstantEnergy = 0;
 
     // For frequency analysis
     double mInstantFreqEnergy[] = {0.0, 0.0, 0.0};
-    double mRunningFreqSoundAvg[] = {0.0, 0.0, 0.0};
     long mFreqInstantEnergy[] = {0, 0, 0};
     double mCurrentAvgFreqEnergyOneSec[] = {0.0, 0.0, 0.0};
 
-    // For FFT Results broken down in 9 buckets (number of columns of glass blocks)
-    double mFftResultInstantEnergy[] = new double[9];
-
-    private static final double BEAT_THRESHOLD = 1.0;
+    // Sequence number and capture time of the audio block being analysed.
+    private long blockSequence = 0;
+    private long blockCaptureTime = 0;
+
+    // True if there are results which haven't been drawn yet; and the
+    // band energies as last copied for drawing.
+    private boolean resultsChanged = false;
+    private final double[] shownInstantEnergy = new double[3];
+    private final double[] shownAvgEnergy = new double[3];
+
+    // The latest spectrum, as kept for drawing by update(); and as last
+    // copied for drawing.
+    private float[] latestSpectrum = null;
+    private float[] shownSpectrum = null;
+
+    // Layout of the spectrum graph, worked out by makeGraph() for
+    // spectra of graphBins bins; graphStale is set when it needs doing
+    // again.  graphPoints holds a line per bar, from graphFirst on;
+    // graphRunEnds[r] is the bin after the last in colour run r, which
+    // is drawn in graphRunColours[r].  graphTops is the bar top for
+    // each power level.  These are only used on the drawing thread.
+    private volatile boolean graphStale = true;
+    private int graphBins = 0;
+    private int graphFirst = 0;
+    private float[] graphPoints = null;
+    private int[] graphRunEnds = null;
+    private int[] graphRunColours = null;
+    private int graphRuns = 0;
+    private float[] graphTops = null;
+    private final Paint graphPaint = new Paint();
+
+    // Paint and text buffers for the band energy readouts.
+    private final Paint overlayPaint = new Paint();
+    private final char[] overlayText[] = new char[OVERLAY_LABELS.length][];
+
+    // For FFT Results broken down in eqColumns buckets (by default 9,
+    // the number of columns of glass blocks); and whether the columns
+    // are spaced on a log frequency scale.
+    private int eqColumns = DEFAULT_EQ_COLUMNS;
+    private boolean eqLogSpaced = false;
+    double mFftResultInstantEnergy[] = new double[DEFAULT_EQ_COLUMNS];
+
+    // The bins in each beat detection band and each equalizer column,
+    // for the current spectrum size; null until we see a spectrum.  And
+    // the power in each beat detection band.
+    private BandMap beatBands = null;
+    private BandMap eqBands = null;
+    private final float[] beatPower = new float[3];
+
+    // Rolling history of the overall energy and each band's energy, for
+    // the beat thresholds.  The mean energies above are the means of
+    // these histories.
+    private RollingStats energyStats;
+    private final RollingStats[] bandStats = new RollingStats[3];
+
+    private static final int FIRST_BIN = 3;
+    private static final int DEFAULT_EQ_COLUMNS = 9;
     private static final int LOW_FREQUENCY_THRESHOLD = 250;
     private static final int MID_FREQUENCY_THRESHOLD = 2000;
 
@@ -21,15 +21,21 @@
 package org.hermit.android.io;
 
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioManager;
 import android.util.Log;
 
 
 /**
- * A class which reads audio input from the mic in a background thread and
- * passes it to the caller when ready.
+ * A class which reads audio input in a background thread and passes it
+ * to the caller when ready.  The input normally comes from the mic, but
+ * can be any {@link AudioSource}.
+ *
+ * <p>Each block read is published to an {@link AudioRing}, from which the
+ * caller's own thread takes it.  The reader never waits on the caller; if
+ * the caller falls so far behind that the ring fills, blocks are dropped
+ * and counted as overruns in the ring.
  * 
  * <p>To use this class, your application must have permission RECORD_AUDIO.
  */
@@ -60,16 +66,28 @@ public class AudioReader
         public static final int ERR_READ_FAILED = 2;
         
         /**
-         * An audio read has completed.
-         * @param   buffer      Buffer containing the data.
+         * An audio read has completed, and the block has been published
+         * to the ring.  This is called on the reader thread, so it must
+         * be quick; the data itself should be taken from the ring by the
+         * consumer thread.
+         * @param   buffer      The ring's buffer containing the data.
+         * @param   offset      Offset in buffer of the block just read.
+         * @param   count       Number of samples in the block.
          */
-        public abstract void onReadComplete(short[] buffer);
+        public abstract void onReadComplete(short[] buffer, int offset, int count);
         
         /**
          * An error has occurred.  The reader has been terminated.
          * @param   error       ERR_XXX code describing the error.
          */
         public abstract void onReadError(int error);
+
+        /**
+         * The source has come to the end of its input, and the reader
+         * has stopped reading.  This never happens with the mic.
+         */
+        public void onReadEnd() {
+        }
     }
     
     
@@ -85,38 +103,112 @@ public class AudioReader
     }
 
 
+    // ******************************************************************** //
+    // Device Configuration.
+    // ******************************************************************** //
+
+    /**
+     * Get the device's native audio sample rate.  Capturing at this rate
+     * avoids resampling in the audio system.
+     *
+     * @param   context     The application context we're running in.
+     * @return              The native rate, in samples / sec; or
+     *                      DEFAULT_SAMPLE_RATE if the device doesn't say.
+     */
+    public static int getNativeSampleRate(Context context) {
+        return getAudioProperty(context,
+                                AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE,
+                                DEFAULT_SAMPLE_RATE);
+    }
+
+
+    /**
+     * Get the size of the device's native audio buffer.  Reading blocks
+     * which are a multiple of this means each read is satisfied by whole
+     * buffers, rather than waiting on a partly filled one.
+     *
+     * @param   context     The application context we're running in.
+     * @return              The native buffer size, in samples; or 0
+     *                      if the device doesn't say.
+     */
+    public static int getNativeFramesPerBuffer(Context context) {
+        return getAudioProperty(context,
+                                AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER,
+                                0);
+    }
+
+
+    /**
+     * Say whether the device has a low-latency audio path.  On such
+     * devices, a {@link MicAudioSource} in low-latency mode can run with
+     * the smallest buffers.
+     *
+     * @param   context     The application context we're running in.
+     * @return              true if the device claims low-latency audio.
+     */
+    public static boolean hasLowLatencyInput(Context context) {
+        PackageManager pm = context.getPackageManager();
+        return pm != null &&
+               pm.hasSystemFeature(PackageManager.FEATURE_AUDIO_LOW_LATENCY);
+    }
+
+
+    private static int getAudioProperty(Context context, String key, int def) {
+        AudioManager am =
+                (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        String value = am == null ? null : am.getProperty(key);
+        if (value == null)
+            return def;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+
     // ******************************************************************** //
     // Run Control.
     // ******************************************************************** //
 
+    /**
+     * Start this reader, reading from the mic.
+     * 
+     * @param   rate        The audio sampling rate, in samples / sec.
+     * @param   ring        Ring to publish the input to.  Its block size
+     *                      is the number of samples of input to read at
+     *                      a time -- the hop between analysis windows,
+     *                      if the consumer overlaps them.  This is
+     *                      different from the system audio buffer size.
+     * @param   listener    Listener to be notified on each completed read.
+     */
+    public void startReader(int rate, AudioRing ring, Listener listener) {
+        startReader(new MicAudioSource(), rate, ring, listener);
+    }
+
+
     /**
      * Start this reader.
      * 
+     * @param   source      The source to read audio from.
      * @param   rate        The audio sampling rate, in samples / sec.
-     * @param   block       Number of samples of input to read at a time.
-     *                      This is different from the system audio
-     *                      buffer size.
+     * @param   ring        Ring to publish the input to.  Its block size
+     *                      is the number of samples of input to read at
+     *                      a time.
      * @param   listener    Listener to be notified on each completed read.
      */
-    public void startReader(int rate, int block, Listener listener) {
+    public void startReader(AudioSource source, int rate,
+                            AudioRing ring, Listener listener) {
         Log.i(TAG, "Reader: Start Thread");
         synchronized (this) {
-            // Calculate the required I/O buffer size.
-            int audioBuf = AudioRecord.getMinBufferSize(rate,
-                                         AudioFormat.CHANNEL_CONFIGURATION_MONO,
-                                         AudioFormat.ENCODING_PCM_16BIT) * 2;
-
-            // Set up the audio input.
-            audioInput = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                                         rate,
-                                         AudioFormat.CHANNEL_CONFIGURATION_MONO,
-                                         AudioFormat.ENCODING_PCM_16BIT,
-                                         audioBuf);
+            int block = ring.getBlockSize();
+
+            audioSource = source;
+            sampleRate = rate;
             inputBlockSize = block;
-            sleepTime = (long) (1000f / ((float) rate / (float) block));
-            inputBuffer = new short[2][inputBlockSize];
-            inputBufferWhich = 0;
-            inputBufferIndex = 0;
+            inputRing = ring;
+            if (discardBuffer == null || discardBuffer.length != block)
+                discardBuffer = new short[block];
             inputListener = listener;
             running = true;
             readerThread = new Thread(new Runnable() {
@@ -146,9 +238,9 @@ public class AudioReader
         
         // Kill the audio input.
         synchronized (this) {
-            if (audioInput != null) {
-                audioInput.release();
-                audioInput = null;
+            if (audioSource != null) {
+                audioSource.close();
+                audioSource = null;
             }
         }
         
@@ -164,18 +256,15 @@ public class AudioReader
      * Main loop of the audio reader.  This runs in our own thread.
      */
     private void readerRun() {
-        short[] buffer;
-        int index, readSize;
+        final AudioSource source = audioSource;
+        final boolean live = source.isLive();
+        final AudioRing ring = inputRing;
+        final short[] samples = ring.getBuffer();
+        short[] buffer = null;
+        int base = 0, index = 0;
+        long frames = 0;
         
-        int timeout = 200;
-        try {
-            while (timeout > 0 && audioInput.getState() != AudioRecord.STATE_INITIALIZED) {
-                Thread.sleep(50);
-                timeout -= 50;
-            }
-        } catch (InterruptedException e) { }
-
-        if (audioInput.getState() != AudioRecord.STATE_INITIALIZED) {
+        if (!source.open(sampleRate, inputBlockSize)) {
             Log.e(TAG, "Audio reader failed to initialize");
             readError(Listener.ERR_INIT_FAILED);
             running = false;
@@ -184,69 +273,64 @@ public class AudioReader
 
         try {
             Log.i(TAG, "Reader: Start Recording");
-            audioInput.startRecording();
+            source.start();
             while (running) {
-                long stime = System.currentTimeMillis();
+                // Get a block to read into.  If the ring is full, we
+                // still have to keep a live input serviced, so read into
+                // the discard buffer and count the block as dropped.
+                if (buffer == null) {
+                    base = ring.beginWrite();
+
+                    // A source which isn't live can wait for room, so
+                    // that none of it is lost.  The consumer wakes us
+                    // when it frees a block.
+                    while (base < 0 && !live && running)
+                        base = ring.awaitWrite(RING_WAIT_NANOS);
+
+                    if (base >= 0)
+                        buffer = samples;
+                    else {
+                        buffer = discardBuffer;
+                        base = 0;
+                    }
+                    index = 0;
+                }
 
+                int nread = source.read(buffer, base + index, inputBlockSize - index);
                 if (!running)
                     break;
 
-                readSize = inputBlockSize;
-                int space = inputBlockSize - inputBufferIndex;
-                if (readSize > space)
-                    readSize = space;
-                buffer = inputBuffer[inputBufferWhich];
-                index = inputBufferIndex;
-
-                synchronized (buffer) {
-                    int nread = audioInput.read(buffer, index, readSize);
-
-                    boolean done = false;
-                    if (!running)
-                        break;
-                    
-                    if (nread < 0) {
-                        Log.e(TAG, "Audio read failed: error " + nread);
-                        readError(Listener.ERR_READ_FAILED);
-                        running = false;
-                        break;
-                    }
-                    int end = inputBufferIndex + nread;
-                    if (end >= inputBlockSize) {
-                        inputBufferWhich = (inputBufferWhich + 1) % 2;
-                        inputBufferIndex = 0;
-                        done = true;
-                    } else
-                        inputBufferIndex = end;
-
-                    if (done) {
-                        readDone(buffer);
-
-                        // Because our block size is way smaller than the audio
-                        // buffer, we get blocks in bursts, which messes up
-                        // the audio analyzer.  We don't want to be forced to
-                        // wait until the analysis is done, because if
-                        // the analysis is slow, lag will build up.  Instead
-                        // wait, but with a timeout which lets us keep the
-                        // input serviced.
-                        long etime = System.currentTimeMillis();
-                        long sleep = sleepTime - (etime - stime);
-                        if (sleep < 5)
-                            sleep = 5;
-                        try {
-                            buffer.wait(sleep);
-                        } catch (InterruptedException e) {
-                            // interrupted?
-                            int abc = 0;
-                            abc++;
-                        }
+                // A live input can have nothing for us for a moment;
+                // any source can come to an end.
+                if (nread == 0 && (!live || source.isExhausted())) {
+                    Log.i(TAG, "Reader: End of input");
+                    running = false;
+                    inputListener.onReadEnd();
+                    break;
+                }
+
+                if (nread < 0) {
+                    Log.e(TAG, "Audio read failed: error " + nread);
+                    readError(Listener.ERR_READ_FAILED);
+                    running = false;
+                    break;
+                }
+
+                index += nread;
+                frames += nread;
+                if (index >= inputBlockSize) {
+                    if (buffer == discardBuffer)
+                        ring.dropBlock();
+                    else {
+                        ring.endWrite(source.getCaptureTime(frames - 1));
+                        readDone(buffer, base);
                     }
+                    buffer = null;
                 }
             }
         } finally {
             Log.i(TAG, "Reader: Stop Recording");
-            if (audioInput.getState() == AudioRecord.RECORDSTATE_RECORDING)
-                audioInput.stop();
+            source.stop();
         }
     }
 
@@ -255,9 +339,10 @@ public class AudioReader
      * Notify the client that a read has completed.
      * 
      * @param   buffer      Buffer containing the data.
+     * @param   offset      Offset in buffer of the block just read.
      */
-    private void readDone(short[] buffer) {
-        inputListener.onReadComplete(buffer);
+    private void readDone(short[] buffer, int offset) {
+        inputListener.onReadComplete(buffer, offset, inputBlockSize);
     }
     
     
@@ -279,30 +364,38 @@ public class AudioReader
     // Debugging tag.
 	private static final String TAG = "WindMeter";
 
+    // Sample rate to assume if the device doesn't report its native
+    // rate.  44.1 kHz is the one rate every device must support.
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    // Longest we wait for room in the ring at a time, in ns, so that we
+    // notice being stopped.
+    private static final long RING_WAIT_NANOS = 10000000L;
+
 	
 	// ******************************************************************** //
 	// Private Data.
 	// ******************************************************************** //
     
-    // Our audio input device.
-    private AudioRecord audioInput;
+    // Our audio input source, and the rate we read it at.
+    private AudioSource audioSource;
+    private int sampleRate = 0;
+
+    // The ring we publish input blocks to.
+    private AudioRing inputRing = null;
 
-    // Our audio input buffer, and the index of the next item to go in.
-    private short[][] inputBuffer = null;
-    private int inputBufferWhich = 0;
-    private int inputBufferIndex = 0;
+    // Block we read into when the ring is full, so that the input keeps
+    // being serviced.  Its contents are thrown away.
+    private short[] discardBuffer = null;
 
     // Size of the block to read each time.
     private int inputBlockSize = 0;
     
-    // Time in ms to sleep between blocks, to meter the supply rate.
-    private long sleepTime = 0;
-    
     // Listener for input.
     private Listener inputListener = null;
     
     // Flag whether the thread should be running.
-    private boolean running = false;
+    private volatile boolean running = false;
     
     // The thread, if any, which is currently reading.  Null if not running.
     private Thread readerThread = null;
@@ -0,0 +1,344 @@
+
+/**
+ * org.hermit.android.io: Android utilities for accessing peripherals.
+ *
+ * These classes provide some basic utilities for accessing the audio
+ * interface, at present.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.io;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A lock-free ring of preallocated audio blocks, passing data from one
+ * producer thread (the audio reader) to one consumer thread (the
+ * analyser).  Neither side ever has to wait for the other.
+ *
+ * <p>The blocks are laid out end to end in one circular sample buffer,
+ * {@link #getBuffer()}; blocks are identified by their offset in it.
+ * The producer fills the block obtained from {@link #beginWrite()} and
+ * publishes it with {@link #endWrite()}.  If the consumer has fallen so
+ * far behind that the ring is full, beginWrite() returns -1; the
+ * producer should then call {@link #dropBlock()}, which counts the
+ * overrun; or, if it can afford to wait, as when reading a file, call
+ * {@link #awaitWrite(long)}, which sleeps until the consumer frees a
+ * block.  A block is never overwritten while the consumer may be
+ * reading it.
+ *
+ * <p>The consumer looks at the oldest unread block with {@link #peek()},
+ * and hands it back with {@link #release()}.  Every block captured,
+ * including dropped ones, gets a sequence number, so the consumer can
+ * see exactly where data was lost; and a capture timestamp, so it can
+ * tell how long the block has been waiting.
+ *
+ * <p>The ring can also keep a number of history blocks: the blocks most
+ * recently released are not overwritten, so the samples just before the
+ * block being read are still in the buffer.  This lets the consumer take
+ * windows longer than a block, overlapping from one block to the next,
+ * straight out of the buffer without copying.
+ */
+public final class AudioRing
+{
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create a ring with no history.  All the blocks are allocated here.
+     *
+     * @param   blockSize   Number of samples in each block.
+     * @param   capacity    Number of blocks in the ring.
+     * @throws  IllegalArgumentException    Invalid parameter.
+     */
+    public AudioRing(int blockSize, int capacity) {
+        this(blockSize, capacity, 0);
+    }
+
+
+    /**
+     * Create a ring.  All the blocks are allocated here.
+     *
+     * @param   blockSize   Number of samples in each block.
+     * @param   capacity    Number of unread blocks the ring can hold.
+     * @param   history     Number of released blocks to keep intact
+     *                      behind the block being read.
+     * @throws  IllegalArgumentException    Invalid parameter.
+     */
+    public AudioRing(int blockSize, int capacity, int history) {
+        if (blockSize < 1 || capacity < 1 || history < 0)
+            throw new IllegalArgumentException("bad audio ring size: " +
+                                               capacity + " + " + history +
+                                               " blocks of " + blockSize);
+        this.blockSize = blockSize;
+        this.capacity = capacity;
+        this.history = history;
+        slots = capacity + history;
+        samples = new short[slots * blockSize];
+        sequences = new long[slots];
+        captureTimes = new long[slots];
+    }
+
+
+    // ******************************************************************** //
+    // Accessors.
+    // ******************************************************************** //
+
+    /**
+     * Get the number of samples in each block.
+     *
+     * @return              The block size.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+
+    /**
+     * Get the number of unread blocks the ring can hold.
+     *
+     * @return              The ring capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Get the number of released blocks which are kept intact behind
+     * the block being read.
+     *
+     * @return              The number of history blocks.
+     */
+    public int getHistory() {
+        return history;
+    }
+
+
+    /**
+     * Get the circular sample buffer which holds all the blocks.  The
+     * block at offset off occupies buffer[off] to buffer[off + blockSize
+     * - 1]; the history blocks before it wrap round from the start of
+     * the buffer to the end.
+     *
+     * @return              The sample buffer.  The caller may read, but
+     *                      not write, the block it has peeked and the
+     *                      history before it.
+     */
+    public short[] getBuffer() {
+        return samples;
+    }
+
+
+    /**
+     * Get the number of blocks which have been published but not yet
+     * released by the consumer.  This may be called from either thread.
+     *
+     * @return              The number of blocks waiting.
+     */
+    public int available() {
+        return (int) (written.get() - read.get());
+    }
+
+
+    /**
+     * Get the number of blocks which were dropped because the ring was
+     * full.  This may be called from either thread.
+     *
+     * @return              The total number of overruns.
+     */
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+
+    // ******************************************************************** //
+    // Producer.
+    // ******************************************************************** //
+
+    /**
+     * Get the next block to fill.  Only the producer thread may call this.
+     *
+     * @return              The offset in {@link #getBuffer()} of the block
+     *                      to fill, or -1 if the ring is full.
+     */
+    public int beginWrite() {
+        if (writePos - read.get() >= capacity)
+            return -1;
+        return (int) (writePos % slots) * blockSize;
+    }
+
+
+    /**
+     * Wait for room in the ring, and get the next block to fill.  The
+     * consumer wakes us when it releases a block.  Only the producer
+     * thread may call this.
+     *
+     * @param   nanos       The longest to wait, in ns.
+     * @return              The offset in {@link #getBuffer()} of the block
+     *                      to fill, or -1 if the ring is still full.
+     */
+    public int awaitWrite(long nanos) {
+        int base = beginWrite();
+        if (base >= 0)
+            return base;
+
+        // Check again once the consumer can see we're waiting, so that
+        // a release in between isn't missed.  The wake-up can still be
+        // missed, as release() doesn't fence; the time limit covers that.
+        waitingWriter = Thread.currentThread();
+        base = beginWrite();
+        if (base < 0) {
+            LockSupport.parkNanos(this, nanos);
+            base = beginWrite();
+        }
+        waitingWriter = null;
+        return base;
+    }
+
+
+    /**
+     * Publish the block obtained from the last call to
+     * {@link #beginWrite()}, timestamped now.  Only the producer thread
+     * may call this.
+     */
+    public void endWrite() {
+        endWrite(System.nanoTime());
+    }
+
+
+    /**
+     * Publish the block obtained from the last call to
+     * {@link #beginWrite()}.  Only the producer thread may call this.
+     *
+     * @param   captureTime The time at which the last sample in the block
+     *                      was captured, in the {@link System#nanoTime()}
+     *                      time base.
+     */
+    public void endWrite(long captureTime) {
+        int slot = (int) (writePos % slots);
+        sequences[slot] = captured++;
+        captureTimes[slot] = captureTime;
+        written.lazySet(++writePos);
+    }
+
+
+    /**
+     * Record that a block was captured but had to be discarded, because
+     * the ring was full.  Only the producer thread may call this.
+     */
+    public void dropBlock() {
+        ++captured;
+        overruns.lazySet(overruns.get() + 1);
+    }
+
+
+    // ******************************************************************** //
+    // Consumer.
+    // ******************************************************************** //
+
+    /**
+     * Get the oldest unread block, without removing it.  Only the
+     * consumer thread may call this.  The block's contents, and the
+     * history before it, stay valid until {@link #release()} is called.
+     *
+     * @return              The offset in {@link #getBuffer()} of the
+     *                      oldest unread block, or -1 if there are none.
+     */
+    public int peek() {
+        if (readPos >= written.get())
+            return -1;
+        return (int) (readPos % slots) * blockSize;
+    }
+
+
+    /**
+     * Get the sequence number of the block returned by {@link #peek()}.
+     * Sequence numbers count every block captured, from zero; a gap
+     * between consecutive blocks means blocks were dropped.  Only the
+     * consumer thread may call this.
+     *
+     * @return              The sequence number of the oldest unread block.
+     *                      Only valid if peek() returned a block.
+     */
+    public long peekSequence() {
+        return sequences[(int) (readPos % slots)];
+    }
+
+
+    /**
+     * Get the capture time of the block returned by {@link #peek()}.
+     * Only the consumer thread may call this.
+     *
+     * @return              The time at which the last sample in the block
+     *                      was captured, in the {@link System#nanoTime()}
+     *                      time base.  Only valid if peek() returned a
+     *                      block.
+     */
+    public long peekCaptureTime() {
+        return captureTimes[(int) (readPos % slots)];
+    }
+
+
+    /**
+     * Hand the block returned by {@link #peek()} back to the producer.
+     * Only the consumer thread may call this.
+     */
+    public void release() {
+        read.lazySet(++readPos);
+        final Thread writer = waitingWriter;
+        if (writer != null)
+            LockSupport.unpark(writer);
+    }
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // Number of samples per block; number of unread blocks we can hold;
+    // number of released blocks we keep; and the total number of blocks.
+    private final int blockSize;
+    private final int capacity;
+    private final int history;
+    private final int slots;
+
+    // The blocks, end to end, and the sequence number and capture time
+    // of the data in each.
+    private final short[] samples;
+    private final long[] sequences;
+    private final long[] captureTimes;
+
+    // Producer's count of blocks written, and of blocks captured
+    // (including dropped ones).  Only touched by the producer.
+    private long writePos = 0;
+    private long captured = 0;
+
+    // Consumer's count of blocks released.  Only touched by the consumer.
+    private long readPos = 0;
+
+    // The two positions, as published to the other side.
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong read = new AtomicLong();
+
+    // Number of blocks dropped because the ring was full.
+    private final AtomicLong overruns = new AtomicLong();
+
+    // The producer, while it's waiting in awaitWrite(); else null.
+    private volatile Thread waitingWriter = null;
+
+}
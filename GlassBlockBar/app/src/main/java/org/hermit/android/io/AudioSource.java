@@ -0,0 +1,112 @@
+
+/**
+ * org.hermit.android.io: Android utilities for accessing peripherals.
+ *
+ * These classes provide some basic utilities for accessing the audio
+ * interface, at present.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.io;
+
+
+/**
+ * A source of 16-bit mono audio for an {@link AudioReader}.  The reader
+ * calls the methods here in order from its own thread: {@link #open},
+ * {@link #start}, {@link #read} repeatedly, {@link #stop}, and finally
+ * {@link #close} (from the thread which stops the reader).
+ *
+ * <p>Apart from {@link MicAudioSource}, the sources don't depend on the
+ * Android platform, so the capture and analysis code can be driven from
+ * a file or a synthetic signal on any JVM.
+ */
+public interface AudioSource
+{
+
+    /**
+     * Say whether this is a live source.  The reader never holds up a
+     * live source: if the consumer falls behind, blocks are dropped.  A
+     * source which isn't live is instead made to wait for room in the
+     * ring, so that every sample of it is analysed.
+     *
+     * @return              true if this source is live.
+     */
+    boolean isLive();
+
+
+    /**
+     * Set up the source.
+     *
+     * @param   rate        The audio sampling rate, in samples / sec.
+     * @param   block       Number of samples the reader will ask for
+     *                      at a time.
+     * @return              true if the source is ready; false if it
+     *                      failed to initialise.
+     */
+    boolean open(int rate, int block);
+
+
+    /**
+     * Start delivering audio.
+     */
+    void start();
+
+
+    /**
+     * Read audio samples, waiting until they are available.
+     *
+     * @param   buffer      Buffer to read into.
+     * @param   offset      Offset in buffer to start at.
+     * @param   count       Maximum number of samples to read.
+     * @return              The number of samples read; 0 if there are
+     *                      none just now, or the source is
+     *                      {@link #isExhausted exhausted}; or a negative
+     *                      error code.
+     */
+    int read(short[] buffer, int offset, int count);
+
+
+    /**
+     * Say whether the source has come to the end of its data.  The
+     * reader checks this when a read returns nothing, and if so ends
+     * the input; a live source which isn't exhausted is read again.
+     *
+     * @return              true if there is no more audio to come.
+     */
+    boolean isExhausted();
+
+
+    /**
+     * Get the time at which a given sample was captured.  This is called
+     * on the reader thread, after the sample has been read.
+     *
+     * @param   frame       Index of the sample, counting every sample
+     *                      read since {@link #start()} from zero.
+     * @return              The capture time, in the
+     *                      {@link System#nanoTime()} time base.
+     */
+    long getCaptureTime(long frame);
+
+
+    /**
+     * Stop delivering audio.
+     */
+    void stop();
+
+
+    /**
+     * Release all the resources held by this source.  It may be
+     * opened again afterwards.
+     */
+    void close();
+
+}
@@ -0,0 +1,329 @@
+
+/**
+ * org.hermit.android.io: Android utilities for accessing peripherals.
+ *
+ * These classes provide some basic utilities for accessing the audio
+ * interface, at present.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.io;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * An {@link AudioSource} which plays back a 16-bit PCM file.  The file
+ * is memory-mapped, so reading it costs no more than copying the samples
+ * out.
+ *
+ * <p>The file may be a WAV file, in which case multi-channel audio is
+ * mixed down to mono; or raw little-endian mono samples at whatever
+ * rate the reader is started at.  The WAV sample rate is not converted;
+ * use {@link #getSampleRate()} to set up the reader to match.
+ *
+ * <p>By default the file is delivered as fast as it is read, which suits
+ * benchmarking; {@link #setRealTime(boolean)} meters it out at the
+ * sample rate instead, like a live input.
+ */
+public class FileAudioSource
+    implements AudioSource
+{
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create a source which plays the given file.  The file's header,
+     * if any, is read here.
+     *
+     * @param   file        The WAV or raw PCM file to play.
+     * @throws  IOException The file couldn't be read, or is a WAV file
+     *                      in a format other than 16-bit PCM.
+     */
+    public FileAudioSource(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                                               0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            parseHeader(map);
+            samples = map.asShortBuffer();
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Find the sample data in the file.  On return, map is positioned
+     * and limited to the samples.
+     *
+     * @param   map         The mapped file.
+     * @throws  IOException The file is a WAV file in a format we can't
+     *                      play.
+     */
+    private void parseHeader(MappedByteBuffer map) throws IOException {
+        if (map.remaining() < 12 || map.getInt(0) != RIFF || map.getInt(8) != WAVE) {
+            // Raw PCM.
+            map.limit(map.limit() & ~1);
+            return;
+        }
+
+        // Chunk lengths are unsigned; a streamed file may give its data
+        // length as 0xffffffff, meaning "to the end of the file".
+        long pos = 12;
+        boolean haveFormat = false;
+        while (pos + 8 <= map.limit()) {
+            int id = map.getInt((int) pos);
+            long len = map.getInt((int) pos + 4) & 0xffffffffL;
+            int body = (int) pos + 8;
+            if (id == FMT) {
+                if (len < 16 || body + 16 > map.limit())
+                    throw new IOException("bad WAV format chunk length: " + len);
+                int format = map.getShort(body) & 0xffff;
+                channels = map.getShort(body + 2) & 0xffff;
+                fileRate = map.getInt(body + 4);
+                int bits = map.getShort(body + 14) & 0xffff;
+                if (format != WAVE_FORMAT_PCM || bits != 16 || channels < 1)
+                    throw new IOException("unsupported WAV format: type " + format +
+                                          ", " + bits + " bits, " + channels +
+                                          " channels");
+                haveFormat = true;
+            } else if (id == DATA) {
+                if (!haveFormat)
+                    throw new IOException("WAV data before format chunk");
+                int end = (int) Math.min(map.limit(), body + len);
+                int frame = channels * 2;
+                end = body + (end - body) / frame * frame;
+                map.limit(end);
+                map.position(body);
+                return;
+            }
+            // Chunks are padded to an even length.
+            pos = body + len + (len & 1);
+        }
+        throw new IOException("WAV file has no data");
+    }
+
+
+    // ******************************************************************** //
+    // Configuration.
+    // ******************************************************************** //
+
+    /**
+     * Get the sample rate given in the file's header.
+     *
+     * @return              The file's rate, in samples / sec; 0 for a raw
+     *                      PCM file.
+     */
+    public int getSampleRate() {
+        return fileRate;
+    }
+
+
+    /**
+     * Get the length of the file.
+     *
+     * @return              The number of (mono) samples in the file.
+     */
+    public int getLength() {
+        return samples.limit() / channels;
+    }
+
+
+    /**
+     * Set whether to meter the audio out at the sample rate.
+     *
+     * @param   realTime    If true, deliver the audio in real time;
+     *                      if false, as fast as it is asked for.
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+
+    /**
+     * Set whether to go back to the start at the end of the file.
+     *
+     * @param   looping     If true, play the file over and over; if
+     *                      false, end the input at the end of the file.
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+
+    // ******************************************************************** //
+    // AudioSource.
+    // ******************************************************************** //
+
+    /**
+     * Say whether this is a live source.
+     *
+     * @return              true if the file is being played in real time.
+     */
+    @Override
+    public boolean isLive() {
+        return realTime;
+    }
+
+
+    /**
+     * Get ready to play the file from the start.
+     *
+     * @param   rate        The audio sampling rate, in samples / sec.
+     * @param   block       Number of samples the reader will ask for
+     *                      at a time.
+     * @return              Always true.
+     */
+    @Override
+    public boolean open(int rate, int block) {
+        sampleRate = rate;
+        samples.rewind();
+        return true;
+    }
+
+
+    /**
+     * Start delivering audio.
+     */
+    @Override
+    public void start() {
+        pacer.start(sampleRate);
+    }
+
+
+    /**
+     * Read audio samples from the file.
+     *
+     * @param   buffer      Buffer to read into.
+     * @param   offset      Offset in buffer to start at.
+     * @param   count       Maximum number of samples to read.
+     * @return              The number of samples read; 0 at the end of
+     *                      the file, if not looping.
+     */
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        if (!samples.hasRemaining()) {
+            if (!looping || samples.limit() == 0)
+                return 0;
+            samples.rewind();
+        }
+
+        int n = Math.min(count, samples.remaining() / channels);
+        if (channels == 1)
+            samples.get(buffer, offset, n);
+        else {
+            for (int i = 0; i < n; ++i) {
+                int sum = 0;
+                for (int c = 0; c < channels; ++c)
+                    sum += samples.get();
+                buffer[offset + i] = (short) (sum / channels);
+            }
+        }
+
+        if (realTime)
+            pacer.await(n);
+        return n;
+    }
+
+
+    /**
+     * Say whether the whole file has been played.
+     *
+     * @return              true at the end of the file, if not looping.
+     */
+    @Override
+    public boolean isExhausted() {
+        return !samples.hasRemaining() && (!looping || samples.limit() == 0);
+    }
+
+
+    /**
+     * Get the time at which a given sample was delivered.  In real time,
+     * this is when the sample was due; otherwise it's now.
+     *
+     * @param   frame       Index of the sample since {@link #start()}.
+     * @return              The delivery time, in the
+     *                      {@link System#nanoTime()} time base.
+     */
+    @Override
+    public long getCaptureTime(long frame) {
+        return realTime ? pacer.timeOf(frame) : System.nanoTime();
+    }
+
+
+    /**
+     * Stop delivering audio.
+     */
+    @Override
+    public void stop() {
+    }
+
+
+    /**
+     * Release resources.  The mapping is released when this source is
+     * garbage collected.
+     */
+    @Override
+    public void close() {
+    }
+
+
+    // ******************************************************************** //
+    // Class Data.
+    // ******************************************************************** //
+
+    // WAV chunk IDs, as little-endian ints.
+    private static final int RIFF = 0x46464952;
+    private static final int WAVE = 0x45564157;
+    private static final int FMT = 0x20746d66;
+    private static final int DATA = 0x61746164;
+
+    // WAV format code for integer PCM.
+    private static final int WAVE_FORMAT_PCM = 1;
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The samples in the mapped file, and the number of interleaved
+    // channels in them.
+    private final ShortBuffer samples;
+    private int channels = 1;
+
+    // Sample rate given in the file's header; 0 if none.
+    private int fileRate = 0;
+
+    // The rate we are delivering at.
+    private int sampleRate = 0;
+
+    // Whether to deliver in real time, and whether to loop.
+    private boolean realTime = false;
+    private boolean looping = false;
+
+    // Pacer for real-time delivery.
+    private final RealTimePacer pacer = new RealTimePacer();
+
+}
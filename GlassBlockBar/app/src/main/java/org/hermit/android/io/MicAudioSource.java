@@ -0,0 +1,235 @@
+
+/**
+ * org.hermit.android.io: Android utilities for accessing peripherals.
+ *
+ * These classes provide some basic utilities for accessing the audio
+ * interface, at present.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.io;
+
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Process;
+
+
+/**
+ * An {@link AudioSource} which reads from the device's microphone.
+ *
+ * <p>In low-latency mode, the input buffer is cut to the smallest size
+ * the device allows; the voice recognition input is used, which on most
+ * devices skips the platform's gain control and noise suppression (it
+ * is not guaranteed to be a faster path, only a less processed one);
+ * and the reader thread runs at urgent audio priority, so that it keeps
+ * up with the smaller buffer.  Reads block until the hardware delivers,
+ * so the reader is paced by the device.
+ *
+ * <p>Samples are read as 16-bit PCM into a short array.  A direct
+ * ByteBuffer read (available since API 3) would save nothing, since
+ * the conversion to float is fused with windowing; float PCM capture
+ * needs API 23, above our minSdk.
+ *
+ * <p>Capture times come from the input's own timestamps where the
+ * platform provides them (Android 7 and up); otherwise a sample is
+ * taken to have been captured when the read returned it.
+ *
+ * <p>To use this class, your application must have permission RECORD_AUDIO.
+ */
+public class MicAudioSource
+    implements AudioSource
+{
+
+    // ******************************************************************** //
+    // Constructors.
+    // ******************************************************************** //
+
+    /**
+     * Create a mic source with the normal amount of buffering.
+     */
+    public MicAudioSource() {
+        this(false);
+    }
+
+
+    /**
+     * Create a mic source.
+     *
+     * @param   lowLatency  If true, capture in low-latency mode.  This
+     *                      is best used only where
+     *                      {@link AudioReader#hasLowLatencyInput} says
+     *                      the device supports it.
+     */
+    public MicAudioSource(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
+
+
+    // ******************************************************************** //
+    // AudioSource.
+    // ******************************************************************** //
+
+    /**
+     * Say whether this is a live source.
+     *
+     * @return              Always true.
+     */
+    @Override
+    public boolean isLive() {
+        return true;
+    }
+
+
+    /**
+     * Set up the audio input.
+     *
+     * @param   rate        The audio sampling rate, in samples / sec.
+     * @param   block       Number of samples the reader will ask for
+     *                      at a time.
+     * @return              true if the input is ready; false if it
+     *                      failed to initialise.
+     */
+    @Override
+    public boolean open(int rate, int block) {
+        // Calculate the required I/O buffer size.  Normally we allow
+        // double the minimum, for safety.
+        int audioBuf = AudioRecord.getMinBufferSize(rate,
+                                     AudioFormat.CHANNEL_CONFIGURATION_MONO,
+                                     AudioFormat.ENCODING_PCM_16BIT);
+        if (!lowLatency)
+            audioBuf *= 2;
+
+        // Make it a whole number of blocks, so that it never holds a
+        // partial block which we have to wait to be completed.
+        int blockBytes = block * 2;
+        audioBuf = (audioBuf + blockBytes - 1) / blockBytes * blockBytes;
+
+        sampleRate = rate;
+        int input = lowLatency ? MediaRecorder.AudioSource.VOICE_RECOGNITION
+                               : MediaRecorder.AudioSource.MIC;
+        audioInput = new AudioRecord(input,
+                                     rate,
+                                     AudioFormat.CHANNEL_CONFIGURATION_MONO,
+                                     AudioFormat.ENCODING_PCM_16BIT,
+                                     audioBuf);
+
+        int timeout = 200;
+        try {
+            while (timeout > 0 && audioInput.getState() != AudioRecord.STATE_INITIALIZED) {
+                Thread.sleep(50);
+                timeout -= 50;
+            }
+        } catch (InterruptedException e) { }
+
+        return audioInput.getState() == AudioRecord.STATE_INITIALIZED;
+    }
+
+
+    /**
+     * Start recording.  This is called on the reader thread, so in
+     * low-latency mode we raise its priority here.
+     */
+    @Override
+    public void start() {
+        if (lowLatency)
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        audioInput.startRecording();
+    }
+
+
+    /**
+     * Read audio samples, waiting until they are available.
+     *
+     * @param   buffer      Buffer to read into.
+     * @param   offset      Offset in buffer to start at.
+     * @param   count       Maximum number of samples to read.
+     * @return              The number of samples read, or a negative
+     *                      AudioRecord error code.
+     */
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        return audioInput.read(buffer, offset, count);
+    }
+
+
+    /**
+     * Say whether the input has come to an end.
+     *
+     * @return              Always false; the mic runs until stopped.
+     */
+    @Override
+    public boolean isExhausted() {
+        return false;
+    }
+
+
+    /**
+     * Get the time at which a given sample was captured.  This is worked
+     * out from the latest timestamp the input gives us, so it doesn't
+     * include the time the sample spent waiting in the input buffer.
+     *
+     * @param   frame       Index of the sample since {@link #start()}.
+     * @return              The capture time, in the
+     *                      {@link System#nanoTime()} time base.
+     */
+    @Override
+    public long getCaptureTime(long frame) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                audioInput.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                                                        == AudioRecord.SUCCESS)
+            return timestamp.nanoTime +
+                        (frame - timestamp.framePosition) * 1000000000L / sampleRate;
+        return System.nanoTime();
+    }
+
+
+    /**
+     * Stop recording.
+     */
+    @Override
+    public void stop() {
+        if (audioInput.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING)
+            audioInput.stop();
+    }
+
+
+    /**
+     * Release the audio input.
+     */
+    @Override
+    public void close() {
+        if (audioInput != null) {
+            audioInput.release();
+            audioInput = null;
+        }
+    }
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // True if we are capturing in low-latency mode.
+    private final boolean lowLatency;
+
+    // Our audio input device, and the rate we opened it at.
+    private AudioRecord audioInput = null;
+    private int sampleRate = 0;
+
+    // Buffer for the input's timestamps.
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+
+}
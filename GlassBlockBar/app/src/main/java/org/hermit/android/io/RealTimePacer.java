@@ -0,0 +1,81 @@
+
+/**
+ * org.hermit.android.io: Android utilities for accessing peripherals.
+ *
+ * These classes provide some basic utilities for accessing the audio
+ * interface, at present.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.io;
+
+
+/**
+ * Meters out samples from a non-live source at the sample rate, so that
+ * it behaves like a live input.  Samples are due at the wall-clock time
+ * they would have arrived since {@link #start(int)}; so the rate doesn't
+ * drift however long each read takes.
+ */
+final class RealTimePacer
+{
+
+    /**
+     * Start timing.
+     *
+     * @param   rate        The audio sampling rate, in samples / sec.
+     */
+    void start(int rate) {
+        sampleRate = rate;
+        startNanos = System.nanoTime();
+        delivered = 0;
+    }
+
+
+    /**
+     * Wait until a number of samples more are due, and count them as
+     * delivered.
+     *
+     * @param   count       Number of samples about to be delivered.
+     */
+    void await(int count) {
+        delivered += count;
+        long due = startNanos + delivered * 1000000000L / sampleRate;
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Get the time at which a sample was due.
+     *
+     * @param   frame       Index of the sample, counting from zero at
+     *                      {@link #start(int)}.
+     * @return              The time the sample was due, in the
+     *                      {@link System#nanoTime()} time base.
+     */
+    long timeOf(long frame) {
+        return startNanos + (frame + 1) * 1000000000L / sampleRate;
+    }
+
+
+    // Sample rate, time we started, and samples delivered since.
+    private int sampleRate;
+    private long startNanos;
+    private long delivered;
+
+}
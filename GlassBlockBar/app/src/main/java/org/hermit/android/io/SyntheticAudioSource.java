@@ -0,0 +1,410 @@
+
+/**
+ * org.hermit.android.io: Android utilities for accessing peripherals.
+ *
+ * These classes provide some basic utilities for accessing the audio
+ * interface, at present.
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.android.io;
+
+
+import java.util.Random;
+
+
+/**
+ * An {@link AudioSource} which generates a test signal: a click track,
+ * band-limited noise, or a sine sweep.  The output depends only on the
+ * settings and the sample rate, so runs are repeatable.
+ *
+ * <p>By default the signal is delivered as fast as it is read, which
+ * suits benchmarking; {@link #setRealTime(boolean)} meters it out at the
+ * sample rate instead, like a live input.
+ */
+public class SyntheticAudioSource
+    implements AudioSource
+{
+
+    // ******************************************************************** //
+    // Public Constants.
+    // ******************************************************************** //
+
+    /**
+     * The kinds of signal we can generate.
+     */
+    public enum Signal {
+        /** A decaying tone burst on every beat. */
+        CLICK_TRACK,
+
+        /** White noise filtered to a frequency band. */
+        NOISE,
+
+        /** A sine wave swept exponentially between two frequencies. */
+        SWEEP;
+    }
+
+
+    // ******************************************************************** //
+    // Constructors.
+    // ******************************************************************** //
+
+    /**
+     * Create a source.  Use the factory methods.
+     */
+    private SyntheticAudioSource(Signal signal, float a, float b, float c) {
+        this.signal = signal;
+        param1 = a;
+        param2 = b;
+        param3 = c;
+    }
+
+
+    /**
+     * Create a click track.  Each beat is a tone burst which decays
+     * over CLICK_DECAY seconds, so it registers as a beat in the low
+     * band of the analyser.
+     *
+     * @param   bpm         The tempo, in beats per minute.
+     * @param   toneHz      The frequency of the burst, in Hz.
+     * @return              The new source.
+     */
+    public static SyntheticAudioSource clickTrack(float bpm, float toneHz) {
+        if (bpm <= 0)
+            throw new IllegalArgumentException("bad click track tempo: " + bpm);
+        return new SyntheticAudioSource(Signal.CLICK_TRACK, bpm, toneHz, 0);
+    }
+
+
+    /**
+     * Create a band-limited noise source.  White noise is passed through
+     * a second-order high-pass filter at lowHz and a second-order
+     * low-pass filter at highHz.
+     *
+     * @param   lowHz       The bottom of the band, in Hz.
+     * @param   highHz      The top of the band, in Hz.
+     * @return              The new source.
+     */
+    public static SyntheticAudioSource noise(float lowHz, float highHz) {
+        if (lowHz <= 0 || highHz <= lowHz)
+            throw new IllegalArgumentException("bad noise band: " +
+                                               lowHz + "-" + highHz + " Hz");
+        return new SyntheticAudioSource(Signal.NOISE, lowHz, highHz, 0);
+    }
+
+
+    /**
+     * Create a sine sweep.  The frequency rises exponentially from startHz
+     * to endHz, then starts again.
+     *
+     * @param   startHz     The frequency at the start of each sweep, in Hz.
+     * @param   endHz       The frequency at the end of each sweep, in Hz.
+     * @param   seconds     The length of each sweep, in seconds.
+     * @return              The new source.
+     */
+    public static SyntheticAudioSource sineSweep(float startHz, float endHz, float seconds) {
+        if (startHz <= 0 || endHz <= 0 || seconds <= 0)
+            throw new IllegalArgumentException("bad sine sweep: " + startHz +
+                                               "-" + endHz + " Hz in " +
+                                               seconds + " s");
+        return new SyntheticAudioSource(Signal.SWEEP, startHz, endHz, seconds);
+    }
+
+
+    // ******************************************************************** //
+    // Configuration.
+    // ******************************************************************** //
+
+    /**
+     * Get the kind of signal this source generates.
+     *
+     * @return              The signal.
+     */
+    public Signal getSignal() {
+        return signal;
+    }
+
+
+    /**
+     * Set the peak amplitude of the signal.
+     *
+     * @param   amp         The amplitude, as a fraction of full scale.
+     */
+    public void setAmplitude(float amp) {
+        amplitude = amp;
+    }
+
+
+    /**
+     * Set how long the signal runs for.
+     *
+     * @param   seconds     The length of the signal, in seconds, after
+     *                      which the input ends; 0 to run forever.
+     */
+    public void setDuration(float seconds) {
+        duration = seconds;
+    }
+
+
+    /**
+     * Set the seed for the noise generator.
+     *
+     * @param   seed        The random seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+
+    /**
+     * Set whether to meter the audio out at the sample rate.
+     *
+     * @param   realTime    If true, deliver the audio in real time;
+     *                      if false, as fast as it is asked for.
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+
+    // ******************************************************************** //
+    // AudioSource.
+    // ******************************************************************** //
+
+    /**
+     * Say whether this is a live source.
+     *
+     * @return              true if the signal is being delivered in
+     *                      real time.
+     */
+    @Override
+    public boolean isLive() {
+        return realTime;
+    }
+
+
+    /**
+     * Get ready to generate the signal from the start.
+     *
+     * @param   rate        The audio sampling rate, in samples / sec.
+     * @param   block       Number of samples the reader will ask for
+     *                      at a time.
+     * @return              Always true.
+     */
+    @Override
+    public boolean open(int rate, int block) {
+        sampleRate = rate;
+        position = 0;
+        end = duration > 0 ? (long) (duration * rate) : Long.MAX_VALUE;
+        phase = 0;
+        random = new Random(seed);
+        hp1 = hp2 = lp1 = lp2 = 0;
+        hpIn = hp2In = 0;
+        return true;
+    }
+
+
+    /**
+     * Start delivering audio.
+     */
+    @Override
+    public void start() {
+        pacer.start(sampleRate);
+    }
+
+
+    /**
+     * Generate audio samples.
+     *
+     * @param   buffer      Buffer to fill.
+     * @param   offset      Offset in buffer to start at.
+     * @param   count       Maximum number of samples to generate.
+     * @return              The number of samples generated; 0 once the
+     *                      set duration has passed.
+     */
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        int n = (int) Math.min(count, end - position);
+        if (n <= 0)
+            return 0;
+
+        final float scale = amplitude * 32767f;
+        switch (signal) {
+        case CLICK_TRACK:
+            generateClicks(buffer, offset, n, scale);
+            break;
+        case NOISE:
+            generateNoise(buffer, offset, n, scale);
+            break;
+        case SWEEP:
+            generateSweep(buffer, offset, n, scale);
+            break;
+        }
+        position += n;
+
+        if (realTime)
+            pacer.await(n);
+        return n;
+    }
+
+
+    /**
+     * Say whether the set duration has passed.
+     *
+     * @return              true once the whole duration has been
+     *                      generated.
+     */
+    @Override
+    public boolean isExhausted() {
+        return position >= end;
+    }
+
+
+    /**
+     * Get the time at which a given sample was delivered.  In real time,
+     * this is when the sample was due; otherwise it's now.
+     *
+     * @param   frame       Index of the sample since {@link #start()}.
+     * @return              The delivery time, in the
+     *                      {@link System#nanoTime()} time base.
+     */
+    @Override
+    public long getCaptureTime(long frame) {
+        return realTime ? pacer.timeOf(frame) : System.nanoTime();
+    }
+
+
+    /**
+     * Stop delivering audio.
+     */
+    @Override
+    public void stop() {
+    }
+
+
+    /**
+     * Release resources.  There are none.
+     */
+    @Override
+    public void close() {
+    }
+
+
+    // ******************************************************************** //
+    // Generators.
+    // ******************************************************************** //
+
+    private void generateClicks(short[] buffer, int offset, int n, float scale) {
+        final double beatLen = sampleRate * 60.0 / param1;
+        final double w = 2 * Math.PI * param2 / sampleRate;
+        final double decay = 1.0 / (CLICK_DECAY * sampleRate);
+        for (int i = 0; i < n; ++i) {
+            long p = position + i;
+            double t = p - Math.floor(p / beatLen) * beatLen;
+            double env = Math.exp(-t * decay);
+            buffer[offset + i] = (short) (scale * env * Math.sin(w * t));
+        }
+    }
+
+
+    private void generateNoise(short[] buffer, int offset, int n, float scale) {
+        // Two one-pole sections each side give a 12 dB/octave band edge.
+        final float ah = (float) Math.exp(-2 * Math.PI * param1 / sampleRate);
+        final float al = 1f - (float) Math.exp(-2 * Math.PI * param2 / sampleRate);
+        for (int i = 0; i < n; ++i) {
+            float x = random.nextFloat() * 2f - 1f;
+            hp1 = ah * (hp1 + x - hpIn);
+            hpIn = x;
+            float h1 = hp1;
+            hp2 = ah * (hp2 + h1 - hp2In);
+            hp2In = h1;
+            lp1 += al * (hp2 - lp1);
+            lp2 += al * (lp1 - lp2);
+            float y = lp2 * NOISE_GAIN;
+            if (y > 1f)
+                y = 1f;
+            else if (y < -1f)
+                y = -1f;
+            buffer[offset + i] = (short) (scale * y);
+        }
+    }
+
+
+    private void generateSweep(short[] buffer, int offset, int n, float scale) {
+        final double sweepLen = param3 * sampleRate;
+        final double ratio = Math.log(param2 / param1);
+        for (int i = 0; i < n; ++i) {
+            long p = position + i;
+            double t = (p - Math.floor(p / sweepLen) * sweepLen) / sweepLen;
+            double f = param1 * Math.exp(ratio * t);
+            phase += 2 * Math.PI * f / sampleRate;
+            if (phase > 2 * Math.PI)
+                phase -= 2 * Math.PI;
+            buffer[offset + i] = (short) (scale * Math.sin(phase));
+        }
+    }
+
+
+    // ******************************************************************** //
+    // Class Data.
+    // ******************************************************************** //
+
+    // Time constant of the click envelope, in seconds.
+    private static final double CLICK_DECAY = 0.03;
+
+    // Gain applied to filtered noise, to bring its level back up towards
+    // full scale; the filters take out most of the white noise's power.
+    private static final float NOISE_GAIN = 3f;
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The signal we generate, and its parameters: BPM and tone frequency
+    // for a click track; band edges for noise; start and end frequencies
+    // and length for a sweep.
+    private final Signal signal;
+    private final float param1;
+    private final float param2;
+    private final float param3;
+
+    // Peak amplitude, as a fraction of full scale.
+    private float amplitude = 0.5f;
+
+    // Length of the signal in seconds; 0 for no limit.
+    private float duration = 0;
+
+    // Seed for the noise generator.
+    private long seed = 1;
+
+    // Whether to deliver in real time.
+    private boolean realTime = false;
+
+    // The rate we are generating at; samples generated so far; and the
+    // sample count at which we stop.
+    private int sampleRate = 0;
+    private long position = 0;
+    private long end = Long.MAX_VALUE;
+
+    // Sweep oscillator phase.
+    private double phase = 0;
+
+    // Noise generator and filter state.
+    private Random random;
+    private float hp1, hp2, lp1, lp2;
+    private float hpIn, hp2In;
+
+    // Pacer for real-time delivery.
+    private final RealTimePacer pacer = new RealTimePacer();
+
+}
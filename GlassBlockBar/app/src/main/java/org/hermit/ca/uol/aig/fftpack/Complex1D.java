@@ -4,6 +4,27 @@ package org.hermit.ca.uol.aig.fftpack;
 */
 public class Complex1D
 {
+/**
+  * Construct an empty sequence; <em>x</em> and <em>y</em> are null until
+  * they are set, or filled in by a transform.
+*/
+    public Complex1D()
+    {
+    }
+
+/**
+  * Construct a sequence of <em>n</em> complex data, all zero.  A sequence
+  * sized to a transform can be passed to it over and over without the
+  * transform allocating anything.
+  *
+  * @param  n  the number of complex data.
+*/
+    public Complex1D(int n)
+    {
+        x = new double[n];
+        y = new double[n];
+    }
+
 /**
   * <em>x</em>[<em>i</em>] is the real part of <em>i</em>-th complex data.
 */
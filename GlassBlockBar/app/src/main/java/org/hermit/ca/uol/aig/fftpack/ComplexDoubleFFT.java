@@ -17,7 +17,8 @@ public class ComplexDoubleFFT extends ComplexDoubleFFT_Mixed
 
 /**
   * Construct a wavenumber table with size <em>n</em> for Complex FFT.
-  * The sequences with the same size can share a wavenumber table. The prime
+  * The sequences with the same size share a wavenumber table, via
+  * {@link WavetableCache}. The prime
   * factorization of <em>n</em> together with a tabulation of the trigonometric functions
   * are computed and stored.
   *
@@ -28,11 +29,7 @@ public class ComplexDoubleFFT extends ComplexDoubleFFT_Mixed
      {
           ndim = n;
           norm_factor = n;
-          if(wavetable == null || wavetable.length !=(4*ndim+15))
-          {
-              wavetable = new double[4*ndim + 15];
-          }
-          cffti(ndim, wavetable);
+          wavetable = WavetableCache.complexDouble(ndim);
      }
 
 /**
@@ -61,20 +58,34 @@ public class ComplexDoubleFFT extends ComplexDoubleFFT_Mixed
   * @param x  an array of <em>n</em> Complex data
 */
      public void ft(Complex1D x)
+     {
+         ft(x, interleaveBuffer(2*ndim));
+     }
+
+/**
+  * Forward complex FFT transform of a Complex1D, using a caller-supplied
+  * array to hold the interleaved data instead of the per-thread one.
+  *
+  * @param x  an array of <em>n</em> Complex data
+  * @param work  an array of at least 2*<em>n</em> doubles; its contents
+  * are overwritten.
+*/
+     public void ft(Complex1D x, double work[])
      {
          if(x.x.length != ndim)
               throw new IllegalArgumentException("The length of data can not match that of the wavetable");
-         double[] y = new double[2*ndim];
+         if(work.length < 2*ndim)
+              throw new IllegalArgumentException("The working array must hold at least " + 2*ndim + " values");
          for(int i=0; i<ndim; i++)
          {
-              y[2*i] = x.x[i];
-              y[2*i+1] = x.y[i];
+              work[2*i] = x.x[i];
+              work[2*i+1] = x.y[i];
          }
-         cfftf(ndim, y, wavetable);
+         cfftf(ndim, work, wavetable);
          for(int i=0; i<ndim; i++)
          {
-              x.x[i]=y[2*i];
-              x.y[i]=y[2*i+1];
+              x.x[i]=work[2*i];
+              x.y[i]=work[2*i+1];
          }
      }
 
@@ -106,20 +117,52 @@ public class ComplexDoubleFFT extends ComplexDoubleFFT_Mixed
   * @param x  an array of <em>n</em> Complex data
 */
      public void bt(Complex1D x)
+     {
+         bt(x, interleaveBuffer(2*ndim));
+     }
+
+/**
+  * Backward complex FFT transform of a Complex1D, using a caller-supplied
+  * array to hold the interleaved data instead of the per-thread one.
+  *
+  * @param x  an array of <em>n</em> Complex data
+  * @param work  an array of at least 2*<em>n</em> doubles; its contents
+  * are overwritten.
+*/
+     public void bt(Complex1D x, double work[])
      {
          if(x.x.length != ndim)
               throw new IllegalArgumentException("The length of data can not match that of the wavetable");
-         double[] y = new double[2*ndim];
+         if(work.length < 2*ndim)
+              throw new IllegalArgumentException("The working array must hold at least " + 2*ndim + " values");
          for(int i=0; i<ndim; i++)
          {
-              y[2*i] = x.x[i];
-              y[2*i+1] = x.y[i];
+              work[2*i] = x.x[i];
+              work[2*i+1] = x.y[i];
          }
-         cfftb(ndim, y, wavetable);
+         cfftb(ndim, work, wavetable);
          for(int i=0; i<ndim; i++)
          {
-              x.x[i]=y[2*i];
-              x.y[i]=y[2*i+1];
+              x.x[i]=work[2*i];
+              x.y[i]=work[2*i+1];
          }
      }
+
+/**
+  * Get this thread's array for interleaving Complex1D data, making
+  * sure it holds at least <em>n</em> values.
+*/
+     private static double[] interleaveBuffer(int n)
+     {
+         double[] buf = INTERLEAVE.get();
+         if(buf == null || buf.length < n)
+         {
+             buf = new double[n];
+             INTERLEAVE.set(buf);
+         }
+         return buf;
+     }
+
+     // Per-thread array for interleaving Complex1D data.
+     private static final ThreadLocal<double[]> INTERLEAVE = new ThreadLocal<double[]>();
 }
@@ -447,21 +447,27 @@ class ComplexDoubleFFT_Mixed
    cfftf1: further processing of Complex forward FFT
   --------------------------------------------------------*/
      void cfftf1(int n, double c[], final double wtable[], int isign)
+     {
+          cfftf1(n, c, wtable, isign, workspace(2*n));
+     }
+
+     void cfftf1(int n, double c[], final double wtable[], int isign, double work[])
      {
           int     idot, i;
           int     k1, l1, l2;
           int     na, nf, ip, iw, ido, idl1;
-          int[]  nac = new int[1];
+
+          // Only the general radix pass needs this; sizes made of
+          // factors 2, 3, 4 and 5 never allocate it.
+          int[]  nac = null;
 
           int     iw1, iw2;
-          double[] ch = new double[2*n];
+          double[] ch = work;
 
           iw1=2*n;
           iw2=4*n;
           System.arraycopy(wtable, 0, ch, 0, 2*n);
 
-          nac[0] = 0;
-
           nf=(int)wtable[1+iw2];
           na=0;
           l1=1;
@@ -523,6 +529,7 @@ class ComplexDoubleFFT_Mixed
 	      }
 	      else
 	      {
+	          if(nac==null) nac = new int[1];
 	          if(na==0)
                   {
                         passfg(nac, idot, ip, l1, idl1, c, c, c, ch, ch, wtable, iw, isign);
@@ -654,4 +661,23 @@ class ComplexDoubleFFT_Mixed
          cffti1(n, wtable);
      }	/*cffti*/
 
+/*---------------------------------------------------------
+   workspace: this thread's working array of at least n
+   values.  The wavetable is only read, so with a working
+   array per thread, one plan can be used by many threads.
+  --------------------------------------------------------*/
+     private static double[] workspace(int n)
+     {
+         double[] work = WORKSPACE.get();
+         if(work == null || work.length < n)
+         {
+             work = new double[n];
+             WORKSPACE.set(work);
+         }
+         return work;
+     }
+
+     // Per-thread working array for the transforms.
+     private static final ThreadLocal<double[]> WORKSPACE = new ThreadLocal<double[]>();
+
 }
@@ -4,6 +4,11 @@ package org.hermit.ca.uol.aig.fftpack;
 
 /**
  * FFT transform of a real periodic sequence.
+ *
+ * <p>A transform object holds only its read-only plan, so one object can
+ * be used by several threads at once.  Working storage comes from a
+ * per-thread buffer, or from the caller via {@link #ft(double[], double[])}
+ * and {@link #bt(double[], double[])}.
  * @author Baoshe Zhang
  * @author Astronomical Instrument Group of University of Lethbridge.
  */
@@ -13,7 +18,8 @@ public class RealDoubleFFT
 
     /**
      * Construct a wavenumber table with size <em>n</em>.
-     * The sequences with the same size can share a wavenumber table. The prime
+     * The sequences with the same size share a wavenumber table, via
+     * {@link WavetableCache}. The prime
      * factorization of <em>n</em> together with a tabulation of the trigonometric functions
      * are computed and stored.
      *
@@ -24,11 +30,7 @@ public class RealDoubleFFT
     {
         ndim = n;
         norm_factor = n;
-        if(wavetable == null || wavetable.length !=(2*ndim+15))
-        {
-            wavetable = new double[2*ndim + 15];
-        }
-        rffti(ndim, wavetable);
+        wavetable = WavetableCache.realDouble(ndim);
     }
 
     
@@ -65,6 +67,23 @@ public class RealDoubleFFT
     }
 
     
+    /**
+     * Forward real FFT transform, using a caller-supplied working array
+     * instead of the per-thread one.
+     *
+     * @param   x       An array which contains the sequence to be
+     *                  transformed.  See {@link #ft(double[])}.
+     * @param   work    Working storage, of at least {@link #getWorkSize()}
+     *                  values.  Its contents are overwritten.
+     */
+    public void ft(double[] x, double[] work) {
+        if (x.length != ndim)
+            throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+        checkWork(work);
+        rfftf(ndim, x, wavetable, work);
+    }
+
+    
     /**
      * Forward real FFT transform. It computes the discrete transform of a real data sequence.
      *
@@ -75,6 +94,10 @@ public class RealDoubleFFT
      * <em>n</em> is even) FFT coefficients.
      * The remaining complex FFT coefficients can be obtained by the symmetry relation:
      * the (<em>n</em>-<em>k</em>)-th complex FFT coefficient is the conjugate of <em>n</em>-th complex FFT coeffient.
+     * If <em>y</em> already holds arrays of {@link #getComplexSize()} values,
+     * they are filled in place; otherwise new ones are allocated.  So passing
+     * the same <em>y</em> (for example, one from {@link #newComplex1D()})
+     * on each call does not allocate.
      *
      */
     public void ft(double x[], Complex1D y) {
@@ -82,16 +105,12 @@ public class RealDoubleFFT
             throw new IllegalArgumentException("The length of data can not match that of the wavetable");
         rfftf(ndim, x, wavetable);
 
-        if(ndim%2 == 0) 
-        {
-            y.x = new double[ndim/2 + 1];
-            y.y = new double[ndim/2 + 1];
-        }
-        else
-        {
-            y.x = new double[(ndim+1)/2];
-            y.y = new double[(ndim+1)/2];
-        }
+        // Re-use the caller's arrays if they're the right size.
+        final int m = getComplexSize();
+        if (y.x == null || y.x.length != m)
+            y.x = new double[m];
+        if (y.y == null || y.y.length != m)
+            y.y = new double[m];
 
 
         y.x[0] = x[0];
@@ -124,6 +143,23 @@ public class RealDoubleFFT
     }
     
     
+    /**
+     * Backward real FFT transform, using a caller-supplied working array
+     * instead of the per-thread one.
+     *
+     * @param   x       An array which contains the sequence to be
+     *                  transformed.  See {@link #bt(double[])}.
+     * @param   work    Working storage, of at least {@link #getWorkSize()}
+     *                  values.  Its contents are overwritten.
+     */
+    public void bt(double[] x, double[] work) {
+        if (x.length != ndim)
+            throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+        checkWork(work);
+        rfftb(ndim, x, wavetable, work);
+    }
+
+    
     /**
      * Backward real FFT transform. It is the unnormalized inverse transform of <em>ft</em>(Complex1D, double[]).
      *
@@ -136,16 +172,8 @@ public class RealDoubleFFT
      */
     public void bt(Complex1D x, double y[])
     {
-        if(ndim%2 == 0)
-        {
-            if(x.x.length != ndim/2+1)
-                throw new IllegalArgumentException("The length of data can not match that of the wavetable");
-        }
-        else
-        {
-            if(x.x.length != (ndim+1)/2)
-                throw new IllegalArgumentException("The length of data can not match that of the wavetable");
-        }
+        if(x.x.length != getComplexSize())
+            throw new IllegalArgumentException("The length of data can not match that of the wavetable");
 
         y[0] = x.x[0];
         for(int i=1; i<(ndim+1)/2; i++)
@@ -160,6 +188,47 @@ public class RealDoubleFFT
         rfftb(ndim, y, wavetable);
     }
     
+    /**
+     * Get the number of complex coefficients produced by
+     * <em>ft</em>(double[], Complex1D): <em>n</em>/2+1 when <em>n</em> is
+     * even, (<em>n</em>+1)/2 when it is odd.
+     *
+     * @return          The complex sequence length.
+     */
+    public int getComplexSize() {
+        return ndim % 2 == 0 ? ndim / 2 + 1 : (ndim + 1) / 2;
+    }
+
+
+    /**
+     * Create a complex sequence sized for <em>ft</em>(double[], Complex1D)
+     * and <em>bt</em>(Complex1D, double[]) with this transform.
+     *
+     * @return          A new zero-filled sequence of
+     *                  {@link #getComplexSize()} complex values.
+     */
+    public Complex1D newComplex1D() {
+        return new Complex1D(getComplexSize());
+    }
+
+
+    /**
+     * Get the size of the working array needed by
+     * {@link #ft(double[], double[])} and {@link #bt(double[], double[])}.
+     *
+     * @return          The minimum working array length.
+     */
+    public int getWorkSize() {
+        return ndim;
+    }
+
+
+    private void checkWork(double[] work) {
+        if (work == null || work.length < ndim)
+            throw new IllegalArgumentException("The working array must hold at least " + ndim + " values");
+    }
+
+    
     /**
      * <em>norm_factor</em> can be used to normalize this FFT transform. This is because
      * a call of forward transform (<em>ft</em>) followed by a call of backward transform
@@ -39,9 +39,6 @@ class RealDoubleFFT_Mixed
         int     ido, ipm;
         int     nfm1;
         
-        // Create a working array.
-        tempData = new double[n];
-
         nl=n;
         nf=0;
         j=0;
@@ -125,12 +122,29 @@ class RealDoubleFFT_Mixed
     }   /*rfftf*/
 
     
+    /*---------------------------------------------------------
+   rfftf: Real forward FFT, with a caller-supplied working
+   array of at least n values
+  --------------------------------------------------------*/
+    void rfftf(int n, double r[], double wtable[], double work[])
+    {
+        if(n==1) return;
+        rfftf1(n, r, wtable, 0, work);
+    }   /*rfftf*/
+
+    
     /*---------------------------------------------------------
    rfftf1: further processing of Real forward FFT
   --------------------------------------------------------*/
     void rfftf1(int n, double[] c, final double[] wtable, int offset)
     {
-        final double[] td = tempData;
+        rfftf1(n, c, wtable, offset, workspace(n));
+    }
+
+
+    void rfftf1(int n, double[] c, final double[] wtable, int offset, double[] work)
+    {
+        final double[] td = work;
         System.arraycopy(wtable, offset, td, 0, n);
 
         int nf = (int) wtable[1 + 2 * n + offset];
@@ -180,7 +194,7 @@ class RealDoubleFFT_Mixed
             l2 = l1;
         }
         
-        // If na == 1, the results are in c.  Otherwise they're in tempData.
+        // If na == 1, the results are in c.  Otherwise they're in work.
         if (na == 0)
             for (int i = 0; i < n; i++)
                 c[i] = td[i];
@@ -201,14 +215,31 @@ class RealDoubleFFT_Mixed
     } /*rfftb*/
 
     
+    /*---------------------------------------------------------
+   rfftb: Real backward FFT, with a caller-supplied working
+   array of at least n values
+  --------------------------------------------------------*/
+    void rfftb(int n, double r[], double wtable[], double work[])
+    {
+        if(n==1) return;
+        rfftb1(n, r, wtable, 0, work);
+    } /*rfftb*/
+
+    
     /*---------------------------------------------------------
    rfftb1: further processing of Real backward FFT
   --------------------------------------------------------*/
     void rfftb1(int n, double c[], final double wtable[], int offset)
+    {
+        rfftb1(n, c, wtable, offset, workspace(n));
+    }
+
+
+    void rfftb1(int n, double c[], final double wtable[], int offset, double[] work)
     {
         int     k1, l1, l2, na, nf, ip, iw, ido, idl1;
 
-        final double[] td = tempData;
+        final double[] td = work;
         System.arraycopy(wtable, offset, td, 0, n);
 
         nf=(int)wtable[1+2*n+offset];
@@ -1244,6 +1275,22 @@ class RealDoubleFFT_Mixed
     } 
 
     
+    /**
+     * Get this thread's working array, making sure it holds at least n
+     * values.  The plan (the wavetable) is only ever read, so with a
+     * working array per thread, any number of threads can run transforms
+     * with the same plan at once.
+     */
+    private static double[] workspace(int n) {
+        double[] work = WORKSPACE.get();
+        if (work == null || work.length < n) {
+            work = new double[n];
+            WORKSPACE.set(work);
+        }
+        return work;
+    }
+
+    
     // ******************************************************************** //
     // Private Constants.
     // ******************************************************************** //
@@ -1263,8 +1310,8 @@ class RealDoubleFFT_Mixed
     // Private Data.
     // ******************************************************************** //
     
-    // Working data array for FFT.
-    private double[] tempData = null;
+    // Per-thread working array for transforms which aren't given one.
+    private static final ThreadLocal<double[]> WORKSPACE = new ThreadLocal<double[]>();
     
 }
 
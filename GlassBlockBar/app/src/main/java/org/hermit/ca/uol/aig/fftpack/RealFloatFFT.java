@@ -0,0 +1,162 @@
+package org.hermit.ca.uol.aig.fftpack;
+
+
+/**
+ * FFT transform of a real periodic sequence, in single precision.
+ * This is the float counterpart of {@link RealDoubleFFT}; it uses half
+ * the memory for both the data and the wavetable, which is plenty for
+ * 16-bit audio input.
+ *
+ * <p>When the size is a power of 2, a dedicated radix-2 kernel with
+ * precomputed bit-reversal and twiddle tables is used; other sizes
+ * go through the general mixed-radix code.
+ *
+ * <p>A transform object holds only its read-only plan, so one object can
+ * be used by several threads at once.  Working storage comes from a
+ * per-thread buffer, or from the caller via {@link #ft(float[], float[])}
+ * and {@link #bt(float[], float[])}.
+ * @author Baoshe Zhang
+ * @author Astronomical Instrument Group of University of Lethbridge.
+ */
+public class RealFloatFFT
+    extends RealFloatFFT_Mixed
+{
+
+    /**
+     * Construct a wavenumber table with size <em>n</em>.
+     * The sequences with the same size share a wavenumber table, via
+     * {@link WavetableCache}. The prime
+     * factorization of <em>n</em> together with a tabulation of the trigonometric functions
+     * are computed and stored.
+     *
+     * @param  n  the size of a real data sequence. When <em>n</em> is a multiplication of small
+     * numbers (4, 2, 3, 5), this FFT transform is very efficient.
+     */
+    public RealFloatFFT(int n)
+    {
+        ndim = n;
+        norm_factor = n;
+        if (RealFloatFFT_Radix2.isSupported(n))
+        {
+            radix2 = WavetableCache.radix2(n);
+            return;
+        }
+        wavetable = WavetableCache.realFloat(ndim);
+    }
+
+    
+    /**
+     * Forward real FFT transform.  It computes the discrete transform
+     * of a real data sequence.
+     * 
+     * <p>The x parameter is both input and output data.  The layout of
+     * the results is the same as for {@link RealDoubleFFT#ft(double[])}:
+     * x[0] is the DC term; for k = 1, ..., m-1, x[2 * k - 1] and x[2 * k]
+     * are the real and imaginary parts of the k-th complex FFT
+     * coefficient; and if n is even, x[n - 1] is the real part of the
+     * (n/2)-th coefficient.
+     *
+     * @param   x       An array which contains the sequence to be
+     *                  transformed.
+     */
+    public void ft(float[] x) {
+        if (x.length != ndim)
+            throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+        if (radix2 != null)
+            radix2.forward(x);
+        else
+            rfftf(ndim, x, wavetable);
+    }
+
+    
+    /**
+     * Forward real FFT transform, using a caller-supplied working array
+     * instead of the per-thread one.
+     *
+     * @param   x       An array which contains the sequence to be
+     *                  transformed.  See {@link #ft(float[])}.
+     * @param   work    Working storage, of at least {@link #getWorkSize()}
+     *                  values.  Its contents are overwritten.
+     */
+    public void ft(float[] x, float[] work) {
+        if (x.length != ndim)
+            throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+        if (radix2 != null)
+            radix2.forward(x);
+        else {
+            checkWork(work);
+            rfftf(ndim, x, wavetable, work);
+        }
+    }
+
+
+    /**
+     * Backward real FFT transform. It is the unnormalized inverse transform of <em>ft</em>(float[]).
+     *
+     * @param x an array which contains the sequence to be transformed. After FFT,
+     * <em>x</em> contains the transform coeffients. Also see the comments of <em>ft</em>(float[])
+     * for the relation between <em>x</em> and complex FFT coeffients.
+     */
+    public void bt(float x[])
+    {
+        if(x.length != ndim)
+            throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+        if (radix2 != null)
+            radix2.backward(x);
+        else
+            rfftb(ndim, x, wavetable);
+    }
+    
+    
+    /**
+     * Backward real FFT transform, using a caller-supplied working array
+     * instead of the per-thread one.
+     *
+     * @param   x       An array which contains the sequence to be
+     *                  transformed.  See {@link #bt(float[])}.
+     * @param   work    Working storage, of at least {@link #getWorkSize()}
+     *                  values.  Its contents are overwritten.
+     */
+    public void bt(float[] x, float[] work) {
+        if (x.length != ndim)
+            throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+        if (radix2 != null)
+            radix2.backward(x);
+        else {
+            checkWork(work);
+            rfftb(ndim, x, wavetable, work);
+        }
+    }
+
+
+    /**
+     * Get the size of the working array needed by
+     * {@link #ft(float[], float[])} and {@link #bt(float[], float[])}.
+     *
+     * @return          The minimum working array length.
+     */
+    public int getWorkSize() {
+        return ndim;
+    }
+
+
+    private void checkWork(float[] work) {
+        if (work == null || work.length < ndim)
+            throw new IllegalArgumentException("The working array must hold at least " + ndim + " values");
+    }
+
+    
+    /**
+     * <em>norm_factor</em> can be used to normalize this FFT transform. This is because
+     * a call of forward transform (<em>ft</em>) followed by a call of backward transform
+     * (<em>bt</em>) will multiply the input sequence by <em>norm_factor</em>.
+     */
+    public float norm_factor;
+    private float wavetable[];
+    private int ndim;
+
+    // Power-of-2 kernel; null if this size uses the mixed-radix code.
+    private RealFloatFFT_Radix2 radix2 = null;
+
+}
+
@@ -0,0 +1,299 @@
+package org.hermit.ca.uol.aig.fftpack;
+
+
+/**
+ * Real FFT for power-of-two sizes, in single precision.  This is used
+ * by {@link RealFloatFFT} in place of the general mixed-radix code
+ * whenever the size allows it.
+ *
+ * <p>A real sequence of n samples is treated as n/2 complex samples,
+ * which are transformed with an iterative radix-2/4 complex FFT and then
+ * split into the spectrum of the real sequence.  The bit-reversal
+ * permutation and all twiddle factors are computed once, in the
+ * constructor.  The transform works entirely in place in the caller's
+ * array, so one instance can be shared between threads.
+ *
+ * <p>Input and output use the same layout as
+ * {@link RealFloatFFT_Mixed#rfftf(int, float[], float[])}.
+ */
+final class RealFloatFFT_Radix2
+{
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Set up the tables for a given size.
+     *
+     * @param   n           The size of a real data sequence.  Must be a
+     *                      power of 2, and at least 4.
+     */
+    RealFloatFFT_Radix2(int n) {
+        if (!isSupported(n))
+            throw new IllegalArgumentException("radix-2 FFT size must be" +
+                                               " a power of 2 >= 4 (was " + n + ")");
+        ndim = n;
+        half = n / 2;
+
+        // Pairs of complex indices to swap for the bit-reversal permutation.
+        int bits = Integer.numberOfTrailingZeros(half);
+        int pairs = 0;
+        for (int i = 0; i < half; ++i)
+            if (i < reverse(i, bits))
+                ++pairs;
+        swaps = new int[pairs * 2];
+        for (int i = 0, p = 0; i < half; ++i) {
+            int j = reverse(i, bits);
+            if (i < j) {
+                swaps[p++] = i * 2;
+                swaps[p++] = j * 2;
+            }
+        }
+
+        // Twiddle factors for the complex FFT of size n/2:
+        // cos and sin of 2 pi k / (n/2), for k < n/4.
+        twiddle = new float[half];
+        for (int k = 0; k < half / 2; ++k) {
+            double arg = TWO_PI * k / half;
+            twiddle[k * 2] = (float) Math.cos(arg);
+            twiddle[k * 2 + 1] = (float) Math.sin(arg);
+        }
+
+        // Twiddle factors for splitting the complex result into the real
+        // spectrum: cos and sin of 2 pi k / n, for k <= n/4.
+        split = new float[(half / 2 + 1) * 2];
+        for (int k = 0; k <= half / 2; ++k) {
+            double arg = TWO_PI * k / n;
+            split[k * 2] = (float) Math.cos(arg);
+            split[k * 2 + 1] = (float) Math.sin(arg);
+        }
+    }
+
+
+    /**
+     * Determine whether this kernel can handle a given size.
+     *
+     * @param   n           The size of a real data sequence.
+     * @return              True if n is a power of 2, and at least 4.
+     */
+    static boolean isSupported(int n) {
+        return n >= 4 && (n & (n - 1)) == 0;
+    }
+
+
+    private static int reverse(int j, int bits) {
+        int r = 0;
+        for (int i = 0; i < bits; ++i, j >>= 1)
+            r = (r << 1) | (j & 1);
+        return r;
+    }
+
+
+    // ******************************************************************** //
+    // Transforms.
+    // ******************************************************************** //
+
+    /**
+     * Forward real FFT, in place.
+     *
+     * @param   x           The data to transform; on return, the
+     *                      transform coefficients.
+     */
+    void forward(float[] x) {
+        // Complex FFT of the even / odd samples as re / im pairs.
+        complexTransform(x, -1f);
+
+        // Split into the spectrum of the real input.  For each k,
+        //   E = (Z[k] + conj(Z[N-k])) / 2
+        //   O = (Z[k] - conj(Z[N-k])) / 2i
+        //   X[k] = E + W^k O,  X[N-k] = conj(E - W^k O)
+        // where N = n/2 and W = exp(-2 pi i / n).
+        final float z0r = x[0];
+        final float z0i = x[1];
+        for (int k = 1; k <= half / 2; ++k) {
+            final int a = k * 2;
+            final int b = (half - k) * 2;
+            final float ar = x[a], ai = x[a + 1];
+            final float br = x[b], bi = x[b + 1];
+
+            final float er = (ar + br) * 0.5f;
+            final float ei = (ai - bi) * 0.5f;
+            final float or = (ai + bi) * 0.5f;
+            final float oi = (br - ar) * 0.5f;
+
+            final float wr = split[a];
+            final float wi = -split[a + 1];
+            final float tr = wr * or - wi * oi;
+            final float ti = wr * oi + wi * or;
+
+            x[a] = er + tr;
+            x[a + 1] = ei + ti;
+            x[b] = er - tr;
+            x[b + 1] = ti - ei;
+        }
+
+        // Move to fftpack layout: DC, then re / im pairs, then Nyquist.
+        System.arraycopy(x, 2, x, 1, ndim - 2);
+        x[0] = z0r + z0i;
+        x[ndim - 1] = z0r - z0i;
+    }
+
+
+    /**
+     * Backward real FFT, in place.  This is the unnormalized inverse of
+     * {@link #forward(float[])}; a forward transform followed by a
+     * backward transform multiplies the data by n.
+     *
+     * @param   x           The transform coefficients; on return, the
+     *                      sequence.
+     */
+    void backward(float[] x) {
+        // Move from fftpack layout to re / im pairs, with the real DC and
+        // Nyquist terms packed into the first pair.
+        final float dc = x[0];
+        final float nyq = x[ndim - 1];
+        System.arraycopy(x, 1, x, 2, ndim - 2);
+        x[0] = dc + nyq;
+        x[1] = dc - nyq;
+
+        // Rebuild Z[k] = 2 (E + i O) from X[k] and X[N-k].
+        for (int k = 1; k <= half / 2; ++k) {
+            final int a = k * 2;
+            final int b = (half - k) * 2;
+            final float ar = x[a], ai = x[a + 1];
+            final float br = x[b], bi = x[b + 1];
+
+            // E = X[k] + conj(X[N-k]),  T = X[k] - conj(X[N-k]) = 2 W^k O
+            final float er = ar + br;
+            final float ei = ai - bi;
+            final float tr = ar - br;
+            final float ti = ai + bi;
+
+            // O = W^-k T
+            final float wr = split[a];
+            final float wi = split[a + 1];
+            final float or = wr * tr - wi * ti;
+            final float oi = wr * ti + wi * tr;
+
+            // Z[k] = E + i O;  Z[N-k] = conj(E) + i conj(O)
+            x[a] = er - oi;
+            x[a + 1] = ei + or;
+            x[b] = er + oi;
+            x[b + 1] = or - ei;
+        }
+
+        complexTransform(x, 1f);
+    }
+
+
+    /**
+     * In-place iterative complex FFT of n/2 interleaved re / im pairs.
+     * After the bit-reversal permutation, the stages are done two at a
+     * time as radix-4 passes, with a single radix-2 pass first if the
+     * number of stages is odd.
+     *
+     * @param   x           The data to transform.
+     * @param   sign        -1 for a forward transform, +1 for backward.
+     */
+    private void complexTransform(float[] x, float sign) {
+        // Bit-reversal permutation.
+        final int[] sw = swaps;
+        for (int p = 0; p < sw.length; p += 2) {
+            final int i = sw[p], j = sw[p + 1];
+            float t = x[i]; x[i] = x[j]; x[j] = t;
+            t = x[i + 1]; x[i + 1] = x[j + 1]; x[j + 1] = t;
+        }
+
+        final int len = half * 2;
+        int l = 1;
+
+        // Odd number of stages: one 2-point pass, which needs no twiddles.
+        if ((Integer.numberOfTrailingZeros(half) & 1) != 0) {
+            for (int i = 0; i < len; i += 4) {
+                final float ar = x[i], ai = x[i + 1];
+                final float br = x[i + 2], bi = x[i + 3];
+                x[i] = ar + br;
+                x[i + 1] = ai + bi;
+                x[i + 2] = ar - br;
+                x[i + 3] = ai - bi;
+            }
+            l = 2;
+        }
+
+        // Radix-4 passes.  Each one merges groups of 4 sub-transforms of
+        // length l into transforms of length 4l; that is, it does the
+        // radix-2 stages of size 2l and 4l together.  Offsets are in
+        // floats, so l complex elements are 2l floats.
+        final float[] tw = twiddle;
+        for (; l < half; l <<= 2) {
+            final int q = l * 2;
+            final int step1 = half / (l * 2) * 2;
+            final int step2 = step1 / 2;
+            for (int k = 0, t1 = 0, t2 = 0; k < q; k += 2, t1 += step1, t2 += step2) {
+                // w1 = W(2l)^k for the first stage, w2 = W(4l)^k for the
+                // second; the second stage's odd half uses w2 * W(4).
+                final float w1r = tw[t1], w1i = sign * tw[t1 + 1];
+                final float w2r = tw[t2], w2i = sign * tw[t2 + 1];
+                for (int i = k; i < len; i += q * 4) {
+                    final int i1 = i + q, i2 = i1 + q, i3 = i2 + q;
+
+                    float br = x[i1] * w1r - x[i1 + 1] * w1i;
+                    float bi = x[i1] * w1i + x[i1 + 1] * w1r;
+                    float dr = x[i3] * w1r - x[i3 + 1] * w1i;
+                    float di = x[i3] * w1i + x[i3 + 1] * w1r;
+                    final float a0r = x[i] + br, a0i = x[i + 1] + bi;
+                    final float a1r = x[i] - br, a1i = x[i + 1] - bi;
+                    final float c0r = x[i2] + dr, c0i = x[i2 + 1] + di;
+                    final float c1r = x[i2] - dr, c1i = x[i2 + 1] - di;
+
+                    // c0 * w2, and c1 * w2 * W(4), where W(4) = sign * i.
+                    br = c0r * w2r - c0i * w2i;
+                    bi = c0r * w2i + c0i * w2r;
+                    final float er = c1r * w2r - c1i * w2i;
+                    final float ei = c1r * w2i + c1i * w2r;
+                    dr = -sign * ei;
+                    di = sign * er;
+
+                    x[i] = a0r + br;
+                    x[i + 1] = a0i + bi;
+                    x[i2] = a0r - br;
+                    x[i2 + 1] = a0i - bi;
+                    x[i1] = a1r + dr;
+                    x[i1 + 1] = a1i + di;
+                    x[i3] = a1r - dr;
+                    x[i3 + 1] = a1i - di;
+                }
+            }
+        }
+    }
+
+
+    // ******************************************************************** //
+    // Private Constants.
+    // ******************************************************************** //
+
+    private static final double TWO_PI = 2.0 * Math.PI;
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The size of a real data sequence, and the size of the complex
+    // transform we use to do it.
+    private final int ndim;
+    private final int half;
+
+    // Float offsets of the complex elements to swap for bit reversal,
+    // as consecutive pairs.
+    private final int[] swaps;
+
+    // Complex FFT twiddle factors, as cos / sin pairs.
+    private final float[] twiddle;
+
+    // Real split twiddle factors, as cos / sin pairs.
+    private final float[] split;
+
+}
+
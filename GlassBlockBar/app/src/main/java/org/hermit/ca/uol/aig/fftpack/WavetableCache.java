@@ -0,0 +1,156 @@
+package org.hermit.ca.uol.aig.fftpack;
+
+
+import java.util.HashMap;
+
+
+/**
+ * Shared cache of FFT plans, keyed by size.  Once a plan has been set
+ * up it is never modified; the transforms only read from it.  So every
+ * {@link RealDoubleFFT}, {@link RealFloatFFT} and {@link ComplexDoubleFFT}
+ * of a given size can share one plan, and building another transform
+ * of a size we've seen before costs nothing beyond the object itself.
+ *
+ * <p>Apps can call {@link #warmUp(int...)} at start-up so that the
+ * plans they will need are ready before the first audio block arrives.
+ *
+ * <p>All methods are thread-safe.
+ */
+public final class WavetableCache
+{
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * No instances; this is a static utility class.
+     */
+    private WavetableCache() {
+    }
+
+
+    // ******************************************************************** //
+    // Public Methods.
+    // ******************************************************************** //
+
+    /**
+     * Build the plans for a set of {@link RealFloatFFT} sizes now, so that
+     * transforms created later find them ready.  Sizes already in the
+     * cache are skipped.
+     *
+     * @param   sizes       The sizes of real data sequences to prepare for.
+     */
+    public static void warmUp(int... sizes) {
+        for (int n : sizes) {
+            if (RealFloatFFT_Radix2.isSupported(n))
+                radix2(n);
+            else
+                realFloat(n);
+        }
+    }
+
+
+    /**
+     * Drop all the cached plans.  Transforms which already hold a plan
+     * keep working; new ones will rebuild what they need.
+     */
+    public static synchronized void clear() {
+        realDoubleTables.clear();
+        realFloatTables.clear();
+        complexDoubleTables.clear();
+        radix2Plans.clear();
+    }
+
+
+    // ******************************************************************** //
+    // Plan Lookup.
+    // ******************************************************************** //
+
+    /**
+     * Get the wavetable for a double-precision real FFT of a given size,
+     * creating it if needed.
+     *
+     * @param   n           The size of a real data sequence.
+     * @return              The shared wavetable.  Must not be modified.
+     */
+    static synchronized double[] realDouble(int n) {
+        double[] table = realDoubleTables.get(n);
+        if (table == null) {
+            table = new double[2 * n + 15];
+            new RealDoubleFFT_Mixed().rffti(n, table);
+            realDoubleTables.put(n, table);
+        }
+        return table;
+    }
+
+
+    /**
+     * Get the wavetable for a single-precision mixed-radix real FFT of a
+     * given size, creating it if needed.
+     *
+     * @param   n           The size of a real data sequence.
+     * @return              The shared wavetable.  Must not be modified.
+     */
+    static synchronized float[] realFloat(int n) {
+        float[] table = realFloatTables.get(n);
+        if (table == null) {
+            table = new float[2 * n + 15];
+            new RealFloatFFT_Mixed().rffti(n, table);
+            realFloatTables.put(n, table);
+        }
+        return table;
+    }
+
+
+    /**
+     * Get the wavetable for a double-precision complex FFT of a given
+     * size, creating it if needed.
+     *
+     * @param   n           The size of a complex data sequence.
+     * @return              The shared wavetable.  Must not be modified.
+     */
+    static synchronized double[] complexDouble(int n) {
+        double[] table = complexDoubleTables.get(n);
+        if (table == null) {
+            table = new double[4 * n + 15];
+            new ComplexDoubleFFT_Mixed().cffti(n, table);
+            complexDoubleTables.put(n, table);
+        }
+        return table;
+    }
+
+
+    /**
+     * Get the power-of-2 real FFT kernel for a given size, creating it
+     * if needed.
+     *
+     * @param   n           The size of a real data sequence.  Must be a
+     *                      power of 2, and at least 4.
+     * @return              The shared kernel.
+     */
+    static synchronized RealFloatFFT_Radix2 radix2(int n) {
+        RealFloatFFT_Radix2 plan = radix2Plans.get(n);
+        if (plan == null) {
+            plan = new RealFloatFFT_Radix2(n);
+            radix2Plans.put(n, plan);
+        }
+        return plan;
+    }
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // Cached plans, by size.
+    private static final HashMap<Integer, double[]> realDoubleTables =
+                                            new HashMap<Integer, double[]>();
+    private static final HashMap<Integer, float[]> realFloatTables =
+                                            new HashMap<Integer, float[]>();
+    private static final HashMap<Integer, double[]> complexDoubleTables =
+                                            new HashMap<Integer, double[]>();
+    private static final HashMap<Integer, RealFloatFFT_Radix2> radix2Plans =
+                                            new HashMap<Integer, RealFloatFFT_Radix2>();
+
+}
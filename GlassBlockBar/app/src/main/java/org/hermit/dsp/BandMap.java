@@ -0,0 +1,331 @@
+/**
+ * dsp: various digital signal processing algorithms
+ * <br>Copyright 2009 Ian Cameron Smith
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.dsp;
+
+
+/**
+ * A mapping of the bins of a spectrum onto a set of frequency bands.
+ * The map is worked out once for a given sample rate, block size and
+ * band layout; after that, summing the bands is a tight loop over each
+ * band's bins, with no frequency arithmetic.
+ *
+ * <p>Bin i is taken to cover frequencies from i - 0.5 to i + 0.5 bin
+ * widths.  A bin which straddles a band edge is shared between the two
+ * bands, weighted by how much of it falls in each; so every band gets
+ * its fair share of the spectrum, even a low band which is narrower
+ * than a bin.
+ */
+public final class BandMap {
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create a band map from a list of band edges.
+     *
+     * @param   rate        The sample rate, in samples/sec.
+     * @param   blockSize   The FFT block size; the spectrum has half
+     *                      this many bins.
+     * @param   edgesHz     The start of each band, followed by the end
+     *                      of the last band, in Hz; ascending.  Edges
+     *                      above the Nyquist frequency are pulled down
+     *                      to it.
+     * @throws  IllegalArgumentException    Invalid parameter.
+     */
+    public BandMap(int rate, int blockSize, float[] edgesHz) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("bad sample rate: " + rate);
+        if (blockSize < 2)
+            throw new IllegalArgumentException("bad block size: " + blockSize);
+        if (edgesHz.length < 2)
+            throw new IllegalArgumentException("bad band edges: " +
+                                               edgesHz.length + " edges");
+        for (int e = 1; e < edgesHz.length; ++e)
+            if (!(edgesHz[e] >= edgesHz[e - 1]))
+                throw new IllegalArgumentException("bad band edges: " +
+                                                   edgesHz[e] + " after " +
+                                                   edgesHz[e - 1]);
+
+        sampleRate = rate;
+        numBins = blockSize / 2;
+        numBands = edgesHz.length - 1;
+        binWidth = (float) (rate / 2) / numBins;
+
+        // Edges in bins.  Bin i covers i - 0.5 to i + 0.5; the spectrum
+        // covers -0.5 to numBins - 0.5.
+        final float top = numBins - 0.5f;
+        final float[] edges = new float[edgesHz.length];
+        for (int e = 0; e < edges.length; ++e)
+            edges[e] = Math.max(-0.5f, Math.min(edgesHz[e] / binWidth, top));
+
+        // Work out each band's bins, and the total number of weights.
+        bandStart = new int[numBands];
+        bandEnd = new int[numBands];
+        weightBase = new int[numBands + 1];
+        int total = 0;
+        for (int b = 0; b < numBands; ++b) {
+            final int s = (int) Math.floor(edges[b] + 0.5f);
+            final int e = Math.max(s, (int) Math.ceil(edges[b + 1] + 0.5f));
+            bandStart[b] = s;
+            bandEnd[b] = Math.min(e, numBins);
+            weightBase[b] = total;
+            total += bandEnd[b] - s;
+        }
+        weightBase[numBands] = total;
+
+        // Each bin's weight is the share of it inside the band.
+        weights = new float[total];
+        for (int b = 0; b < numBands; ++b) {
+            final float lo = edges[b];
+            final float hi = edges[b + 1];
+            int k = weightBase[b];
+            for (int i = bandStart[b]; i < bandEnd[b]; ++i) {
+                final float from = Math.max(lo, i - 0.5f);
+                final float to = Math.min(hi, i + 0.5f);
+                weights[k++] = Math.max(0f, to - from);
+            }
+        }
+    }
+
+
+    /**
+     * Create a band map with bands of equal width.
+     *
+     * @param   rate        The sample rate, in samples/sec.
+     * @param   blockSize   The FFT block size.
+     * @param   lowHz       The bottom of the lowest band, in Hz.
+     * @param   highHz      The top of the highest band, in Hz.
+     * @param   bands       The number of bands.
+     * @return              The band map.
+     * @throws  IllegalArgumentException    Invalid parameter.
+     */
+    public static BandMap linear(int rate, int blockSize,
+                                 float lowHz, float highHz, int bands) {
+        if (bands < 1)
+            throw new IllegalArgumentException("bad band count: " + bands);
+        final float[] edges = new float[bands + 1];
+        for (int e = 0; e <= bands; ++e)
+            edges[e] = lowHz + (highHz - lowHz) * e / bands;
+        return new BandMap(rate, blockSize, edges);
+    }
+
+
+    /**
+     * Create a band map with bands of equal width on a log scale; e.g.
+     * octave or third-octave bands.
+     *
+     * @param   rate        The sample rate, in samples/sec.
+     * @param   blockSize   The FFT block size.
+     * @param   lowHz       The bottom of the lowest band, in Hz.  Must
+     *                      be above 0.
+     * @param   highHz      The top of the highest band, in Hz.
+     * @param   bands       The number of bands.
+     * @return              The band map.
+     * @throws  IllegalArgumentException    Invalid parameter.
+     */
+    public static BandMap logSpaced(int rate, int blockSize,
+                                    float lowHz, float highHz, int bands) {
+        if (bands < 1)
+            throw new IllegalArgumentException("bad band count: " + bands);
+        if (!(lowHz > 0f))
+            throw new IllegalArgumentException("bad low frequency: " + lowHz);
+        final float[] edges = new float[bands + 1];
+        final double ratio = (double) highHz / lowHz;
+        for (int e = 0; e <= bands; ++e)
+            edges[e] = (float) (lowHz * Math.pow(ratio, (double) e / bands));
+        edges[bands] = highHz;
+        return new BandMap(rate, blockSize, edges);
+    }
+
+
+    // ******************************************************************** //
+    // Accessors.
+    // ******************************************************************** //
+
+    /**
+     * Say whether this map is for a given spectrum.
+     *
+     * @param   rate        The sample rate, in samples/sec.
+     * @param   bins        The number of bins in the spectrum.
+     * @return              true if this map was built for that rate
+     *                      and number of bins.
+     */
+    public boolean matches(int rate, int bins) {
+        return rate == sampleRate && bins == numBins;
+    }
+
+
+    /**
+     * @return              The number of bands.
+     */
+    public int getBandCount() {
+        return numBands;
+    }
+
+
+    /**
+     * @return              The number of bins in the spectrum.
+     */
+    public int getBinCount() {
+        return numBins;
+    }
+
+
+    /**
+     * @return              The width of each bin, in Hz.
+     */
+    public float getBinWidth() {
+        return binWidth;
+    }
+
+
+    /**
+     * Get the first bin which contributes to a band.
+     *
+     * @param   band        The band index.
+     * @return              The index of the band's first bin.
+     */
+    public int getStartBin(int band) {
+        return bandStart[band];
+    }
+
+
+    /**
+     * Get the bin after the last which contributes to a band.
+     *
+     * @param   band        The band index.
+     * @return              The index of the bin after the band's last.
+     */
+    public int getEndBin(int band) {
+        return bandEnd[band];
+    }
+
+
+    /**
+     * Get the share of a bin which falls in a band.
+     *
+     * @param   band        The band index.
+     * @param   bin         The bin index; from {@link #getStartBin(int)}
+     *                      up to {@link #getEndBin(int)}.
+     * @return              The bin's weight in the band, from 0 to 1.
+     */
+    public float getWeight(int band, int bin) {
+        return weights[weightBase[band] + bin - bandStart[band]];
+    }
+
+
+    // ******************************************************************** //
+    // Band Sums.
+    // ******************************************************************** //
+
+    /**
+     * Get the power in one band.
+     *
+     * @param   power       The power of each bin.
+     * @param   band        The band index.
+     * @return              The weighted sum of the power of the
+     *                      band's bins.
+     */
+    public float bandPower(float[] power, int band) {
+        final float[] w = weights;
+        int k = weightBase[band];
+        float total = 0f;
+        for (int i = bandStart[band]; i < bandEnd[band]; ++i)
+            total += power[i] * w[k++];
+        return total;
+    }
+
+
+    /**
+     * Get the power in every band.
+     *
+     * @param   power       The power of each bin; getBinCount() long.
+     * @param   out         Buffer for the power of each band; at least
+     *                      getBandCount() long.
+     * @return              The out buffer.
+     * @throws  IllegalArgumentException    Invalid buffer size.
+     */
+    public float[] bandPowers(float[] power, float[] out) {
+        checkSizes(power.length, out.length);
+        for (int b = 0; b < numBands; ++b)
+            out[b] = bandPower(power, b);
+        return out;
+    }
+
+
+    /**
+     * Get the summed linear magnitude in every band.  This takes a
+     * square root per bin, so only use it where amplitudes are needed.
+     *
+     * @param   power       The power of each bin; getBinCount() long.
+     * @param   out         Buffer for the magnitude of each band; at
+     *                      least getBandCount() long.
+     * @return              The out buffer.
+     * @throws  IllegalArgumentException    Invalid buffer size.
+     */
+    public double[] bandMagnitudes(float[] power, double[] out) {
+        checkSizes(power.length, out.length);
+        final float[] w = weights;
+        for (int b = 0; b < numBands; ++b) {
+            int k = weightBase[b];
+            float total = 0f;
+            for (int i = bandStart[b]; i < bandEnd[b]; ++i)
+                total += (float) Math.sqrt(power[i]) * w[k++];
+            out[b] = total;
+        }
+        return out;
+    }
+
+
+    /**
+     * Check the sizes of buffers passed in.
+     *
+     * @param   bins        Size of the spectrum buffer.
+     * @param   bands       Size of the output buffer.
+     * @throws  IllegalArgumentException    Invalid buffer size.
+     */
+    private void checkSizes(int bins, int bands) {
+        if (bins != numBins || bands < numBands)
+            throw new IllegalArgumentException("bad buffer size in band map:" +
+                                               " " + bins + " bins and " +
+                                               bands + " outputs, for " +
+                                               numBins + " bins and " +
+                                               numBands + " bands");
+    }
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The sample rate and number of bins we were built for, and the
+    // width of each bin in Hz.
+    private final int sampleRate;
+    private final int numBins;
+    private final float binWidth;
+
+    // Number of bands; and the range of bins in each band.
+    private final int numBands;
+    private final int[] bandStart;
+    private final int[] bandEnd;
+
+    // The weight of each bin in each band, band after band; band b's
+    // weights start at weightBase[b].
+    private final int[] weightBase;
+    private final float[] weights;
+
+}
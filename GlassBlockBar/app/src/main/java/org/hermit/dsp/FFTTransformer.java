@@ -16,9 +16,10 @@
 
 package org.hermit.dsp;
 
-import org.hermit.utils.Bitwise;
-import org.hermit.ca.uol.aig.fftpack.RealDoubleFFT;
-import org.hermit.ca.uol.aig.fftpack.ComplexDoubleFFT;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.hermit.ca.uol.aig.fftpack.RealFloatFFT;
 
 
 /**
@@ -35,17 +36,26 @@ import org.hermit.ca.uol.aig.fftpack.ComplexDoubleFFT;
  * <ul>
  * <li>Call {@link #setInput(float[], int, int)} to
  *     supply the input data.  The execution of this method is the only
- *     time your input buffer will be accessed; the data is converted
- *     to complex and copied to a different buffer.
+ *     time your input buffer will be accessed; the data is converted,
+ *     windowed and copied to a different buffer, all in one pass.
  * <li>Call {@link #transform()} to actually do the FFT.  This is the
  *     time-consuming part.
- * <li>Call {@link #getRealResults(float[])} to get the results into
- *     your output buffer.
+ * <li>Call {@link #getRealResults(float[])} to get the magnitudes into
+ *     your output buffer, or {@link #getComplexResults(float[], float[])}
+ *     to get the real and imaginary parts of each bin.
  * </ul>
  * <p>The flow is broken up like this to allow you to make best use of
  * locks.  For example, if the input buffer is also accessed by a thread
  * which reads from the audio, you only need to lock out that thread during
  * {@link #setInput(float[], int, int)}, not the entire FFT process.
+ * 
+ * <p>Our input is 16-bit audio, so the transform is done in single
+ * precision with {@link RealFloatFFT}; its rounding error is far below
+ * the quantization noise of the input.  Power-of-2 block sizes use its
+ * radix-2/4 kernel.  Other even sizes, such as the 480 or 960 sample
+ * blocks which match 10 or 20 ms audio buffers at 48 kHz, use the
+ * mixed-radix code; this is fast for any size whose only prime factors
+ * are 2, 3 and 5.
  */
 public final class FFTTransformer {
 
@@ -58,7 +68,7 @@ public final class FFTTransformer {
      * resources appropriate to that block size.
      * 
      * @param   size        The number of samples in a block that we will
-     *                      be asked to transform.  Must be a power of 2.
+     *                      be asked to transform.  Must be even.
      * @throws  IllegalArgumentException    Invalid parameter.
      */
     public FFTTransformer(int size) {
@@ -72,7 +82,7 @@ public final class FFTTransformer {
      * function will be applied to all input data.
      * 
      * @param   size        The number of samples in a block that we will
-     *                      be asked to transform.  Must be a power of 2.
+     *                      be asked to transform.  Must be even.
      * @param   winfunc     Window function to apply to all input data.
      * @throws  IllegalArgumentException    Invalid parameter.
      */
@@ -87,29 +97,58 @@ public final class FFTTransformer {
      * function will be applied to all input data.
      * 
      * @param   size        The number of samples in a block that we will
-     *                      be asked to transform.  Must be a power of 2.
+     *                      be asked to transform.  Must be even.
      * @param   window      Window function to apply to all input data.
      *                      Its block size must be the same as the size
      *                      parameter.
      * @throws  IllegalArgumentException    Invalid parameter.
      */
     public FFTTransformer(int size, Window window) {
-        if (!Bitwise.isPowerOf2(size))
+        if (size < 2 || size % 2 != 0)
             throw new IllegalArgumentException("size for FFT must" +
-                                               " be a power of 2 (was " + size + ")");
+                                               " be even (was " + size + ")");
         
-        windowFunc = window;
-        transformerReal = new RealDoubleFFT(size);
-        transformerComplex = new ComplexDoubleFFT(size);
+        transformerReal = new RealFloatFFT(size);
         
         blockSize = size;
+        setWindow(window);
         
-        // Allocate working data arrays.
-        xre = new double[blockSize];
-        xie = new double[blockSize];
+        // Allocate working data array.
+        xre = new float[blockSize];
     }
     
 
+    /**
+     * Find the smallest block size, not less than a given number of
+     * samples, which this class can transform efficiently: that is, an
+     * even size whose only prime factors are 2, 3 and 5.  For example,
+     * 480 (10 ms at 48 kHz) is returned unchanged, while 441 (10 ms at
+     * 44.1 kHz) is rounded up to 450.
+     *
+     * @param   min         The minimum number of samples.
+     * @return              The block size to use.
+     */
+    public static int fastSize(int min) {
+        int n = Math.max(min, 2);
+        if (n % 2 != 0)
+            ++n;
+        while (!isFastSize(n))
+            n += 2;
+        return n;
+    }
+
+
+    private static boolean isFastSize(int n) {
+        while (n % 2 == 0)
+            n /= 2;
+        while (n % 3 == 0)
+            n /= 3;
+        while (n % 5 == 0)
+            n /= 5;
+        return n == 1;
+    }
+
+
     // ******************************************************************** //
     // Configuration.
     // ******************************************************************** //
@@ -120,7 +159,24 @@ public final class FFTTransformer {
      * @param   func        The desired windowing function.
      */
     public void setWindowFunc(Window.Function func) {
-        windowFunc = new Window(blockSize, func);
+        setWindow(new Window(blockSize, func));
+    }
+
+
+    /**
+     * Set up the window, and the input kernels which apply it while
+     * the data is copied in.
+     *
+     * @param   window      The window to apply; null for none.
+     */
+    private void setWindow(Window window) {
+        if (window == null || window.isRectangular()) {
+            floatKernel = null;
+            shortKernel = null;
+        } else {
+            floatKernel = window.getScaledKernel(1f);
+            shortKernel = window.getScaledKernel(SHORT_SCALE);
+        }
     }
 
     
@@ -149,11 +205,14 @@ public final class FFTTransformer {
                                                " constructed for " + blockSize +
                                                "; given " + input.length);
        
-        // Copy and transform the samples into our internal data buffer.
-        for (int i = 0; i < blockSize; i++) {
-            xre[i] = input[off + i];
-            xie[i] = input[off + i];
-        }
+        // Copy the samples into our internal data buffer, applying the
+        // window as we go.
+        final float[] k = floatKernel;
+        if (k == null)
+            System.arraycopy(input, off, xre, 0, blockSize);
+        else
+            for (int i = 0; i < blockSize; i++)
+                xre[i] = input[off + i] * k[i];
     }
     
 
@@ -178,11 +237,58 @@ public final class FFTTransformer {
                                                " constructed for " + blockSize +
                                                "; given " + input.length);
 
-        // Copy and transform the samples into our internal data buffer.
-        for (int i = 0; i < blockSize; i++)    {
-            xre[i] = (double) input[off + i] / 32768.0;
-            xie[i] = (double) input[off + i] / 32768.0;
-        }
+        convertInput(input, off, xre, 0, blockSize);
+    }
+
+
+    /**
+     * Set up a new data block for the FFT algorithm from a circular
+     * buffer, such as an audio ring buffer.  The block starts at
+     * input[start] and wraps round to input[0] if it runs past the end.
+     * Otherwise this is the same as {@link #setInput(short[], int, int)}.
+     *
+     * @param   input       The circular input buffer.
+     * @param   start       Index in the buffer at which the data to
+     *                      be transformed starts.
+     * @param   count       Number of samples in the data to be
+     *                      transformed.  Must be the same as the size
+     *                      parameter that was given to the constructor,
+     *                      and no more than the buffer length.
+     * @throws  IllegalArgumentException    Invalid data size.
+     */
+    public final void setInputCircular(short[] input, int start, int count) {
+        if (count != blockSize || count > input.length)
+            throw new IllegalArgumentException("bad input count in FFT:" +
+                                               " constructed for " + blockSize +
+                                               "; given " + count + " from a buffer of " +
+                                               input.length);
+
+        final int first = Math.min(count, input.length - start);
+        convertInput(input, start, xre, 0, first);
+        convertInput(input, 0, xre, first, count - first);
+    }
+
+
+    /**
+     * Convert 16-bit samples to floats in the range -1 to 1, applying
+     * the window, all in one pass.  The window index is the position
+     * in the output block.
+     *
+     * @param   input       The input samples.
+     * @param   inOff       Offset in input of the first sample.
+     * @param   out         The block being built.
+     * @param   outOff      Offset in the block to start at.
+     * @param   count       Number of samples to convert.
+     */
+    private void convertInput(short[] input, int inOff,
+                              float[] out, int outOff, int count) {
+        final float[] k = shortKernel;
+        if (k == null)
+            for (int i = 0; i < count; i++)
+                out[outOff + i] = input[inOff + i] * SHORT_SCALE;
+        else
+            for (int i = 0; i < count; i++)
+                out[outOff + i] = input[inOff + i] * k[outOff + i];
     }
 
 
@@ -194,15 +300,9 @@ public final class FFTTransformer {
      * Transform the data provided in the last call to setInput.
      */
     public final void transform() {
-        // If we have a window function, apply it now.
-        if (windowFunc != null)  {
-            windowFunc.transform(xie);
-            windowFunc.transform(xre);
-        }
-
-        // Do the FFT.
+        // The window was applied by setInput().  Do the FFT.  The input
+        // is real, so one real FFT gives us the full complex spectrum.
         transformerReal.ft(xre);
-        transformerReal.ft(xie);
     }
 
 
@@ -226,18 +326,36 @@ public final class FFTTransformer {
                                                " must be " + (blockSize / 2) +
                                                "; given " + buffer.length);
        
+        magnitudes(xre, buffer, 0);
+        return buffer;
+    }
+
+
+    /**
+     * Convert transform output to scaled magnitudes.
+     *
+     * @param   data    Transform output, as left by RealFloatFFT.ft().
+     * @param   out     Buffer to place blockSize / 2 magnitudes in.
+     * @param   outOff  Offset in out at which to start.
+     */
+    private void magnitudes(float[] data, float[] out, int outOff) {
         final float scale = blockSize * FUDGE;
         for (int i = 0; i < blockSize / 2; i++) {
-            double r = xre[i * 2];
-            double im = i == 0 ? 0.0 : xre[i * 2 - 1];
-            buffer[i] = (float) (Math.sqrt(r * r + im * im)) / scale;
+            float r = data[i * 2];
+            float im = i == 0 ? 0f : data[i * 2 - 1];
+            out[outOff + i] = (float) (Math.sqrt(r * r + im * im)) / scale;
         }
-        return buffer;
     }
 
     /**
      * Get the rolling average real results of the last n transformations.
      *
+     * @deprecated          This keeps a separate history array per bin,
+     *                      and takes a square root per bin per call.  Use
+     *                      {@link #getPowerResults(float[])} and a
+     *                      {@link SpectrogramRing}, which holds the
+     *                      history in one flat array.
+     *
      * @param   average     Buffer in which the averaged real part of the
      *                      results will be maintained.  This buffer must be
      *                      half the length of the input block.  It is
@@ -260,6 +378,7 @@ public final class FFTTransformer {
      *                      the index parameter next time around.
      * @throws  IllegalArgumentException    Invalid buffer size.
      */
+    @Deprecated
     public final int getResults(float[] average, float[][] histories, int index) {
         if (average.length != blockSize / 2)
             throw new IllegalArgumentException("bad history buffer size in FFT:" +
@@ -278,8 +397,8 @@ public final class FFTTransformer {
         // Now do the rolling average of each value.
         final float scale = blockSize * FUDGE;
         for (int i = 0; i < blockSize / 2; i++) {
-            double r = xre[i * 2];
-            double im = i == 0 ? 0.0 : xre[i * 2 - 1];
+            float r = xre[i * 2];
+            float im = i == 0 ? 0f : xre[i * 2 - 1];
             final float val = (float) (Math.sqrt(r * r + im * im)) / scale;
 
             final float[] hist = histories[i];
@@ -296,29 +415,275 @@ public final class FFTTransformer {
 
 
     /**
-     * Get the real results of the last transformation.
+     * Get the complex results of the last transformation.  Each bin
+     * is scaled the same way as {@link #getRealResults(float[])}, so
+     * sqrt(real[i]^2 + imag[i]^2) is the magnitude of bin i.
      *
-     * @param   buffer  Buffer in which the real part of the results
+     * @param   real    Buffer in which the real part of each bin
+     *                  will be placed.  This buffer must be half the
+     *                  length of the input block.
+     * @param   imag    Buffer in which the imaginary part of each bin
      *                  will be placed.  This buffer must be half the
      *                  length of the input block.  If transform() has
      *                  not been called, the results will be garbage.
-     * @return          The parameter buffer.
      * @throws  IllegalArgumentException    Invalid buffer size.
      */
-    public final float[] getComplexResults(float[] buffer) {
-        if (buffer.length != blockSize / 2)
+    public final void getComplexResults(float[] real, float[] imag) {
+        if (real.length != blockSize / 2 || imag.length != blockSize / 2)
             throw new IllegalArgumentException("bad output buffer size in FFT:" +
                     " must be " + (blockSize / 2) +
-                    "; given " + buffer.length);
+                    "; given " + real.length + " and " + imag.length);
 
+        // The DC term has no imaginary part.  After that, the real FFT
+        // leaves bin i as (re, im) at xre[2i - 1], xre[2i].
         final float scale = blockSize * FUDGE;
-        for (int i = 0; i < blockSize / 2; i++) {
-            double r = xie[i * 2];
-            double im = i == 0 ? 0.0 : xie[i * 2 - 1];
-            buffer[i] = (float) (Math.sqrt(r * r + im * im)) / scale;
+        real[0] = xre[0] / scale;
+        imag[0] = 0f;
+        for (int i = 1; i < blockSize / 2; i++) {
+            real[i] = xre[i * 2 - 1] / scale;
+            imag[i] = xre[i * 2] / scale;
         }
-        return buffer;
     }
+
+
+    /**
+     * Get the power of each bin of the last transformation: the square of
+     * its magnitude, with the same scaling as
+     * {@link #getRealResults(float[])}.  This needs no square roots, and
+     * is what you want for comparing band energies.  Use a
+     * {@link MagnitudeView} if linear amplitudes are also needed.
+     *
+     * @param   power   Buffer in which the power of each bin will be
+     *                  placed.  This buffer must be half the length of
+     *                  the input block.  If transform() has not been
+     *                  called, the results will be garbage.
+     * @return          The parameter buffer.
+     * @throws  IllegalArgumentException    Invalid buffer size.
+     */
+    public final float[] getPowerResults(float[] power) {
+        if (power.length != blockSize / 2)
+            throw new IllegalArgumentException("bad output buffer size in FFT:" +
+                                               " must be " + (blockSize / 2) +
+                                               "; given " + power.length);
+
+        final float scale = blockSize * FUDGE;
+        final float norm = 1f / (scale * scale);
+        power[0] = xre[0] * xre[0] * norm;
+        for (int i = 1; i < blockSize / 2; i++) {
+            final float r = xre[i * 2 - 1];
+            final float im = xre[i * 2];
+            power[i] = (r * r + im * im) * norm;
+        }
+        return power;
+    }
+
+
+    /**
+     * Get the total power in each of a set of frequency bands, straight
+     * from the last transformation.  Band b covers bins edges[b] to
+     * edges[b + 1] - 1, so n bands need n + 1 edges.  Powers are scaled
+     * as for {@link #getPowerResults(float[])}.
+     *
+     * @param   edges   Bin index of the start of each band, followed by
+     *                  the end of the last band; ascending, and no more
+     *                  than half the block size.
+     * @param   out     Buffer in which the power of each band will be
+     *                  placed; at least edges.length - 1 long.
+     * @return          The out buffer.
+     * @throws  IllegalArgumentException    Invalid band edges.
+     */
+    public final float[] getBandPowers(int[] edges, float[] out) {
+        final int bands = edges.length - 1;
+        if (bands < 1 || out.length < bands ||
+                            edges[0] < 0 || edges[bands] > blockSize / 2)
+            throw new IllegalArgumentException("bad band edges in FFT:" +
+                                               " " + edges.length + " edges, " +
+                                               out.length + " outputs, for " +
+                                               (blockSize / 2) + " bins");
+
+        final float scale = blockSize * FUDGE;
+        final float norm = 1f / (scale * scale);
+        for (int b = 0; b < bands; ++b) {
+            float total = 0f;
+            for (int i = edges[b]; i < edges[b + 1]; ++i) {
+                if (i == 0) {
+                    total += xre[0] * xre[0];
+                } else {
+                    final float r = xre[i * 2 - 1];
+                    final float im = xre[i * 2];
+                    total += r * r + im * im;
+                }
+            }
+            out[b] = total * norm;
+        }
+        return out;
+    }
+
+
+    // ******************************************************************** //
+    // Batch Transform.
+    // ******************************************************************** //
+
+    /**
+     * Transform a run of blocks in one call, producing a spectrogram.
+     * Block b starts at input[off + b * hop]; its blockSize / 2 magnitudes,
+     * scaled as for {@link #getRealResults(float[])}, are placed at
+     * out[b * blockSize / 2].  The window function is applied to each
+     * block.
+     *
+     * <p>This doesn't touch the data set up by setInput(), so it can be
+     * used alongside the single-block calls.  When there are enough
+     * blocks to be worth it, the work is spread across all cores; this
+     * method returns when all blocks are done.
+     *
+     * @param   input       The input samples.
+     * @param   off         Offset in input of the first block.
+     * @param   blocks      The number of blocks to transform.
+     * @param   hop         Distance in samples from the start of one block
+     *                      to the start of the next.  A hop less than
+     *                      the block size gives overlapping blocks.
+     * @param   out         Buffer for the results; at least
+     *                      blocks * blockSize / 2 long.
+     * @return              The out buffer.
+     * @throws  IllegalArgumentException    Invalid buffer or block sizes.
+     */
+    public final float[] transformBatch(short[] input, int off,
+                                        int blocks, int hop, float[] out) {
+        checkBatch(input.length, off, blocks, hop, out);
+        runBatch(input, null, off, blocks, hop, out);
+        return out;
+    }
+
+
+    /**
+     * Transform a run of blocks in one call, producing a spectrogram.
+     * This is the same as {@link #transformBatch(short[], int, int, int, float[])},
+     * for float samples in the range -1 to 1.
+     *
+     * @param   input       The input samples.
+     * @param   off         Offset in input of the first block.
+     * @param   blocks      The number of blocks to transform.
+     * @param   hop         Distance in samples from the start of one block
+     *                      to the start of the next.
+     * @param   out         Buffer for the results; at least
+     *                      blocks * blockSize / 2 long.
+     * @return              The out buffer.
+     * @throws  IllegalArgumentException    Invalid buffer or block sizes.
+     */
+    public final float[] transformBatch(float[] input, int off,
+                                        int blocks, int hop, float[] out) {
+        checkBatch(input.length, off, blocks, hop, out);
+        runBatch(null, input, off, blocks, hop, out);
+        return out;
+    }
+
+
+    private void checkBatch(int inLen, int off, int blocks, int hop, float[] out) {
+        if (blocks < 0 || hop <= 0 || off < 0)
+            throw new IllegalArgumentException("bad batch in FFT: " + blocks +
+                                               " blocks, hop " + hop +
+                                               ", offset " + off);
+        if (blocks == 0)
+            return;
+        long need = off + (long) (blocks - 1) * hop + blockSize;
+        if (need > inLen)
+            throw new IllegalArgumentException("bad input size in FFT batch:" +
+                                               " need " + need +
+                                               "; given " + inLen);
+        if (out.length < blocks * (blockSize / 2))
+            throw new IllegalArgumentException("bad output buffer size in FFT batch:" +
+                                               " need " + blocks * (blockSize / 2) +
+                                               "; given " + out.length);
+    }
+
+
+    private void runBatch(short[] sIn, float[] fIn, int off,
+                          int blocks, int hop, float[] out) {
+        if (blocks < BATCH_PARALLEL_MIN)
+            transformBlocks(sIn, fIn, off, hop, 0, blocks, out);
+        else
+            getBatchPool().invoke(new BatchTask(sIn, fIn, off, hop, 0, blocks, out));
+    }
+
+
+    /**
+     * Transform blocks [from, to) of a batch.  This is safe to call from
+     * several threads at once, as it only reads our shared state.
+     */
+    private void transformBlocks(short[] sIn, float[] fIn, int off, int hop,
+                                 int from, int to, float[] out) {
+        final float[] work = new float[blockSize];
+        final int bins = blockSize / 2;
+        for (int b = from; b < to; ++b) {
+            final int start = off + b * hop;
+            if (sIn != null)
+                convertInput(sIn, start, work, 0, blockSize);
+            else {
+                final float[] k = floatKernel;
+                if (k == null)
+                    System.arraycopy(fIn, start, work, 0, blockSize);
+                else
+                    for (int i = 0; i < blockSize; i++)
+                        work[i] = fIn[start + i] * k[i];
+            }
+            transformerReal.ft(work);
+            magnitudes(work, out, b * bins);
+        }
+    }
+
+
+    /**
+     * Fork-join task which splits a batch in half until the pieces are
+     * small, then transforms each piece.
+     */
+    private final class BatchTask extends RecursiveAction {
+        BatchTask(short[] sIn, float[] fIn, int off, int hop,
+                  int from, int to, float[] out) {
+            this.sIn = sIn;
+            this.fIn = fIn;
+            this.off = off;
+            this.hop = hop;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_GRAIN) {
+                transformBlocks(sIn, fIn, off, hop, from, to, out);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BatchTask(sIn, fIn, off, hop, from, mid, out),
+                      new BatchTask(sIn, fIn, off, hop, mid, to, out));
+        }
+
+        private final short[] sIn;
+        private final float[] fIn;
+        private final int off;
+        private final int hop;
+        private final int from;
+        private final int to;
+        private final float[] out;
+
+        // RecursiveAction is Serializable, though we never serialize tasks.
+        private static final long serialVersionUID = 1L;
+    }
+
+
+    /**
+     * Get the pool for parallel batches, creating it the first time.
+     * (ForkJoinPool.commonPool() would do, but needs API 24.)
+     */
+    private static synchronized ForkJoinPool getBatchPool() {
+        if (batchPool == null)
+            batchPool = new ForkJoinPool();
+        return batchPool;
+    }
+
+
+    // ******************************************************************** //
     // Results Analysis.
     // ******************************************************************** //
 
@@ -370,30 +735,43 @@ public final class FFTTransformer {
 
     
     // ******************************************************************** //
-    // Private Data.
+    // Class Data.
     // ******************************************************************** //
 
     // Fudge factor to scale the FFT output to the range 0-1.
     private static final float FUDGE = 0.63610f;
+
+    // Scale from 16-bit samples to the range -1 to 1.
+    private static final float SHORT_SCALE = 1f / 32768f;
+
+    // Batches with fewer blocks than this are done on the calling thread.
+    private static final int BATCH_PARALLEL_MIN = 32;
+
+    // Number of blocks below which a parallel batch isn't split further.
+    private static final int BATCH_GRAIN = 8;
+
+    // Thread pool for parallel batches; null until first needed.
+    private static ForkJoinPool batchPool = null;
     
     
     // ******************************************************************** //
     // Private Data.
     // ******************************************************************** //
     
-    // Window function to apply to all input data.  If null, no windowing.
-    private Window windowFunc = null;
+    // The window function as applied to float and 16-bit input; the
+    // 16-bit one has the conversion to -1 .. 1 folded in.  Null if the
+    // window is rectangular.
+    private float[] floatKernel = null;
+    private float[] shortKernel = null;
 
     // The FFT transformer.
-    private RealDoubleFFT transformerReal;
-    private ComplexDoubleFFT transformerComplex;
+    private RealFloatFFT transformerReal;
 
     // The size of an input data block.
     private final int blockSize;
     
     // Working array -- real data being processed.
-    private final double[] xre;
-    private final double[] xie;
+    private final float[] xre;
 
 }
 
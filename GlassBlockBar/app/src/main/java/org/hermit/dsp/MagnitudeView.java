@@ -0,0 +1,92 @@
+
+/**
+ * dsp: various digital signal processing algorithms
+ * <br>Copyright 2009 Ian Cameron Smith
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ * 
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.dsp;
+
+
+/**
+ * A linear-amplitude view of a power spectrum.  Most analysis only needs
+ * to compare band powers, which can be summed straight from the output of
+ * {@link FFTTransformer#getPowerResults(float[])}.  For the few consumers
+ * which want linear amplitudes, this class takes the square root of each
+ * bin only when it is asked for, without copying the spectrum.
+ */
+public final class MagnitudeView {
+
+    // ******************************************************************** //
+    // Configuration.
+    // ******************************************************************** //
+
+    /**
+     * Point this view at a power spectrum.  The array is not copied, so
+     * changes to it show up in the view.
+     *
+     * @param   power       The power of each frequency bin.
+     */
+    public void setPower(float[] power) {
+        this.power = power;
+    }
+
+
+    // ******************************************************************** //
+    // Accessors.
+    // ******************************************************************** //
+
+    /**
+     * Get the number of bins in the spectrum.
+     *
+     * @return              The number of bins; 0 if no spectrum is set.
+     */
+    public int size() {
+        return power == null ? 0 : power.length;
+    }
+
+
+    /**
+     * Get the magnitude of one bin.
+     *
+     * @param   bin         The bin index.
+     * @return              The square root of the bin's power.
+     */
+    public float get(int bin) {
+        return (float) Math.sqrt(power[bin]);
+    }
+
+
+    /**
+     * Get the summed magnitudes of a range of bins.
+     *
+     * @param   from        The first bin to include.
+     * @param   to          The bin after the last one to include.
+     * @return              The sum of the magnitudes of bins from
+     *                      to to - 1.
+     */
+    public float sum(int from, int to) {
+        float total = 0f;
+        for (int i = from; i < to; ++i)
+            total += (float) Math.sqrt(power[i]);
+        return total;
+    }
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The power spectrum we're viewing.
+    private float[] power = null;
+
+}
@@ -0,0 +1,321 @@
+/**
+ * dsp: various digital signal processing algorithms
+ * <br>Copyright 2009 Ian Cameron Smith
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.dsp;
+
+import java.util.Arrays;
+
+
+/**
+ * The mean and variance of the last N values of a series, kept up to
+ * date as each value arrives.  Adding a value costs O(1): the running
+ * sum and sum of squares are adjusted for the value coming in and the
+ * one dropping out.  The sums are of differences from a reference
+ * value near the mean, so that the variance doesn't get lost in
+ * rounding when it is small next to the mean; and once per pass round
+ * the ring they are worked out afresh, with a new reference, so
+ * rounding errors don't build up.
+ *
+ * <p>This also gives a variance-adaptive threshold, for spotting values
+ * which stand out from the recent history, such as beats in a series of
+ * band energies.  The threshold is C times the mean; C is high when the
+ * history is steady, so that small wobbles don't count, and lower when
+ * it is already varying a lot, so that peaks in busy music still do.
+ * {@link #isPeak(double)} checks each value against the threshold, once
+ * there is enough history to go on, and then adds it.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class RollingStats {
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create an empty history, which needs a tenth of its length of
+     * values, and at least 2, before {@link #isPeak(double)} reports
+     * any peaks.
+     *
+     * @param   length      The number of values to keep.
+     * @throws  IllegalArgumentException    Invalid length.
+     */
+    public RollingStats(int length) {
+        this(length, Math.min(length, Math.max(MIN_WARMUP, length / 10)));
+    }
+
+
+    /**
+     * Create an empty history.
+     *
+     * @param   length      The number of values to keep.
+     * @param   warmup      The number of values needed before
+     *                      {@link #isPeak(double)} reports any peaks.
+     * @throws  IllegalArgumentException    Invalid length or warm-up.
+     */
+    public RollingStats(int length, int warmup) {
+        if (length < 1)
+            throw new IllegalArgumentException("bad history length: " + length);
+        if (warmup < 0 || warmup > length)
+            throw new IllegalArgumentException("bad history warm-up: " + warmup);
+        values = new double[length];
+        this.warmup = warmup;
+    }
+
+
+    /**
+     * Create an empty history for values arriving at a steady rate,
+     * covering about a second of them; the usual set-up for beat
+     * detection.  It needs a tenth of that before reporting peaks.
+     *
+     * @param   periodNanos The time between values, in ns; 0 if not
+     *                      known yet.
+     * @return              The new history.
+     */
+    public static RollingStats forPeriod(long periodNanos) {
+        return new RollingStats(lengthForPeriod(periodNanos));
+    }
+
+
+    /**
+     * Get the length of the history {@link #forPeriod(long)} creates.
+     *
+     * @param   periodNanos The time between values, in ns; 0 if not
+     *                      known yet.
+     * @return              The number of values it keeps.
+     */
+    public static int lengthForPeriod(long periodNanos) {
+        if (periodNanos <= 0)
+            return DEFAULT_LENGTH;
+        final long len = (PERIOD_MS * 1000000L + periodNanos / 2) / periodNanos;
+        return (int) Math.max(MIN_LENGTH, Math.min(len, Integer.MAX_VALUE));
+    }
+
+
+    // ******************************************************************** //
+    // Data.
+    // ******************************************************************** //
+
+    /**
+     * Add a value, replacing the oldest if the history is full.
+     *
+     * @param   val         The value to add.
+     */
+    public void add(double val) {
+        final double[] v = values;
+        if (count == v.length) {
+            final double old = v[next] - shift;
+            sum -= old;
+            sumSquares -= old * old;
+        } else
+            ++count;
+        v[next] = val;
+        final double d = val - shift;
+        sum += d;
+        sumSquares += d * d;
+
+        if (++next == v.length) {
+            next = 0;
+            resum();
+        }
+    }
+
+
+    /**
+     * Add the latest value again, e.g. in place of one which was
+     * skipped, so the history still covers the same time.  Does
+     * nothing if the history is empty.
+     */
+    public void repeatLast() {
+        if (count > 0)
+            add(values[next == 0 ? values.length - 1 : next - 1]);
+    }
+
+
+    /**
+     * Check whether a value stands out from the history, and then add
+     * it.  It does if it's over {@link #getThreshold()}, and the history
+     * has warmed up.  As each value is judged against the ones before
+     * it, the threshold follows changes in the series value by value;
+     * e.g. changes in volume and tempo, for band energies.
+     *
+     * @param   val         The value to check and add.
+     * @return              true if the value is a peak.
+     */
+    public boolean isPeak(double val) {
+        final boolean peak = count >= warmup && val > getThreshold();
+        add(val);
+        return peak;
+    }
+
+
+    /**
+     * Empty the history.
+     */
+    public void clear() {
+        Arrays.fill(values, 0.0);
+        next = 0;
+        count = 0;
+        shift = 0;
+        sum = 0;
+        sumSquares = 0;
+    }
+
+
+    /**
+     * Work out the sums from scratch.
+     */
+    private void resum() {
+        final double ref = getMean();
+        double s = 0;
+        double s2 = 0;
+        for (int i = 0; i < count; ++i) {
+            final double d = values[i] - ref;
+            s += d;
+            s2 += d * d;
+        }
+        shift = ref;
+        sum = s;
+        sumSquares = s2;
+    }
+
+
+    // ******************************************************************** //
+    // Statistics.
+    // ******************************************************************** //
+
+    /**
+     * @return              The number of values the history can hold.
+     */
+    public int getLength() {
+        return values.length;
+    }
+
+
+    /**
+     * @return              The number of values needed before
+     *                      {@link #isPeak(double)} reports any peaks.
+     */
+    public int getWarmup() {
+        return warmup;
+    }
+
+
+    /**
+     * @return              The number of values the history holds now.
+     */
+    public int getCount() {
+        return count;
+    }
+
+
+    /**
+     * @return              The mean of the values held; 0 if there
+     *                      are none.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : shift + sum / count;
+    }
+
+
+    /**
+     * @return              The variance of the values held; 0 if there
+     *                      are none.
+     */
+    public double getVariance() {
+        if (count == 0)
+            return 0;
+        // Variance doesn't depend on the reference value.
+        final double offset = sum / count;
+        final double var = sumSquares / count - offset * offset;
+        return var > 0 ? var : 0;
+    }
+
+
+    /**
+     * Get the variance-adaptive threshold over the values held, with
+     * the default constants; see
+     * {@link #getThreshold(double, double, double)}.
+     *
+     * @return              The threshold.
+     */
+    public double getThreshold() {
+        return getThreshold(THRESHOLD_MAX, THRESHOLD_MIN, THRESHOLD_SLOPE);
+    }
+
+
+    /**
+     * Get the variance-adaptive threshold over the values held.  This is
+     * C times the mean, where C falls from cMax as the relative variance
+     * (variance / mean<sup>2</sup>) rises, but not below cMin.  As the
+     * variance is taken relative to the mean, the threshold works the
+     * same whatever the scale of the values.
+     *
+     * @param   cMax        The factor for a steady history.
+     * @param   cMin        The lowest factor.
+     * @param   slope       How fast the factor falls with relative
+     *                      variance.
+     * @return              The threshold; 0 if there are no values.
+     */
+    public double getThreshold(double cMax, double cMin, double slope) {
+        final double mean = getMean();
+        if (mean <= 0)
+            return 0;
+        double c = cMax - slope * getVariance() / (mean * mean);
+        if (c < cMin)
+            c = cMin;
+        return c * mean;
+    }
+
+
+    // ******************************************************************** //
+    // Class Data.
+    // ******************************************************************** //
+
+    // Default threshold factors: for a steady history, and the lowest;
+    // and how fast the factor falls with relative variance.
+    private static final double THRESHOLD_MAX = 1.5;
+    private static final double THRESHOLD_MIN = 1.1;
+    private static final double THRESHOLD_SLOPE = 0.4;
+
+    // Time a history made by forPeriod() covers, in ms; the length it
+    // has if the period isn't known, and the shortest.  And the least
+    // warm-up by default.
+    private static final long PERIOD_MS = 1000;
+    private static final int DEFAULT_LENGTH = 43;
+    private static final int MIN_LENGTH = 8;
+    private static final int MIN_WARMUP = 2;
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // The values, oldest at next when full; where the next one goes;
+    // and how many there are.
+    private final double[] values;
+    private int next = 0;
+    private int count = 0;
+
+    // Number of values needed before isPeak() reports peaks.
+    private final int warmup;
+
+    // The reference value; and the running sum and sum of squares of the
+    // differences of the values held from it.
+    private double shift = 0;
+    private double sum = 0;
+    private double sumSquares = 0;
+
+}
@@ -0,0 +1,399 @@
+/**
+ * dsp: various digital signal processing algorithms
+ * <br>Copyright 2009 Ian Cameron Smith
+ *
+ * <p>This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation (see COPYING).
+ *
+ * <p>This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package org.hermit.dsp;
+
+import java.util.Arrays;
+
+
+/**
+ * A rolling history of spectra, held in one flat array.  Frames are
+ * stored one after another, each frame being the power of every bin;
+ * so frame f, bin b is at {@link #frameOffset(int) frameOffset(f)} + b.
+ *
+ * <p>Appending a frame overwrites the oldest, and costs one pass over the
+ * bins whatever the length of the history.  At the same time a smoothed
+ * spectrum is kept up to date: either a boxcar average over the last few
+ * frames, or an exponential average.
+ *
+ * <p>Given the time each frame represents, the history can be queried
+ * by time; e.g. {@link #bandEnergyMs(int, int, long)} gives the average
+ * power in a band over the last so many ms.
+ *
+ * <p>This class is not thread-safe; it is meant to be written and read
+ * by the analysis thread.
+ */
+public final class SpectrogramRing {
+
+    // ******************************************************************** //
+    // Public Constants.
+    // ******************************************************************** //
+
+    /**
+     * Ways of smoothing the spectrum.
+     */
+    public enum Averaging {
+        /** Mean of the last N frames. */
+        BOXCAR,
+
+        /** Exponential moving average. */
+        EXPONENTIAL;
+    }
+
+
+    // ******************************************************************** //
+    // Constructor.
+    // ******************************************************************** //
+
+    /**
+     * Create a spectrogram ring.  It starts empty, with a boxcar average
+     * over 1 frame; i.e. no smoothing.
+     *
+     * @param   bins        Number of frequency bins in each frame.
+     * @param   frames      Number of frames of history to keep.
+     * @param   frameNanos  The time between frames, in ns.
+     * @throws  IllegalArgumentException    Invalid parameter.
+     */
+    public SpectrogramRing(int bins, int frames, long frameNanos) {
+        if (bins < 1)
+            throw new IllegalArgumentException("bad bin count: " + bins);
+        if (frames < 1)
+            throw new IllegalArgumentException("bad frame count: " + frames);
+
+        numBins = bins;
+        numFrames = frames;
+        data = new float[bins * frames];
+        newest = frames - 1;
+        average = new float[bins];
+        boxSums = new double[bins];
+        repeatBuffer = new float[bins];
+        setFramePeriod(frameNanos);
+        setBoxcar(1);
+    }
+
+
+    // ******************************************************************** //
+    // Configuration.
+    // ******************************************************************** //
+
+    /**
+     * Set the time between frames.
+     *
+     * @param   frameNanos  The time between frames, in ns.
+     * @throws  IllegalArgumentException    Invalid period.
+     */
+    public void setFramePeriod(long frameNanos) {
+        if (frameNanos <= 0)
+            throw new IllegalArgumentException("bad frame period: " + frameNanos);
+        framePeriod = frameNanos;
+    }
+
+
+    /**
+     * Smooth the spectrum with a boxcar average over the last few
+     * frames.  The average starts again from the frames now held.
+     *
+     * @param   len         Number of frames to average over; 1 means
+     *                      no averaging.  At most the number of frames
+     *                      held.
+     * @throws  IllegalArgumentException    Invalid length.
+     */
+    public void setBoxcar(int len) {
+        if (len < 1 || len > numFrames)
+            throw new IllegalArgumentException("bad boxcar length: " + len);
+        averaging = Averaging.BOXCAR;
+        boxLen = len;
+
+        // Re-total the frames now in the box.
+        Arrays.fill(boxSums, 0.0);
+        final int n = Math.min(len, count);
+        for (int f = 0; f < n; ++f) {
+            final int base = frameOffset(f);
+            for (int b = 0; b < numBins; ++b)
+                boxSums[b] += data[base + b];
+        }
+        for (int b = 0; b < numBins; ++b)
+            average[b] = (float) (boxSums[b] / boxLen);
+    }
+
+
+    /**
+     * Smooth the spectrum with an exponential moving average.  The
+     * average carries on from its current value.
+     *
+     * @param   alpha       Weight given to each new frame; 1 means no
+     *                      averaging.
+     * @throws  IllegalArgumentException    Invalid weight.
+     */
+    public void setExponential(float alpha) {
+        if (!(alpha > 0f && alpha <= 1f))
+            throw new IllegalArgumentException("bad averaging weight: " + alpha);
+        averaging = Averaging.EXPONENTIAL;
+        emaAlpha = alpha;
+    }
+
+
+    /**
+     * Empty the ring and zero the average.
+     */
+    public void clear() {
+        Arrays.fill(data, 0f);
+        Arrays.fill(average, 0f);
+        Arrays.fill(boxSums, 0.0);
+        newest = numFrames - 1;
+        count = 0;
+        appended = 0;
+    }
+
+
+    // ******************************************************************** //
+    // Accessors.
+    // ******************************************************************** //
+
+    /**
+     * @return              The number of frequency bins in each frame.
+     */
+    public int getBins() {
+        return numBins;
+    }
+
+
+    /**
+     * @return              The number of frames the ring can hold.
+     */
+    public int getCapacity() {
+        return numFrames;
+    }
+
+
+    /**
+     * @return              The number of frames the ring holds now.
+     */
+    public int getCount() {
+        return count;
+    }
+
+
+    /**
+     * @return              The total number of frames ever appended.
+     */
+    public long getFramesAppended() {
+        return appended;
+    }
+
+
+    /**
+     * @return              The time between frames, in ns.
+     */
+    public long getFramePeriod() {
+        return framePeriod;
+    }
+
+
+    /**
+     * @return              The way the spectrum is being smoothed.
+     */
+    public Averaging getAveraging() {
+        return averaging;
+    }
+
+
+    /**
+     * Get the buffer which holds the frames.  Use
+     * {@link #frameOffset(int)} to find a frame in it.  The caller must
+     * not modify it.
+     *
+     * @return              The frame buffer.
+     */
+    public float[] getBuffer() {
+        return data;
+    }
+
+
+    /**
+     * Find a frame in the buffer.
+     *
+     * @param   age         Age of the frame; 0 is the newest.  Must be
+     *                      less than the capacity.
+     * @return              Offset in the buffer of the frame's first bin.
+     */
+    public int frameOffset(int age) {
+        int f = newest - age;
+        if (f < 0)
+            f += numFrames;
+        return f * numBins;
+    }
+
+
+    /**
+     * Get the smoothed spectrum.  The caller must not modify it.
+     *
+     * @return              The average power of each bin.
+     */
+    public float[] getAverage() {
+        return average;
+    }
+
+
+    /**
+     * Get the number of frames which cover a period of time, rounded up,
+     * and limited to the frames held.
+     *
+     * @param   ms          The period, in ms.
+     * @return              The number of frames.
+     */
+    public int framesIn(long ms) {
+        long n = (ms * 1000000L + framePeriod - 1) / framePeriod;
+        return (int) Math.max(0, Math.min(n, count));
+    }
+
+
+    // ******************************************************************** //
+    // Data.
+    // ******************************************************************** //
+
+    /**
+     * Add a frame, replacing the oldest if the ring is full, and update
+     * the smoothed spectrum.
+     *
+     * @param   power       The power of each bin.
+     * @throws  IllegalArgumentException    Wrong number of bins.
+     */
+    public void append(float[] power) {
+        if (power.length != numBins)
+            throw new IllegalArgumentException("bad frame size: " + power.length +
+                                               "; expected " + numBins);
+        final int next = newest + 1 == numFrames ? 0 : newest + 1;
+        final int base = next * numBins;
+
+        if (averaging == Averaging.BOXCAR) {
+            // The frame leaving the box is boxLen - 1 frames older than
+            // the newest; the one we overwrite here, if boxLen is the
+            // capacity.
+            final boolean full = count >= boxLen;
+            final int out = full ? frameOffset(boxLen - 1) : 0;
+            final float scale = 1f / boxLen;
+            for (int b = 0; b < numBins; ++b) {
+                double sum = boxSums[b] + power[b];
+                if (full)
+                    sum -= data[out + b];
+                boxSums[b] = sum;
+                average[b] = (float) sum * scale;
+            }
+        } else {
+            final float alpha = emaAlpha;
+            for (int b = 0; b < numBins; ++b)
+                average[b] += alpha * (power[b] - average[b]);
+        }
+
+        System.arraycopy(power, 0, data, base, numBins);
+        newest = next;
+        if (count < numFrames)
+            ++count;
+        ++appended;
+    }
+
+
+    /**
+     * Append a copy of the newest frame.  This fills the gap when a
+     * frame is skipped, so that the history stays in step with time.
+     * Does nothing if the ring is empty.
+     */
+    public void repeatLast() {
+        if (count == 0)
+            return;
+        System.arraycopy(data, frameOffset(0), repeatBuffer, 0, numBins);
+        append(repeatBuffer);
+    }
+
+
+    /**
+     * Get the mean power in a band of bins, over a number of the most
+     * recent frames.
+     *
+     * @param   low         The first bin in the band.
+     * @param   high        The bin after the last in the band.
+     * @param   frames      The number of frames to look back over;
+     *                      limited to the frames held.
+     * @return              The total power in the band, averaged over
+     *                      the frames; 0 if there are none.
+     * @throws  IllegalArgumentException    Invalid band.
+     */
+    public float bandEnergyFrames(int low, int high, int frames) {
+        if (low < 0 || high > numBins || low > high)
+            throw new IllegalArgumentException("bad band: " + low + "-" + high);
+        final int n = Math.min(frames, count);
+        if (n <= 0)
+            return 0f;
+
+        double total = 0;
+        for (int f = 0; f < n; ++f) {
+            final int base = frameOffset(f);
+            for (int b = base + low; b < base + high; ++b)
+                total += data[b];
+        }
+        return (float) (total / n);
+    }
+
+
+    /**
+     * Get the mean power in a band of bins, over the last so many ms.
+     *
+     * @param   low         The first bin in the band.
+     * @param   high        The bin after the last in the band.
+     * @param   ms          The period to look back over, in ms.
+     * @return              The total power in the band, averaged over
+     *                      the frames in the period; 0 if there are none.
+     * @throws  IllegalArgumentException    Invalid band.
+     */
+    public float bandEnergyMs(int low, int high, long ms) {
+        return bandEnergyFrames(low, high, framesIn(ms));
+    }
+
+
+    // ******************************************************************** //
+    // Private Data.
+    // ******************************************************************** //
+
+    // Number of bins per frame, and frames held.
+    private final int numBins;
+    private final int numFrames;
+
+    // The frames, newest at frame index newest; the number of frames
+    // held; and the number ever appended.
+    private final float[] data;
+    private int newest;
+    private int count = 0;
+    private long appended = 0;
+
+    // The time between frames, in ns.
+    private long framePeriod;
+
+    // Smoothing mode, and the smoothed spectrum.
+    private Averaging averaging;
+    private final float[] average;
+
+    // Boxcar length, and the total of each bin over the box.  The totals
+    // are kept in double so that rounding error doesn't build up.
+    private int boxLen;
+    private final double[] boxSums;
+
+    // Weight of each new frame in the exponential average.
+    private float emaAlpha = 1f;
+
+    // Scratch frame for repeatLast().
+    private final float[] repeatBuffer;
+
+}
@@ -17,6 +17,9 @@
 package org.hermit.dsp;
 
 
+import java.util.Arrays;
+
+
 /**
  * A windowing function for a discrete signal.  This is used to
  * pre-process a signal prior to FFT, in order to improve the frequency
@@ -79,7 +82,7 @@ public final class Window {
         // Create the window function as an array, so we do the
         // calculations once only.  For RECTANGULAR, leave the kernel as
         // null, signalling no transformation.
-        kernel = function == Function.RECTANGULAR ? null : new double[size];
+        kernel = function == Function.RECTANGULAR ? null : new float[size];
 
         switch (function) {
         case RECTANGULAR:
@@ -102,35 +105,35 @@ public final class Window {
     // Window Functions.
     // ******************************************************************** //
 
-    private void makeBlackmanHarris(double[] buf, int len) {
+    private void makeBlackmanHarris(float[] buf, int len) {
         final double n = (double) (len - 1);
         for (int i = 0; i < len; ++i) {
             final double f = Math.PI * (double) i / n;
-            buf[i] = BH_A0 -
-                     BH_A1 * Math.cos(2.0 * f) +
-                     BH_A2 * Math.cos(4.0 * f) -
-                     BH_A3 * Math.cos(6.0 * f);
+            buf[i] = (float) (BH_A0 -
+                              BH_A1 * Math.cos(2.0 * f) +
+                              BH_A2 * Math.cos(4.0 * f) -
+                              BH_A3 * Math.cos(6.0 * f));
         }
     }
     
     
-    private void makeGauss(double[] buf, int len) {
+    private void makeGauss(float[] buf, int len) {
         final double k = (double) (len - 1) / 2;
         
         for (int i = 0; i < len; ++i) {
             final double d = (i - k) / (0.4 * k);
-            buf[i] = Math.exp(-0.5 * d * d);
+            buf[i] = (float) Math.exp(-0.5 * d * d);
         }
     }
     
 
-    private void makeWeedonGauss(double[] buf, int len) {
+    private void makeWeedonGauss(float[] buf, int len) {
         final double k = (-250.0 * 0.4605) / (double) (len * len);
         final double d = (double) len / 2.0;
         
         for (int i = 0; i < len; ++i) {
             final double n = (double) i - d;
-            buf[i] = Math.exp(n * n * k);
+            buf[i] = (float) Math.exp(n * n * k);
         }
     }
     
@@ -176,6 +179,73 @@ public final class Window {
     }
     
     
+    /**
+     * Apply the window function to a given data block.  The data in
+     * the provided buffer will be multiplied by the window function.
+     * 
+     * @param   input       The input data buffer.  This data will be
+     *                      transformed in-place by the window function.
+     * @throws  IllegalArgumentException    Invalid data size.
+     */
+    public final void transform(float[] input) {
+        transform(input, 0, input.length);
+    }
+    
+
+    /**
+     * Apply the window function to a given data block.  The data in
+     * the provided buffer will be multiplied by the window function.
+     * 
+     * @param   input       The input data buffer.  This data will be
+     *                      transformed in-place by the window function.
+     * @param   off         Offset in the buffer at which the data to
+     *                      be transformed starts.
+     * @param   count       Number of samples in the data to be
+     *                      transformed.  Must be the same as the size
+     *                      parameter that was given to the constructor.
+     * @throws  IllegalArgumentException    Invalid data size.
+     */
+    public final void transform(float[] input, int off, int count) {
+        if (count != blockSize)
+            throw new IllegalArgumentException("bad input count in Window:" +
+                                               " constructed for " + blockSize +
+                                               "; given " + input.length);
+        if (kernel != null)
+            for (int i = 0; i < blockSize; i++)
+                input[off + i] *= kernel[i];
+    }
+    
+    
+    /**
+     * Get the window function as an array of multiplication factors, with
+     * a constant scale folded in.  This lets a caller apply the window
+     * while it copies or converts the data, instead of in a separate pass.
+     *
+     * @param   scale       Factor to multiply the whole window by.
+     * @return              A new array of blockSize factors.  For a
+     *                      rectangular window, all are equal to scale.
+     */
+    public final float[] getScaledKernel(float scale) {
+        float[] scaled = new float[blockSize];
+        if (kernel == null)
+            Arrays.fill(scaled, scale);
+        else
+            for (int i = 0; i < blockSize; i++)
+                scaled[i] = kernel[i] * scale;
+        return scaled;
+    }
+
+
+    /**
+     * Determine whether this window leaves the data unchanged.
+     *
+     * @return              True if this is a rectangular window.
+     */
+    public final boolean isRectangular() {
+        return kernel == null;
+    }
+
+
     // ******************************************************************** //
     // Private Constants.
     // ******************************************************************** //
@@ -199,7 +269,8 @@ public final class Window {
     
     // The window function, as a pre-computed array of multiplication factors.
     // If null, do no transformation -- this is a unity rectangular window.
-    private final double[] kernel;
+    // Single precision is ample for a window applied to 16-bit audio.
+    private final float[] kernel;
 
 }
 
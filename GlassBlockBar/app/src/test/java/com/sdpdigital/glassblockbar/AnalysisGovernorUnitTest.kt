@@ -0,0 +1,152 @@
+package com.sdpdigital.glassblockbar
+
+import org.hermit.android.instruments.AnalysisGovernor
+import org.hermit.android.instruments.AnalysisGovernor.Tier
+import org.hermit.android.instruments.AudioAnalyser
+import org.hermit.android.io.AudioSource
+import org.hermit.android.io.SyntheticAudioSource
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Local unit tests for the governor which sheds analysis work under load.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class AnalysisGovernorUnitTest {
+
+    // 4 ms blocks, so an evaluation period is about 63 blocks
+    private val block = 4000000L
+    private val period = 63
+
+    // Run one evaluation period's blocks, each taking the given share of
+    // the block period
+    private fun runPeriod(gov: AnalysisGovernor, load: Double) {
+        for (i in 0 until period) {
+            gov.blockDone((block * load).toLong())
+        }
+    }
+
+    @Test
+    fun governor_stepsDownUnderLoad_inOrder() {
+        val gov = AnalysisGovernor(block)
+        assertEquals(Tier.FULL, gov.tier)
+        assertTrue(gov.shouldAnalyse(1))
+
+        runPeriod(gov, 0.9)
+        assertEquals(Tier.DECIMATE, gov.tier)
+        assertTrue(gov.shouldAnalyse(2))
+        assertFalse(gov.shouldAnalyse(3))
+        assertFalse(gov.useSmallFFT())
+
+        runPeriod(gov, 0.9)
+        assertEquals(Tier.SMALL_FFT, gov.tier)
+        assertTrue(gov.useSmallFFT())
+        assertTrue(gov.shouldRender())
+
+        runPeriod(gov, 0.9)
+        assertEquals(Tier.NO_RENDER, gov.tier)
+        assertFalse(gov.shouldRender())
+
+        // There's nowhere further to go
+        runPeriod(gov, 0.9)
+        assertEquals(Tier.NO_RENDER, gov.tier)
+    }
+
+    @Test
+    fun governor_stepsUpOnlyAfterSustainedHeadroom() {
+        val gov = AnalysisGovernor(block)
+        runPeriod(gov, 0.9)
+        runPeriod(gov, 0.9)
+        assertEquals(Tier.SMALL_FFT, gov.tier)
+
+        for (i in 0 until 7) {
+            runPeriod(gov, 0.1)
+        }
+        assertEquals(Tier.SMALL_FFT, gov.tier)
+        runPeriod(gov, 0.1)
+        assertEquals(Tier.DECIMATE, gov.tier)
+
+        // Middling load neither steps up nor down, and restarts the count
+        for (i in 0 until 7) {
+            runPeriod(gov, 0.1)
+        }
+        runPeriod(gov, 0.5)
+        runPeriod(gov, 0.1)
+        assertEquals(Tier.DECIMATE, gov.tier)
+    }
+
+    @Test
+    fun governor_stepsDownWhenBlocksAreDropped() {
+        val gov = AnalysisGovernor(block)
+        gov.blocksDropped(1)
+        runPeriod(gov, 0.1)
+        assertEquals(Tier.DECIMATE, gov.tier)
+
+        gov.reset()
+        assertEquals(Tier.FULL, gov.tier)
+    }
+
+    @Test
+    fun governor_fixedTier_holdsWhateverTheLoad() {
+        val gov = AnalysisGovernor(block)
+        gov.setFixedTier(Tier.SMALL_FFT)
+        assertEquals(Tier.SMALL_FFT, gov.tier)
+        for (i in 0 until 10) {
+            runPeriod(gov, 0.1)
+        }
+        runPeriod(gov, 0.9)
+        assertEquals(Tier.SMALL_FFT, gov.tier)
+
+        gov.setFixedTier(null)
+        assertEquals(Tier.FULL, gov.tier)
+    }
+
+    // Run a source through an analyser held at a tier, and get the mean
+    // energy of each beat detection band
+    private fun bandEnergies(tier: Tier, source: AudioSource): DoubleArray {
+        val analyser = AudioAnalyser()
+        analyser.setHopSize(64)
+        analyser.setAnalysisTier(tier)
+        val gauge = analyser.getSpectrumGauge(null)
+        val energies = DoubleArray(3)
+        val total = DoubleArray(3)
+        var blocks = 0
+        gauge.setOnFFTResultListener { _, _, _ ->
+            gauge.getBandEnergies(energies)
+            for (b in 0 until 3) {
+                total[b] += energies[b]
+            }
+            blocks++
+        }
+        val ended = ArrayBlockingQueue<Int>(1)
+        analyser.setOnInputEndedListener { ended.add(it) }
+        analyser.setAudioSource(source)
+        analyser.measureStart()
+        ended.poll(30, TimeUnit.SECONDS)
+        analyser.measureStop()
+        assertEquals(tier, analyser.analysisTier)
+        return DoubleArray(3) { total[it] / blocks }
+    }
+
+    @Test
+    fun analyser_smallFFT_keepsBandEnergyScale() {
+        // Noise across the bands, and a tone in the mid band
+        val sources = listOf(
+                { SyntheticAudioSource.noise(100f, 6000f) },
+                { SyntheticAudioSource.sineSweep(1000f, 1000.1f, 10f) })
+        for (make in sources) {
+            val full = bandEnergies(Tier.FULL, make().apply { setDuration(2f) })
+            val small = bandEnergies(Tier.SMALL_FFT, make().apply { setDuration(2f) })
+
+            // Beat thresholds are 1.1-1.5 times the mean, so the energy
+            // mustn't jump when the tier changes
+            val ratio = small.sum() / full.sum()
+            assertEquals("ratio $ratio", 1.0, ratio, 0.05)
+        }
+    }
+}
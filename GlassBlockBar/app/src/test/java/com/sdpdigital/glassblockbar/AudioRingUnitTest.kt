@@ -0,0 +1,114 @@
+package com.sdpdigital.glassblockbar
+
+import org.hermit.android.io.AudioRing
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Local unit tests for the ring that carries audio blocks from the
+ * reader thread to the analyser.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class AudioRingUnitTest {
+
+    // Write one block, tagging every sample with the given value
+    private fun write(ring: AudioRing, value: Int): Boolean {
+        val off = ring.beginWrite()
+        if (off < 0) {
+            ring.dropBlock()
+            return false
+        }
+        ring.buffer.fill(value.toShort(), off, off + ring.blockSize)
+        ring.endWrite(1000L * value)
+        return true
+    }
+
+    @Test
+    fun audioRing_deliversBlocksInOrder_andCountsOverruns() {
+        val ring = AudioRing(16, 4)
+        for (i in 0 until 6) {
+            write(ring, i)
+        }
+        assertEquals(4, ring.available())
+        assertEquals(2L, ring.getOverruns())
+
+        for (i in 0 until 4) {
+            val off = ring.peek()
+            assertEquals(i.toLong(), ring.peekSequence())
+            assertEquals(i.toShort(), ring.buffer[off])
+            assertEquals(1000L * i, ring.peekCaptureTime())
+            ring.release()
+        }
+        assertEquals(-1, ring.peek())
+
+        // The dropped blocks show up as a gap in the sequence numbers
+        write(ring, 6)
+        ring.peek()
+        assertEquals(6L, ring.peekSequence())
+    }
+
+    @Test
+    fun audioRing_keepsHistoryBehindTheBlockBeingRead() {
+        // 64-sample hops with 3 blocks of history give 256-sample windows
+        val hop = 64
+        val ring = AudioRing(hop, 4, 3)
+        val buffer = ring.buffer
+        var next = 0
+        for (seq in 0 until 50) {
+            // Keep the ring full, so the producer gets as close as it can
+            while (write(ring, next)) {
+                next++
+            }
+            val off = ring.peek()
+            assertEquals(seq.toShort(), buffer[off])
+
+            // Every hop in the window is intact, oldest first
+            if (seq >= 3) {
+                for (h in 0 until 4) {
+                    val start = (off + (h - 3) * hop + buffer.size) % buffer.size
+                    assertEquals((seq - 3 + h).toShort(), buffer[start])
+                    assertEquals((seq - 3 + h).toShort(), buffer[start + hop - 1])
+                }
+            }
+            ring.release()
+        }
+    }
+
+    @Test
+    fun audioRing_handsOffWholeBlocksBetweenThreads() {
+        val ring = AudioRing(480, 8)
+        val buffer = ring.buffer
+        val blocks = 100000
+        val producer = Thread {
+            // Wait for space rather than dropping, so every block arrives
+            var i = 0
+            while (i < blocks) {
+                val off = ring.beginWrite()
+                if (off < 0) {
+                    Thread.yield()
+                    continue
+                }
+                buffer.fill(i.toShort(), off, off + ring.blockSize)
+                ring.endWrite()
+                i++
+            }
+        }
+        producer.start()
+
+        var expected = 0L
+        while (expected < blocks) {
+            val off = ring.peek()
+            if (off < 0) {
+                Thread.yield()
+                continue
+            }
+            assertEquals(expected, ring.peekSequence())
+            assertEquals(expected.toShort(), buffer[off])
+            assertEquals(expected.toShort(), buffer[off + ring.blockSize - 1])
+            ring.release()
+            expected++
+        }
+        producer.join()
+    }
+}
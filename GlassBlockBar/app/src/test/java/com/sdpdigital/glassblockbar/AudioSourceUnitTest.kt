@@ -0,0 +1,169 @@
+package com.sdpdigital.glassblockbar
+
+import org.hermit.android.instruments.AudioAnalyser
+import org.hermit.android.instruments.SpectrumGauge
+import org.hermit.android.io.AudioReader
+import org.hermit.android.io.AudioRing
+import org.hermit.android.io.FileAudioSource
+import org.hermit.android.io.SyntheticAudioSource
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Collections
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Local unit tests which drive the audio capture and analysis from the
+ * off-device audio sources.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class AudioSourceUnitTest {
+
+    @Test
+    fun clickTrack_throughAnalyser_givesBeatsOnTheBeat() {
+        val rate = 16000
+        val hop = 64
+        val analyser = AudioAnalyser()
+        analyser.setSampleRate(rate)
+        analyser.setHopSize(hop)
+        val gauge = analyser.getSpectrumGauge(null)
+
+        // Beats are reported on the analysis thread
+        val beats = Collections.synchronizedList(ArrayList<Long>())
+        val lowBeats = Collections.synchronizedList(ArrayList<Long>())
+        gauge.setOnBeatDetectedListener(object : SpectrumGauge.OnBeatDetectedListener {
+            override fun onBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
+                beats.add(sequence)
+            }
+            override fun onLowBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {
+                lowBeats.add(sequence)
+            }
+            override fun onBeatDetectedOff(sequence: Long, captureTime: Long) {}
+            override fun onMidBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {}
+            override fun onHighBeatDetectedOn(intensity: Float, sequence: Long, captureTime: Long) {}
+            override fun onLowBeatDetectedOff(sequence: Long, captureTime: Long) {}
+            override fun onMidBeatDetectedOff(sequence: Long, captureTime: Long) {}
+            override fun onHighBeatDetectedOff(sequence: Long, captureTime: Long) {}
+        })
+        val ended = ArrayBlockingQueue<Int>(1)
+        analyser.setOnInputEndedListener { ended.add(it) }
+
+        val source = SyntheticAudioSource.clickTrack(120f, 200f)
+        source.setDuration(4f)
+        analyser.setAudioSource(source)
+        analyser.measureStart()
+        val error = ended.poll(30, TimeUnit.SECONDS)
+        analyser.measureStop()
+        assertEquals(AudioReader.Listener.ERR_OK, error)
+
+        // At 120 BPM there's a beat every 8000 samples, or 125 hops.  The
+        // first comes before there's any history to judge it by.
+        for (onsets in listOf(beats, lowBeats)) {
+            assertEquals(7, onsets.size)
+            for (i in 1 until onsets.size) {
+                assertEquals(125.0, (onsets[i] - onsets[i - 1]).toDouble(), 1.0)
+            }
+        }
+    }
+
+    @Test
+    fun realTimeSource_withDuration_endsTheInput() {
+        // A real-time source is live, but unlike the mic it runs out
+        val source = SyntheticAudioSource.noise(100f, 6000f)
+        source.setRealTime(true)
+        source.setDuration(0.2f)
+
+        val ended = ArrayBlockingQueue<Boolean>(1)
+        val reader = AudioReader()
+        reader.startReader(source, 16000, AudioRing(256, 16), object : AudioReader.Listener() {
+            override fun onReadComplete(buffer: ShortArray, offset: Int, count: Int) {}
+            override fun onReadError(error: Int) {}
+            override fun onReadEnd() {
+                ended.add(true)
+            }
+        })
+        val done = ended.poll(5, TimeUnit.SECONDS)
+        reader.stopReader()
+        assertTrue(done == true)
+    }
+
+    @Test
+    fun fileAudioSource_readsWavFile_mixingStereoToMono() {
+        val frames = 1000
+        val bytes = ByteBuffer.allocate(44 + 10 + frames * 4).order(ByteOrder.LITTLE_ENDIAN)
+        bytes.put("RIFF".toByteArray()).putInt(36 + 10 + frames * 4).put("WAVE".toByteArray())
+        bytes.put("fmt ".toByteArray()).putInt(16)
+                .putShort(1).putShort(2).putInt(22050).putInt(22050 * 4)
+                .putShort(4).putShort(16)
+        // A chunk we don't know, which must be skipped
+        bytes.put("LIST".toByteArray()).putInt(2).putShort(0)
+        bytes.put("data".toByteArray()).putInt(frames * 4)
+        for (i in 0 until frames) {
+            bytes.putShort((i * 10).toShort()).putShort((i * 30).toShort())
+        }
+        val file = File.createTempFile("audio", ".wav")
+        file.deleteOnExit()
+        file.writeBytes(bytes.array())
+
+        val source = FileAudioSource(file)
+        assertEquals(22050, source.sampleRate)
+        assertEquals(frames, source.length)
+
+        source.open(22050, 256)
+        source.start()
+        val block = ShortArray(256)
+        var total = 0
+        while (true) {
+            val n = source.read(block, 0, block.size)
+            if (n == 0) {
+                break
+            }
+            for (i in 0 until n) {
+                assertEquals(((total + i) * 20).toShort(), block[i])
+            }
+            total += n
+        }
+        assertEquals(frames, total)
+    }
+
+    // Write a mono 8 kHz WAV file with the given chunk lengths in its
+    // header, and the given number of samples
+    private fun wavFile(fmtLength: Int, dataLength: Int, frames: Int): File {
+        val bytes = ByteBuffer.allocate(44 + frames * 2).order(ByteOrder.LITTLE_ENDIAN)
+        bytes.put("RIFF".toByteArray()).putInt(-1).put("WAVE".toByteArray())
+        bytes.put("fmt ".toByteArray()).putInt(fmtLength)
+                .putShort(1).putShort(1).putInt(8000).putInt(8000 * 2)
+                .putShort(2).putShort(16)
+        bytes.put("data".toByteArray()).putInt(dataLength)
+        for (i in 0 until frames) {
+            bytes.putShort(i.toShort())
+        }
+        val file = File.createTempFile("audio", ".wav")
+        file.deleteOnExit()
+        file.writeBytes(bytes.array())
+        return file
+    }
+
+    @Test
+    fun fileAudioSource_streamedWav_playsToTheEndOfTheFile() {
+        // A streamed file doesn't know its length, and gives 0xffffffff
+        val source = FileAudioSource(wavFile(16, -1, 500))
+        assertEquals(500, source.length)
+    }
+
+    @Test
+    fun fileAudioSource_shortFormatChunk_isRejected() {
+        try {
+            FileAudioSource(wavFile(8, 1000, 500))
+            fail("short format chunk accepted")
+        } catch (e: IOException) {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.sdpdigital.glassblockbar
+
+import org.hermit.dsp.BandMap
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Local unit tests for the precomputed spectrum band map.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class BandMapUnitTest {
+
+    // 16 kHz with 64 sample blocks: 32 bins of 250 Hz, bin i centred on i * 250 Hz
+    private val rate = 16000
+    private val blockSize = 64
+    private val ones = FloatArray(32) { 1f }
+
+    @Test
+    fun bandMap_linearBands_shareEveryBinOnce() {
+        // 125 Hz to 7875 Hz is exactly bins 1 to 31
+        val map = BandMap.linear(rate, blockSize, 125f, 7875f, 3)
+        val out = map.bandPowers(ones, FloatArray(3))
+        assertEquals(31f, out[0] + out[1] + out[2], 1e-4f)
+        assertEquals(31f / 3f, out[1], 1e-4f)
+    }
+
+    @Test
+    fun bandMap_narrowBand_getsFractionOfBin() {
+        // A quarter of bin 1
+        val map = BandMap(rate, blockSize, floatArrayOf(250f, 312.5f))
+        assertEquals(1, map.getStartBin(0))
+        assertEquals(2, map.getEndBin(0))
+        assertEquals(0.25f, map.bandPowers(ones, FloatArray(1))[0], 1e-6f)
+    }
+
+    @Test
+    fun bandMap_logSpaced_octaves() {
+        // Octaves from 250 Hz: 1, 2, 4, 8 bins wide; the top one stops at Nyquist
+        val map = BandMap.logSpaced(rate, blockSize, 250f, 8000f, 5)
+        val out = map.bandPowers(ones, FloatArray(5))
+        val expected = floatArrayOf(1f, 2f, 4f, 8f, 15.5f)
+        for (b in 0 until 5) {
+            assertEquals(expected[b], out[b], 1e-4f)
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun bandMap_wrongSpectrumSize_rejected() {
+        BandMap.linear(rate, blockSize, 125f, 7875f, 3).bandPowers(FloatArray(31), FloatArray(3))
+    }
+}
@@ -0,0 +1,163 @@
+package com.sdpdigital.glassblockbar
+
+import org.hermit.ca.uol.aig.fftpack.RealDoubleFFT
+import org.hermit.ca.uol.aig.fftpack.RealFloatFFT
+import org.hermit.dsp.FFTTransformer
+import org.hermit.dsp.Window
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * Local unit tests for the FFT code used by the audio analyser.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class FFTUnitTest {
+
+    val LOG_TAG = FFTUnitTest::class.java.simpleName
+
+    // Block sizes we expect to run with, including mixed-radix sizes
+    // and one with a factor of 7 that goes through the general radix path
+    val testSizes = arrayOf(256, 448, 480, 512, 960, 1024, 4096)
+
+    // Fill a block with random 16-bit PCM, scaled to [-1, 1)
+    private fun randomPcm(n: Int, seed: Long): ShortArray {
+        val rnd = Random(seed)
+        return ShortArray(n) { (rnd.nextInt(65536) - 32768).toShort() }
+    }
+
+    @Test
+    fun realFloatFFT_matchesRealDoubleFFT_wellBelow16BitQuantization() {
+        for (n in testSizes) {
+            val pcm = randomPcm(n, n.toLong())
+            val doubleData = DoubleArray(n) { pcm[it] / 32768.0 }
+            val floatData = FloatArray(n) { pcm[it] / 32768f }
+
+            RealDoubleFFT(n).ft(doubleData)
+            RealFloatFFT(n).ft(floatData)
+
+            var maxError = 0.0
+            for (i in 0 until n) {
+                maxError = max(maxError, abs(doubleData[i] - floatData[i]))
+            }
+
+            // RMS of 16-bit quantization noise in one bin of an n-point FFT
+            val quantizationNoise = sqrt(n / 12.0) / 32768.0
+            val ratio = maxError / quantizationNoise
+            println("n = $n, max float error = $maxError, " +
+                    "16-bit quantization noise = $quantizationNoise, ratio = $ratio")
+
+            assertTrue("Float FFT error for n = $n is not far below quantization noise",
+                    ratio < 0.1)
+        }
+    }
+
+    @Test
+    fun realFloatFFT_inverseRestoresInput() {
+        // Include tiny power-of-2 sizes, which use the radix-2/4 kernel
+        for (n in arrayOf(4, 8, 16) + testSizes) {
+            val pcm = randomPcm(n, n.toLong() + 1)
+            val data = FloatArray(n) { pcm[it] / 32768f }
+
+            val fft = RealFloatFFT(n)
+            fft.ft(data)
+            fft.bt(data)
+
+            var maxError = 0f
+            for (i in 0 until n) {
+                maxError = max(maxError, abs(data[i] / fft.norm_factor - pcm[i] / 32768f))
+            }
+            assertTrue("Float FFT round trip error for n = $n is $maxError",
+                    maxError < 1f / 32768f)
+        }
+    }
+
+    @Test
+    fun realFloatFFT_sharedPlanIsThreadSafe() {
+        // 960 goes through the mixed-radix code, which needs working storage
+        val n = 960
+        val fft = RealFloatFFT(n)
+        val pcm = randomPcm(n, 42)
+        val expected = FloatArray(n) { pcm[it] / 32768f }
+        fft.ft(expected)
+
+        val failures = IntArray(4)
+        val threads = Array(4) { t ->
+            Thread {
+                val data = FloatArray(n)
+                for (iteration in 0 until 500) {
+                    for (i in 0 until n) {
+                        data[i] = pcm[i] / 32768f
+                    }
+                    fft.ft(data)
+                    if (!data.contentEquals(expected)) {
+                        failures[t]++
+                    }
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+
+        assertArrayEquals("Concurrent transforms from one plan disagreed",
+                IntArray(4), failures)
+    }
+
+    @Test
+    fun fftTransformer_handlesNativeBufferSizes() {
+        assertEquals(480, FFTTransformer.fastSize(480))
+        assertEquals(450, FFTTransformer.fastSize(441))
+        assertEquals(960, FFTTransformer.fastSize(959))
+
+        // A tone centred on bin 25 of each block size
+        for (n in arrayOf(480, 960)) {
+            val bin = 25
+            val tone = FloatArray(n) { sin(2.0 * PI * bin * it / n).toFloat() }
+            val fft = FFTTransformer(n, Window.Function.BLACKMAN_HARRIS)
+            fft.setInput(tone, 0, n)
+            fft.transform()
+
+            val real = FloatArray(n / 2)
+            val imag = FloatArray(n / 2)
+            fft.getComplexResults(real, imag)
+            var peak = 0
+            for (i in 1 until n / 2) {
+                if (real[i] * real[i] + imag[i] * imag[i] >
+                        real[peak] * real[peak] + imag[peak] * imag[peak]) {
+                    peak = i
+                }
+            }
+            assertEquals("Peak bin for n = $n", bin, peak)
+        }
+    }
+
+    @Test
+    fun fftTransformer_batchMatchesSingleBlocks() {
+        val n = 512
+        val hop = n / 2
+        // Enough blocks that the batch is split across the fork-join pool
+        val blocks = 100
+        val pcm = randomPcm((blocks - 1) * hop + n, 7)
+        val fft = FFTTransformer(n, Window.Function.BLACKMAN_HARRIS)
+
+        val spectrogram = FloatArray(blocks * n / 2)
+        fft.transformBatch(pcm, 0, blocks, hop, spectrogram)
+
+        val single = FloatArray(n / 2)
+        for (b in 0 until blocks) {
+            fft.setInput(pcm, b * hop, n)
+            fft.transform()
+            fft.getRealResults(single)
+            assertArrayEquals("Block $b", single,
+                    spectrogram.copyOfRange(b * n / 2, (b + 1) * n / 2), 0f)
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.sdpdigital.glassblockbar
+
+import android.graphics.Canvas
+import org.hermit.android.instruments.AudioAnalyser
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+/**
+ * Local unit tests that the gauge overlays don't allocate per frame.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class OverlayAllocationUnitTest {
+
+    @Test
+    fun spectrumGauge_overlay_noAllocationPerFrame() {
+        // Headless gauge; the Canvas is a no-op in local tests
+        val gauge = AudioAnalyser().getSpectrumGauge(null)
+        val canvas = Canvas()
+        val mx = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+
+        // Warm up, so class loading and compilation are out of the way
+        for (i in 0 until 20000) {
+            gauge.updateUI(canvas)
+        }
+
+        val frames = 100000
+        val before = mx.getThreadAllocatedBytes(thread)
+        for (i in 0 until frames) {
+            gauge.updateUI(canvas)
+        }
+        val allocated = mx.getThreadAllocatedBytes(thread) - before
+
+        // Anything per frame would be at least frames * 16 bytes
+        assertTrue("allocated $allocated bytes over $frames frames", allocated < frames)
+    }
+}
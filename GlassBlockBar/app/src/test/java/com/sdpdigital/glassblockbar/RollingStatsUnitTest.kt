@@ -0,0 +1,83 @@
+package com.sdpdigital.glassblockbar
+
+import org.hermit.dsp.RollingStats
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Local unit tests for the rolling mean and variance used by beat detection.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class RollingStatsUnitTest {
+
+    @Test
+    fun rollingStats_matchesWindow_overManyPasses() {
+        // Values with a large offset, so rounding would show up
+        val random = Random(1)
+        val window = 10
+        val stats = RollingStats(window)
+        val history = DoubleArray(5000) { 1e6 + random.nextDouble() * 100 }
+        for (i in history.indices) {
+            stats.add(history[i])
+            val held = history.copyOfRange(maxOf(0, i - window + 1), i + 1)
+            val mean = held.average()
+            val variance = held.map { (it - mean) * (it - mean) }.average()
+            assertEquals(held.size, stats.count)
+            assertEquals(mean, stats.mean, 1e-6)
+            assertEquals(variance, stats.variance, 1e-3)
+        }
+    }
+
+    @Test
+    fun rollingStats_threshold_fallsWithVariance() {
+        // Steady history: the full factor
+        val steady = RollingStats(4)
+        repeat(4) { steady.add(10.0) }
+        assertEquals(15.0, steady.threshold, 1e-9)
+
+        // Same mean, varying a lot: the lowest factor
+        val busy = RollingStats(4)
+        for (v in doubleArrayOf(0.0, 20.0, 0.0, 20.0)) {
+            busy.add(v)
+        }
+        assertEquals(100.0, busy.variance, 1e-9)
+        assertEquals(11.0, busy.threshold, 1e-9)
+        assertTrue(busy.threshold < steady.threshold)
+    }
+
+    @Test
+    fun rollingStats_repeatLast_holdsLatestValue() {
+        val stats = RollingStats(4)
+        stats.repeatLast()
+        assertEquals(0, stats.count)
+
+        // Skipped blocks hold the last value, so the window stays full
+        stats.add(2.0)
+        stats.add(6.0)
+        stats.repeatLast()
+        stats.repeatLast()
+        assertEquals(4, stats.count)
+        assertEquals(5.0, stats.mean, 1e-9)
+    }
+
+    @Test
+    fun rollingStats_isPeak_waitsForWarmup() {
+        // Nothing is a peak until there are 3 values to judge it by
+        val stats = RollingStats(20, 3)
+        assertFalse(stats.isPeak(100.0))
+        assertFalse(stats.isPeak(1.0))
+        assertFalse(stats.isPeak(1.0))
+        assertTrue(stats.isPeak(100.0))
+        assertFalse(stats.isPeak(1.0))
+        assertEquals(5, stats.count)
+
+        // About a second of history, warming up over a tenth of it
+        val beats = RollingStats.forPeriod(4000000L)
+        assertEquals(250, beats.length)
+        assertEquals(25, beats.warmup)
+    }
+}
@@ -0,0 +1,83 @@
+package com.sdpdigital.glassblockbar
+
+import org.hermit.dsp.SpectrogramRing
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Local unit tests for the flat spectrogram history.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class SpectrogramRingUnitTest {
+
+    // 4 bins; bin b of frame f has power f * 10 + b
+    private fun frame(f: Int) = FloatArray(4) { b -> (f * 10 + b).toFloat() }
+
+    @Test
+    fun spectrogramRing_keepsNewestFrames_frameMajor() {
+        // 5 frames of 4 ms each
+        val ring = SpectrogramRing(4, 5, 4000000L)
+        for (f in 0 until 12) {
+            ring.append(frame(f))
+        }
+        assertEquals(5, ring.count)
+        assertEquals(12L, ring.framesAppended)
+
+        val buf = ring.buffer
+        for (age in 0 until 5) {
+            val off = ring.frameOffset(age)
+            for (b in 0 until 4) {
+                assertEquals(((11 - age) * 10 + b).toFloat(), buf[off + b], 0f)
+            }
+        }
+    }
+
+    @Test
+    fun spectrogramRing_boxcarAverage_tracksLastFrames() {
+        val ring = SpectrogramRing(4, 5, 4000000L)
+        ring.setBoxcar(3)
+        for (f in 0 until 9) {
+            ring.append(frame(f))
+            // Mean of the last 3 frames, or fewer zero-padded at the start
+            for (b in 0 until 4) {
+                var sum = 0f
+                for (g in maxOf(0, f - 2)..f) {
+                    sum += frame(g)[b]
+                }
+                assertEquals(sum / 3f, ring.average[b], 1e-4f)
+            }
+        }
+
+        // Switching length re-totals the frames held
+        ring.setBoxcar(5)
+        assertEquals((80f + 70f + 60f + 50f + 40f) / 5f, ring.average[0], 1e-4f)
+    }
+
+    @Test
+    fun spectrogramRing_exponentialAverage_convergesOnInput() {
+        val ring = SpectrogramRing(4, 5, 4000000L)
+        ring.setExponential(0.5f)
+        ring.append(FloatArray(4) { 8f })
+        assertEquals(4f, ring.average[0], 0f)
+        ring.append(FloatArray(4) { 8f })
+        assertEquals(6f, ring.average[0], 0f)
+    }
+
+    @Test
+    fun spectrogramRing_bandEnergy_overTime() {
+        val ring = SpectrogramRing(4, 5, 4000000L)
+        for (f in 0 until 8) {
+            ring.append(frame(f))
+        }
+        // Bins 1 and 2 over the last 8 ms: frames 7 and 6
+        assertEquals(((71f + 72f) + (61f + 62f)) / 2f, ring.bandEnergyMs(1, 3, 8), 1e-4f)
+        // Rounded up to whole frames, and limited to the frames held
+        assertEquals(2, ring.framesIn(5L))
+        assertEquals(5, ring.framesIn(1000L))
+
+        // A repeated frame fills a gap with the newest spectrum
+        ring.repeatLast()
+        assertEquals(71f + 72f, ring.bandEnergyFrames(1, 3, 2), 1e-4f)
+    }
+}
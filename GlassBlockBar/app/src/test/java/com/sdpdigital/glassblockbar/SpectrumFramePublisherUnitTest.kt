@@ -0,0 +1,121 @@
+package com.sdpdigital.glassblockbar
+
+import com.sdpdigital.glassblockbar.beatdetection.SpectrumFrame
+import com.sdpdigital.glassblockbar.beatdetection.SpectrumFramePublisher
+import com.sdpdigital.glassblockbar.beatdetection.SpectrumFramePublisher.Policy
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.util.concurrent.Executor
+
+/**
+ * Local unit tests for the pooled spectrum frame stream.
+ *
+ * See [testing documentation](http://d.android.com/tools/testing).
+ */
+class SpectrumFramePublisherUnitTest {
+
+    // Stands in for a main thread handler: holds posted tasks until run
+    private val posted = ArrayList<Runnable>()
+    private val executor = Executor { posted.add(it) }
+
+    private fun runPosted() {
+        val tasks = ArrayList(posted)
+        posted.clear()
+        tasks.forEach { it.run() }
+    }
+
+    private fun publish(publisher: SpectrumFramePublisher, first: Int, count: Int) {
+        for (i in first until first + count) {
+            publisher.publish(doubleArrayOf(i.toDouble(), 0.0), i.toLong(), 0L)
+        }
+    }
+
+    @Test
+    fun publisher_policies_boundBacklog_onePostEach() {
+        val publisher = SpectrumFramePublisher()
+        val conflated = ArrayList<Long>()
+        val buffered = ArrayList<Long>()
+        publisher.subscribe({ conflated.add(it.sequence) }, Policy.CONFLATE, 0, executor)
+        val buffer = publisher.subscribe({ buffered.add(it.sequence) }, Policy.BUFFER, 3, executor)
+
+        // A slow consumer gets one post however many frames arrive
+        publish(publisher, 0, 10)
+        assertEquals(2, posted.size)
+        runPosted()
+
+        assertEquals(listOf(9L), conflated)
+        assertEquals(listOf(7L, 8L, 9L), buffered)
+        assertEquals(7L, buffer.dropped)
+    }
+
+    @Test
+    fun publisher_sample_deliversLatest_oncePerPeriod() {
+        val publisher = SpectrumFramePublisher()
+        val sampled = ArrayList<Long>()
+        publisher.subscribe({ sampled.add(it.sequence) }, Policy.SAMPLE, 200, executor)
+
+        // The first frame is due straight away; later ones replace it
+        // while it waits
+        publish(publisher, 0, 10)
+        assertEquals(1, posted.size)
+        runPosted()
+        assertEquals(listOf(9L), sampled)
+
+        // Nothing more is scheduled until the period is up; then the
+        // latest frame goes
+        publish(publisher, 10, 5)
+        assertEquals(0, posted.size)
+        Thread.sleep(250)
+        publish(publisher, 15, 1)
+        assertEquals(1, posted.size)
+        runPosted()
+        assertEquals(listOf(9L, 15L), sampled)
+    }
+
+    @Test
+    fun publisher_framesShared_andRecycled() {
+        val publisher = SpectrumFramePublisher()
+        val frames = ArrayList<SpectrumFrame>()
+        publisher.subscribe({ frames.add(it) }, Policy.CONFLATE, 0, null)
+        publisher.subscribe({ frames.add(it) }, Policy.CONFLATE, 0, null)
+
+        // Both subscribers see the same frame; once they let go, it's re-used
+        publish(publisher, 0, 1)
+        publish(publisher, 1, 1)
+        assertEquals(4, frames.size)
+        assertSame(frames[0], frames[1])
+        assertSame(frames[0], frames[2])
+    }
+
+    @Test
+    fun publisher_retainedFrame_notReused() {
+        val publisher = SpectrumFramePublisher()
+        var kept: SpectrumFrame? = null
+        publisher.subscribe({
+            if (kept == null) {
+                it.retain()
+                kept = it
+            }
+        }, Policy.CONFLATE, 0, null)
+
+        publish(publisher, 0, 5)
+        assertEquals(0L, kept!!.sequence)
+        assertEquals(0.0, kept!!.getBand(0), 0.0)
+        kept!!.release()
+    }
+
+    @Test
+    fun publisher_activeListener_toldOnFirstAndLastSubscriber() {
+        val publisher = SpectrumFramePublisher()
+        val changes = ArrayList<Boolean>()
+        publisher.setOnActiveListener { changes.add(it) }
+
+        val first = publisher.subscribe({}, Policy.CONFLATE, 0, executor)
+        val second = publisher.subscribe({}, Policy.CONFLATE, 0, executor)
+        first.cancel()
+        assertEquals(listOf(true), changes)
+        second.cancel()
+        assertEquals(listOf(true, false), changes)
+    }
+}